@@ -0,0 +1,241 @@
+/*******************************************************************************
+ * Copyright (c) 2009 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.jdt.internal.compiler.batch;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Writes class files to disk on a bounded pool of threads.
+ * <p>The compiler requestor hands over the bytes of each class file and goes
+ * on; a full queue blocks it until a writer thread catches up. Package folders
+ * are created once, and a class file is left untouched when the file on disk
+ * already holds the very same bytes. Failures are kept until the requestor
+ * collects them through {@link #getFailures()} or {@link #flush()}, so that
+ * they get reported on its own thread. A writer thread that fails on an
+ * unchecked exception records it as a failure as well, and moves on.</p>
+ */
+public class BatchClassFileWriter implements Runnable {
+
+	public static class WriteRequest {
+		public boolean generatePackagesStructure;
+		public String outputPath;
+		public String relativeFileName;
+		byte[] contents;
+		public IOException exception;
+
+		WriteRequest(boolean generatePackagesStructure, String outputPath, String relativeFileName, byte[] contents) {
+			this.generatePackagesStructure = generatePackagesStructure;
+			this.outputPath = outputPath;
+			this.relativeFileName = relativeFileName;
+			this.contents = contents;
+		}
+	}
+
+	static final int QUEUE_SIZE_PER_THREAD = 64;
+
+	private WriteRequest[] queue;
+	private int head, count;
+	// requests taken by a writer thread and not yet completed
+	private int inProgress;
+	private boolean shutdown;
+	private Thread[] threads;
+	private ArrayList failures = new ArrayList();
+	private HashSet knownFolders = new HashSet();
+	// requests whose file was already up to date on disk, reported by Main once shut down
+	public int skippedFilesCounter;
+
+public BatchClassFileWriter(int threadsCount) {
+	this.queue = new WriteRequest[threadsCount * QUEUE_SIZE_PER_THREAD];
+	this.threads = new Thread[threadsCount];
+	for (int i = 0; i < threadsCount; i++) {
+		Thread thread = new Thread(this, "Class file writer #" + (i + 1)); //$NON-NLS-1$
+		thread.setDaemon(true);
+		this.threads[i] = thread;
+		thread.start();
+	}
+}
+
+/**
+ * Queue the given class file contents to be written. Blocks while the queue is full.
+ */
+public synchronized void write(boolean generatePackagesStructure, String outputPath, String relativeFileName, byte[] contents) {
+	while (this.count == this.queue.length) {
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			// ignore
+		}
+	}
+	this.queue[(this.head + this.count++) % this.queue.length] =
+		new WriteRequest(generatePackagesStructure, outputPath, relativeFileName, contents);
+	notifyAll();
+}
+
+/**
+ * Answer the requests that failed since the last call, or null if none did.
+ */
+public synchronized WriteRequest[] getFailures() {
+	int size = this.failures.size();
+	if (size == 0) return null;
+	WriteRequest[] result = new WriteRequest[size];
+	this.failures.toArray(result);
+	this.failures.clear();
+	return result;
+}
+
+/**
+ * Wait until all the queued class files are written, then answer the requests
+ * that failed, or null if none did.
+ */
+public WriteRequest[] flush() {
+	synchronized (this) {
+		while (this.count > 0 || this.inProgress > 0) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				// ignore
+			}
+		}
+	}
+	return getFailures();
+}
+
+/**
+ * Write the remaining class files, then stop the writer threads.
+ */
+public WriteRequest[] shutdown() {
+	WriteRequest[] remainingFailures = flush();
+	synchronized (this) {
+		this.shutdown = true;
+		notifyAll();
+	}
+	return remainingFailures;
+}
+
+public void run() {
+	while (true) {
+		WriteRequest request;
+		synchronized (this) {
+			while (this.count == 0) {
+				if (this.shutdown) return;
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// ignore
+				}
+			}
+			request = this.queue[this.head];
+			this.queue[this.head] = null;
+			this.head = (this.head + 1) % this.queue.length;
+			this.count--;
+			this.inProgress++;
+			notifyAll();
+		}
+		boolean skipped = false;
+		try {
+			skipped = writeToDisk(request);
+		} catch (IOException e) {
+			request.exception = e;
+		} catch (RuntimeException e) {
+			// e.g. a security manager refusing the write: report it like any other failure
+			IOException exception = new IOException(String.valueOf(e.getMessage()));
+			exception.initCause(e);
+			request.exception = exception;
+		} finally {
+			synchronized (this) {
+				if (request.exception != null) {
+					request.contents = null;
+					this.failures.add(request);
+				} else if (skipped) {
+					this.skippedFilesCounter++;
+				}
+				this.inProgress--;
+				notifyAll();
+			}
+		}
+	}
+}
+
+/*
+ * Answer true if the file on disk was already up to date.
+ */
+private boolean writeToDisk(WriteRequest request) throws IOException {
+	File file;
+	String relativeFileName = request.relativeFileName;
+	if (request.generatePackagesStructure) {
+		file = new File(request.outputPath, relativeFileName);
+	} else {
+		file = new File(request.outputPath, relativeFileName.substring(relativeFileName.lastIndexOf(File.separatorChar) + 1));
+	}
+	File folder = file.getParentFile();
+	String folderPath = folder.getPath();
+	boolean isKnownFolder;
+	synchronized (this.knownFolders) {
+		isKnownFolder = this.knownFolders.contains(folderPath);
+	}
+	boolean isNewFolder = false;
+	if (!isKnownFolder) {
+		if (!folder.isDirectory()) {
+			if (!folder.mkdirs() && !folder.isDirectory()) {
+				throw new IOException(folderPath);
+			}
+			isNewFolder = true;
+		}
+		synchronized (this.knownFolders) {
+			this.knownFolders.add(folderPath);
+		}
+	}
+	if (!isNewFolder && hasContents(file, request.contents)) {
+		return true;
+	}
+	OutputStream output = new FileOutputStream(file);
+	try {
+		output.write(request.contents);
+	} finally {
+		output.close();
+	}
+	return false;
+}
+
+private static boolean hasContents(File file, byte[] contents) {
+	if (file.length() != contents.length) return false;
+	InputStream input = null;
+	try {
+		input = new FileInputStream(file);
+		byte[] buffer = new byte[Math.min(contents.length, 8192)];
+		int offset = 0, read;
+		while (offset < contents.length && (read = input.read(buffer, 0, Math.min(buffer.length, contents.length - offset))) != -1) {
+			for (int i = 0; i < read; i++) {
+				if (buffer[i] != contents[offset + i]) return false;
+			}
+			offset += read;
+		}
+		return offset == contents.length;
+	} catch (IOException e) {
+		return false;
+	} finally {
+		if (input != null) {
+			try {
+				input.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+}
+}
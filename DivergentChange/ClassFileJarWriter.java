@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2009 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.jdt.internal.compiler.batch;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes class files as the entries of a single jar file (<code>-d:jar</code>).
+ * <p>All entries share a fixed time stamp, so that compiling the same sources
+ * twice produces the same jar. Entries are streamed in the order they are
+ * added, unless sorted entries were requested, in which case they are kept
+ * until {@link #close()} and written in name order. Entries may also be
+ * stored uncompressed.</p>
+ */
+public class ClassFileJarWriter {
+
+	// 1980-01-01 00:00, the earliest time the zip format can represent
+	static final long ENTRY_TIME = 315532800000L;
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	private File jarFile;
+	private ZipOutputStream output;
+	private boolean storeEntries;
+	// entry name -> contents, only used when entries are sorted
+	private TreeMap pendingEntries;
+	private HashSet knownFolders = new HashSet();
+	public int entriesCounter;
+
+public ClassFileJarWriter(File jarFile, boolean storeEntries, boolean sortEntries) throws IOException {
+	this.jarFile = jarFile;
+	this.storeEntries = storeEntries;
+	if (sortEntries) {
+		this.pendingEntries = new TreeMap();
+	}
+	File folder = jarFile.getAbsoluteFile().getParentFile();
+	if (folder != null && !folder.exists()) {
+		folder.mkdirs();
+	}
+	this.output = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(jarFile), BUFFER_SIZE));
+	if (storeEntries) {
+		this.output.setMethod(ZipOutputStream.STORED);
+	}
+}
+
+public String getPath() {
+	return this.jarFile.getPath();
+}
+
+/**
+ * Add the given class file contents under the given slash separated name,
+ * preceded by entries for the folders that contain it.
+ */
+public void write(String entryName, byte[] contents) throws IOException {
+	int index = 0;
+	while ((index = entryName.indexOf('/', index) + 1) > 0) {
+		String folderName = entryName.substring(0, index);
+		if (this.knownFolders.add(folderName)) {
+			addEntry(folderName, new byte[0]);
+		}
+	}
+	addEntry(entryName, contents);
+}
+
+private void addEntry(String entryName, byte[] contents) throws IOException {
+	if (this.pendingEntries != null) {
+		if (this.pendingEntries.put(entryName, contents) != null) {
+			throw new IOException(entryName);
+		}
+		return;
+	}
+	writeEntry(entryName, contents);
+}
+
+private void writeEntry(String entryName, byte[] contents) throws IOException {
+	ZipEntry entry = new ZipEntry(entryName);
+	entry.setTime(ENTRY_TIME);
+	if (this.storeEntries) {
+		CRC32 crc = new CRC32();
+		crc.update(contents);
+		entry.setSize(contents.length);
+		entry.setCompressedSize(contents.length);
+		entry.setCrc(crc.getValue());
+	}
+	this.output.putNextEntry(entry);
+	this.output.write(contents);
+	this.output.closeEntry();
+	if (!entryName.endsWith("/")) { //$NON-NLS-1$
+		this.entriesCounter++;
+	}
+}
+
+/**
+ * Write the pending entries if any, then close the jar file.
+ */
+public void close() throws IOException {
+	try {
+		if (this.pendingEntries != null) {
+			for (Iterator iterator = this.pendingEntries.entrySet().iterator(); iterator.hasNext(); ) {
+				Map.Entry entry = (Map.Entry) iterator.next();
+				writeEntry((String) entry.getKey(), (byte[]) entry.getValue());
+			}
+			this.pendingEntries = null;
+		}
+		// a zip file cannot be empty
+		if (this.knownFolders.isEmpty() && this.entriesCounter == 0) {
+			writeEntry("META-INF/", new byte[0]); //$NON-NLS-1$
+		}
+	} finally {
+		this.output.close();
+	}
+}
+}
@@ -0,0 +1,493 @@
+/*******************************************************************************
+ * Copyright (c) 2009 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.jdt.internal.compiler.batch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.eclipse.jdt.core.compiler.CharOperation;
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFileReader;
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFormatException;
+import org.eclipse.jdt.internal.compiler.env.AccessRuleSet;
+import org.eclipse.jdt.internal.compiler.env.NameEnvironmentAnswer;
+import org.eclipse.jdt.internal.compiler.util.SuffixConstants;
+import org.eclipse.jdt.internal.compiler.util.Util;
+
+/**
+ * Binary jar classpath entry backed by a read-only memory mapping of the jar.
+ * <p>The central directory is read once into a compact index: the hashes of
+ * the class file names, sorted, along with the offsets of their central
+ * directory records, plus the sorted names of all the folders of the jar,
+ * which are its packages for {@link ClasspathJar} as well. Lookups are
+ * answered by a binary search in the index and a read of the mapped entry,
+ * without going through {@link java.util.zip.ZipFile}.</p>
+ * <p>When the <code>jdt.compiler.jarIndexCache</code> system property names a
+ * folder, indexes are saved there and reused by later runs for as long as the
+ * size and the modification time of the jar are unchanged.</p>
+ */
+public class ClasspathMappedJar extends ClasspathLocation {
+
+	static final int INDEX_VERSION = 2;
+	static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+	static final int CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50;
+	static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+	static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+	static final int LOCAL_HEADER_SIZE = 30;
+	static final int STORED = 0;
+	static final int DEFLATED = 8;
+
+	File file;
+	long fileLength, fileLastModified;
+	String path;
+	char[] normalizedPath;
+	ByteBuffer buffer;
+	// sorted hashes of the class file names, with the offsets of their central directory records
+	int[] entryHashes;
+	int[] entryOffsets;
+	// sorted names of the packages, slash separated: every folder of the jar, as ClasspathJar sees them
+	String[] packageNames;
+
+/**
+ * Answer a mapped version of the given classpath entry if it is a plain
+ * binary jar that can be mapped, or the entry itself otherwise.
+ */
+public static FileSystem.Classpath map(FileSystem.Classpath classpath) {
+	if (classpath.getClass() != ClasspathJar.class) {
+		return classpath;
+	}
+	ClasspathJar jar = (ClasspathJar) classpath;
+	ClasspathMappedJar mappedJar = new ClasspathMappedJar(new File(jar.getPath()), jar.accessRuleSet, jar.destinationPath);
+	try {
+		mappedJar.initialize();
+	} catch (IOException e) {
+		// e.g. zip64 archives: keep going through ZipFile
+		return classpath;
+	}
+	return mappedJar;
+}
+
+public ClasspathMappedJar(File file, AccessRuleSet accessRuleSet, String destinationPath) {
+	super(accessRuleSet, destinationPath);
+	this.file = file;
+}
+
+public void initialize() throws IOException {
+	if (this.buffer != null) return;
+	long length = this.file.length();
+	long lastModified = this.file.lastModified();
+	if (length != this.fileLength || lastModified != this.fileLastModified) {
+		// the jar changed since it was last mapped: its index is stale
+		this.entryHashes = null;
+		this.entryOffsets = null;
+		this.packageNames = null;
+	}
+	this.fileLength = length;
+	this.fileLastModified = lastModified;
+	if (this.fileLength > Integer.MAX_VALUE) {
+		throw new IOException(this.file.getPath());
+	}
+	RandomAccessFile randomAccessFile = new RandomAccessFile(this.file, "r"); //$NON-NLS-1$
+	try {
+		MappedByteBuffer mappedBuffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, this.fileLength);
+		mappedBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		this.buffer = mappedBuffer;
+	} finally {
+		// the mapping outlives the channel
+		randomAccessFile.close();
+	}
+	if (this.entryHashes == null && !readIndex()) {
+		buildIndex();
+		writeIndex();
+	}
+}
+
+private void buildIndex() throws IOException {
+	ByteBuffer zip = this.buffer;
+	int end = findEndOfCentralDirectory(zip);
+	int entriesCount = zip.getShort(end + 10) & 0xFFFF;
+	int offset = zip.getInt(end + 16);
+	if (entriesCount == 0xFFFF || offset == -1) {
+		throw new IOException(this.file.getPath()); // zip64
+	}
+	int[] hashes = new int[entriesCount];
+	long[] sortKeys = new long[entriesCount];
+	int count = 0;
+	HashSet packages = new HashSet();
+	packages.add(Util.EMPTY_STRING);
+	for (int i = 0; i < entriesCount; i++) {
+		if (zip.getInt(offset) != CENTRAL_DIRECTORY_SIGNATURE) {
+			throw new IOException(this.file.getPath());
+		}
+		int nameLength = zip.getShort(offset + 28) & 0xFFFF;
+		int extraLength = zip.getShort(offset + 30) & 0xFFFF;
+		int commentLength = zip.getShort(offset + 32) & 0xFFFF;
+		int nameStart = offset + CENTRAL_DIRECTORY_HEADER_SIZE;
+		if (endsWithClassSuffix(zip, nameStart, nameLength)) {
+			int hash = hash(zip, nameStart, nameLength);
+			hashes[count] = hash;
+			// sort on the hash, keep the record offset along
+			sortKeys[count++] = ((long) hash << 32) | (offset & 0xFFFFFFFFL);
+		}
+		// like ClasspathJar, any entry makes its folders packages, resources and folder entries included
+		int lastSeparator = -1;
+		for (int j = nameLength - 1; j >= 0; j--) {
+			if (zip.get(nameStart + j) == '/') {
+				lastSeparator = j;
+				break;
+			}
+		}
+		addPackages(packages, lastSeparator <= 0 ? Util.EMPTY_STRING : readName(zip, nameStart, lastSeparator));
+		offset = nameStart + nameLength + extraLength + commentLength;
+	}
+	Arrays.sort(sortKeys, 0, count);
+	this.entryHashes = new int[count];
+	this.entryOffsets = new int[count];
+	for (int i = 0; i < count; i++) {
+		this.entryHashes[i] = (int) (sortKeys[i] >> 32);
+		this.entryOffsets[i] = (int) sortKeys[i];
+	}
+	this.packageNames = new String[packages.size()];
+	packages.toArray(this.packageNames);
+	Arrays.sort(this.packageNames);
+}
+
+private static void addPackages(HashSet packages, String packageName) {
+	while (packages.add(packageName)) {
+		int lastSeparator = packageName.lastIndexOf('/');
+		if (lastSeparator == -1) {
+			packages.add(Util.EMPTY_STRING);
+			return;
+		}
+		packageName = packageName.substring(0, lastSeparator);
+	}
+}
+
+private int findEndOfCentralDirectory(ByteBuffer zip) throws IOException {
+	int limit = Math.max(0, zip.limit() - END_OF_CENTRAL_DIRECTORY_SIZE - 0xFFFF);
+	for (int position = zip.limit() - END_OF_CENTRAL_DIRECTORY_SIZE; position >= limit; position--) {
+		if (zip.getInt(position) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+			return position;
+		}
+	}
+	throw new IOException(this.file.getPath());
+}
+
+private static boolean endsWithClassSuffix(ByteBuffer zip, int start, int length) {
+	char[] suffix = SuffixConstants.SUFFIX_class;
+	int suffixLength = suffix.length;
+	if (length <= suffixLength) return false;
+	for (int i = 0; i < suffixLength; i++) {
+		if (zip.get(start + length - suffixLength + i) != suffix[i]) return false;
+	}
+	return true;
+}
+
+private static int hash(ByteBuffer zip, int start, int length) {
+	int hash = 0x811C9DC5;
+	for (int i = 0; i < length; i++) {
+		hash = (hash ^ (zip.get(start + i) & 0xFF)) * 0x01000193;
+	}
+	return hash;
+}
+
+private static int hash(byte[] name) {
+	int hash = 0x811C9DC5;
+	for (int i = 0, length = name.length; i < length; i++) {
+		hash = (hash ^ (name[i] & 0xFF)) * 0x01000193;
+	}
+	return hash;
+}
+
+private static String readName(ByteBuffer zip, int start, int length) throws UnsupportedEncodingException {
+	byte[] bytes = new byte[length];
+	for (int i = 0; i < length; i++) {
+		bytes[i] = zip.get(start + i);
+	}
+	return new String(bytes, Util.UTF_8);
+}
+
+/*
+ * Answer the offset of the central directory record of the given entry, or -1.
+ */
+private int findEntry(byte[] name) {
+	int hash = hash(name);
+	int[] hashes = this.entryHashes;
+	int low = 0, high = hashes.length - 1;
+	while (low <= high) {
+		int middle = (low + high) >>> 1;
+		if (hashes[middle] < hash) {
+			low = middle + 1;
+		} else {
+			high = middle - 1;
+		}
+	}
+	// check all the entries that share this hash
+	ByteBuffer zip = this.buffer;
+	for (int i = low, max = hashes.length; i < max && hashes[i] == hash; i++) {
+		int offset = this.entryOffsets[i];
+		int nameLength = zip.getShort(offset + 28) & 0xFFFF;
+		if (nameLength != name.length) continue;
+		int nameStart = offset + CENTRAL_DIRECTORY_HEADER_SIZE;
+		boolean matches = true;
+		for (int j = 0; j < nameLength; j++) {
+			if (zip.get(nameStart + j) != name[j]) {
+				matches = false;
+				break;
+			}
+		}
+		if (matches) return offset;
+	}
+	return -1;
+}
+
+private byte[] readEntry(int offset) throws IOException {
+	ByteBuffer zip = this.buffer;
+	int method = zip.getShort(offset + 10) & 0xFFFF;
+	int compressedSize = zip.getInt(offset + 20);
+	int size = zip.getInt(offset + 24);
+	int localHeader = zip.getInt(offset + 42);
+	int dataStart = localHeader + LOCAL_HEADER_SIZE
+		+ (zip.getShort(localHeader + 26) & 0xFFFF)
+		+ (zip.getShort(localHeader + 28) & 0xFFFF);
+	byte[] data = new byte[compressedSize];
+	ByteBuffer view = zip.duplicate();
+	view.position(dataStart);
+	view.get(data);
+	switch (method) {
+		case STORED :
+			return data;
+		case DEFLATED :
+			Inflater inflater = new Inflater(true);
+			try {
+				inflater.setInput(data);
+				byte[] contents = new byte[size];
+				int read = 0;
+				while (read < size) {
+					int inflated = inflater.inflate(contents, read, size - read);
+					if (inflated == 0 && (inflater.finished() || inflater.needsInput())) break;
+					read += inflated;
+				}
+				if (read != size) {
+					throw new IOException(this.file.getPath());
+				}
+				return contents;
+			} catch (DataFormatException e) {
+				throw new IOException(e.getMessage());
+			} finally {
+				inflater.end();
+			}
+		default :
+			throw new IOException(this.file.getPath());
+	}
+}
+
+public NameEnvironmentAnswer findClass(char[] typeName, String qualifiedPackageName, String qualifiedBinaryFileName) {
+	return findClass(typeName, qualifiedPackageName, qualifiedBinaryFileName, false);
+}
+
+public NameEnvironmentAnswer findClass(char[] typeName, String qualifiedPackageName, String qualifiedBinaryFileName, boolean asBinaryOnly) {
+	if (!isPackage(qualifiedPackageName))
+		return null; // most common case
+	try {
+		int offset = findEntry(qualifiedBinaryFileName.getBytes(Util.UTF_8));
+		if (offset == -1) return null;
+		ClassFileReader reader = new ClassFileReader(readEntry(offset), qualifiedBinaryFileName.toCharArray());
+		if (this.accessRuleSet == null)
+			return new NameEnvironmentAnswer(reader, null);
+		String fileNameWithoutExtension = qualifiedBinaryFileName.substring(0, qualifiedBinaryFileName.length() - SuffixConstants.SUFFIX_CLASS.length);
+		return new NameEnvironmentAnswer(reader, this.accessRuleSet.getViolatedRestriction(fileNameWithoutExtension.toCharArray()));
+	} catch (ClassFormatException e) {
+		// treat as if class file is missing
+	} catch (IOException e) {
+		// treat as if class file is missing
+	}
+	return null;
+}
+
+public char[][][] findTypeNames(String qualifiedPackageName) {
+	if (!isPackage(qualifiedPackageName))
+		return null;
+	ArrayList answers = new ArrayList();
+	ByteBuffer zip = this.buffer;
+	for (int i = 0, max = this.entryOffsets.length; i < max; i++) {
+		int offset = this.entryOffsets[i];
+		int nameLength = zip.getShort(offset + 28) & 0xFFFF;
+		try {
+			String name = readName(zip, offset + CENTRAL_DIRECTORY_HEADER_SIZE, nameLength);
+			int lastSeparator = name.lastIndexOf('/');
+			String packageName = lastSeparator == -1 ? Util.EMPTY_STRING : name.substring(0, lastSeparator);
+			if (packageName.equals(qualifiedPackageName)) {
+				String typeName = name.substring(lastSeparator + 1, name.length() - SuffixConstants.SUFFIX_CLASS.length);
+				answers.add(CharOperation.arrayConcat(
+					CharOperation.splitOn('/', packageName.toCharArray()),
+					typeName.toCharArray()));
+			}
+		} catch (UnsupportedEncodingException e) {
+			// ignore
+		}
+	}
+	int size = answers.size();
+	if (size == 0) return null;
+	char[][][] result = new char[size][][];
+	answers.toArray(result);
+	return result;
+}
+
+public boolean isPackage(String qualifiedPackageName) {
+	return Arrays.binarySearch(this.packageNames, qualifiedPackageName) >= 0;
+}
+
+public List fetchLinkedJars(FileSystem.ClasspathSectionProblemReporter problemReporter) {
+	// linked jars were already expanded before the jar got mapped
+	return null;
+}
+
+public void reset() {
+	// the index is kept, the mapping gets released by the garbage collector;
+	// initialize() drops the index if the jar changes in between
+	this.buffer = null;
+}
+
+public char[] normalizedPath() {
+	if (this.normalizedPath == null) {
+		char[] rawName = this.file.getAbsolutePath().toCharArray();
+		if (File.separatorChar == '\\') {
+			CharOperation.replace(rawName, '\\', '/');
+		}
+		this.normalizedPath = CharOperation.subarray(rawName, 0, CharOperation.lastIndexOf('.', rawName));
+	}
+	return this.normalizedPath;
+}
+
+public String getPath() {
+	if (this.path == null) {
+		try {
+			this.path = this.file.getCanonicalPath();
+		} catch (IOException e) {
+			// in case of error, simply return the absolute path
+			this.path = this.file.getAbsolutePath();
+		}
+	}
+	return this.path;
+}
+
+public String toString() {
+	return "Mapped classpath for jar file " + this.file.getPath(); //$NON-NLS-1$
+}
+
+/*
+ * Answer the file into which the index of this jar is cached, or null.
+ */
+private File getIndexFile() {
+	String cacheFolder = System.getProperty("jdt.compiler.jarIndexCache"); //$NON-NLS-1$
+	if (cacheFolder == null) return null;
+	String key = Integer.toHexString(getPath().hashCode()) + '_' + this.file.getName() + ".idx"; //$NON-NLS-1$
+	return new File(cacheFolder, key);
+}
+
+private boolean readIndex() {
+	File indexFile = getIndexFile();
+	if (indexFile == null || !indexFile.isFile()) return false;
+	DataInputStream input = null;
+	try {
+		input = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+		if (input.readInt() != INDEX_VERSION
+				|| !getPath().equals(input.readUTF())
+				|| input.readLong() != this.fileLength
+				|| input.readLong() != this.fileLastModified) {
+			return false;
+		}
+		int count = input.readInt();
+		int[] hashes = new int[count];
+		int[] offsets = new int[count];
+		for (int i = 0; i < count; i++) {
+			hashes[i] = input.readInt();
+			offsets[i] = input.readInt();
+		}
+		String[] packages = new String[input.readInt()];
+		for (int i = 0, max = packages.length; i < max; i++) {
+			packages[i] = input.readUTF();
+		}
+		this.entryHashes = hashes;
+		this.entryOffsets = offsets;
+		this.packageNames = packages;
+		return true;
+	} catch (IOException e) {
+		return false;
+	} finally {
+		if (input != null) {
+			try {
+				input.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+}
+
+private void writeIndex() {
+	File indexFile = getIndexFile();
+	if (indexFile == null) return;
+	File tempFile = new File(indexFile.getPath() + ".tmp"); //$NON-NLS-1$
+	DataOutputStream output = null;
+	try {
+		indexFile.getParentFile().mkdirs();
+		output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+		output.writeInt(INDEX_VERSION);
+		output.writeUTF(getPath());
+		output.writeLong(this.fileLength);
+		output.writeLong(this.fileLastModified);
+		int count = this.entryHashes.length;
+		output.writeInt(count);
+		for (int i = 0; i < count; i++) {
+			output.writeInt(this.entryHashes[i]);
+			output.writeInt(this.entryOffsets[i]);
+		}
+		output.writeInt(this.packageNames.length);
+		for (int i = 0, max = this.packageNames.length; i < max; i++) {
+			output.writeUTF(this.packageNames[i]);
+		}
+		output.close();
+		output = null;
+		indexFile.delete();
+		tempFile.renameTo(indexFile);
+	} catch (IOException e) {
+		// the index will be built again next time
+	} finally {
+		if (output != null) {
+			try {
+				output.close();
+			} catch (IOException e) {
+				// ignore
+			}
+			tempFile.delete();
+		}
+	}
+}
+}
@@ -0,0 +1,366 @@
+/*******************************************************************************
+ * Copyright (c) 2009 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.jdt.internal.compiler.batch;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import org.eclipse.jdt.internal.compiler.env.NameEnvironmentAnswer;
+import org.eclipse.jdt.internal.compiler.impl.CompilerStats;
+import org.eclipse.jdt.internal.compiler.util.Util;
+
+/**
+ * Collects the data behind <code>-time:profile &lt;file&gt;</code>: the time
+ * and the allocations each compilation unit costs in each phase, and the
+ * number and latency of the lookups answered by each classpath entry. The
+ * result is written as JSON, while the most expensive units and entries are
+ * summarized through the {@link Main.Logger}.
+ * <p>The diet parse of all units happens in one go before the units get
+ * processed; its time only shows in the totals. The parse time reported per
+ * unit is the one of its method bodies.</p>
+ */
+public class CompilationProfiler {
+
+	public static final int TOP_COUNT = 10;
+
+	public static class UnitProfile {
+		public String fileName;
+		public long parseTime, resolveTime, analyzeTime, generateTime, writeTime;
+		public long allocatedBytes;
+
+		UnitProfile(String fileName) {
+			this.fileName = fileName;
+		}
+		public long totalTime() {
+			return this.parseTime + this.resolveTime + this.analyzeTime + this.generateTime + this.writeTime;
+		}
+	}
+
+	public static class ClasspathProfile {
+		public String path;
+		public int lookupsCount, hitsCount;
+		// in nanoseconds
+		public long lookupTime;
+
+		ClasspathProfile(String path) {
+			this.path = path;
+		}
+	}
+
+	/**
+	 * Classpath entry that records the lookups it answers on behalf of the
+	 * entry it wraps.
+	 */
+	static class ProfilingClasspath implements FileSystem.Classpath {
+		FileSystem.Classpath classpath;
+		ClasspathProfile profile;
+
+		ProfilingClasspath(FileSystem.Classpath classpath, ClasspathProfile profile) {
+			this.classpath = classpath;
+			this.profile = profile;
+		}
+		public char[][][] findTypeNames(String qualifiedPackageName) {
+			return this.classpath.findTypeNames(qualifiedPackageName);
+		}
+		public NameEnvironmentAnswer findClass(char[] typeName, String qualifiedPackageName, String qualifiedBinaryFileName) {
+			long start = System.nanoTime();
+			NameEnvironmentAnswer answer = this.classpath.findClass(typeName, qualifiedPackageName, qualifiedBinaryFileName);
+			record(start, answer != null);
+			return answer;
+		}
+		public NameEnvironmentAnswer findClass(char[] typeName, String qualifiedPackageName, String qualifiedBinaryFileName, boolean asBinaryOnly) {
+			long start = System.nanoTime();
+			NameEnvironmentAnswer answer = this.classpath.findClass(typeName, qualifiedPackageName, qualifiedBinaryFileName, asBinaryOnly);
+			record(start, answer != null);
+			return answer;
+		}
+		public boolean isPackage(String qualifiedPackageName) {
+			long start = System.nanoTime();
+			boolean isPackage = this.classpath.isPackage(qualifiedPackageName);
+			record(start, isPackage);
+			return isPackage;
+		}
+		public List fetchLinkedJars(FileSystem.ClasspathSectionProblemReporter problemReporter) {
+			return this.classpath.fetchLinkedJars(problemReporter);
+		}
+		public void reset() {
+			this.classpath.reset();
+		}
+		public char[] normalizedPath() {
+			return this.classpath.normalizedPath();
+		}
+		public String getPath() {
+			return this.classpath.getPath();
+		}
+		public void initialize() throws IOException {
+			this.classpath.initialize();
+		}
+		private void record(long start, boolean hit) {
+			long time = System.nanoTime() - start;
+			synchronized (this.profile) {
+				this.profile.lookupsCount++;
+				if (hit) this.profile.hitsCount++;
+				this.profile.lookupTime += time;
+			}
+		}
+		public String toString() {
+			return this.classpath.toString();
+		}
+	}
+
+	private static Method allocatedBytesMethod;
+	private static Object threadBean;
+	static {
+		try {
+			Class factory = Class.forName("java.lang.management.ManagementFactory"); //$NON-NLS-1$
+			Object bean = factory.getMethod("getThreadMXBean", (Class[]) null).invoke(null, (Object[]) null); //$NON-NLS-1$
+			Class beanClass = Class.forName("com.sun.management.ThreadMXBean"); //$NON-NLS-1$
+			if (beanClass.isInstance(bean)) {
+				allocatedBytesMethod = beanClass.getMethod("getThreadAllocatedBytes", new Class[] { Long.TYPE }); //$NON-NLS-1$
+				threadBean = bean;
+			}
+		} catch (Exception e) {
+			// allocations are estimated from the heap usage
+		} catch (LinkageError e) {
+			// allocations are estimated from the heap usage
+		}
+	}
+
+	public String profileFileName;
+	// file name -> UnitProfile
+	private HashMap units = new HashMap();
+	private ArrayList classpaths = new ArrayList();
+	public long allocationsTotal;
+
+public CompilationProfiler(String profileFileName) {
+	this.profileFileName = profileFileName;
+}
+
+/**
+ * Answer the given classpath entries wrapped so that their lookups get recorded.
+ */
+public FileSystem.Classpath[] wrap(FileSystem.Classpath[] entries) {
+	int length = entries.length;
+	FileSystem.Classpath[] result = new FileSystem.Classpath[length];
+	for (int i = 0; i < length; i++) {
+		FileSystem.Classpath entry = entries[i];
+		if (entry instanceof ProfilingClasspath) {
+			result[i] = entry;
+			continue;
+		}
+		ClasspathProfile profile = new ClasspathProfile(entry.getPath());
+		this.classpaths.add(profile);
+		result[i] = new ProfilingClasspath(entry, profile);
+	}
+	return result;
+}
+
+/**
+ * Forget about the previous compilation, e.g. between two repetitions.
+ */
+public synchronized void reset() {
+	this.units.clear();
+	this.allocationsTotal = 0;
+	for (int i = 0, max = this.classpaths.size(); i < max; i++) {
+		ClasspathProfile profile = (ClasspathProfile) this.classpaths.get(i);
+		profile.lookupsCount = profile.hitsCount = 0;
+		profile.lookupTime = 0;
+	}
+}
+
+private synchronized UnitProfile getUnit(char[] fileName) {
+	String name = new String(fileName);
+	UnitProfile unit = (UnitProfile) this.units.get(name);
+	if (unit == null) {
+		unit = new UnitProfile(name);
+		this.units.put(name, unit);
+	}
+	return unit;
+}
+
+/**
+ * Answer a snapshot of the given stats and of the allocations of the current
+ * thread, to be handed back to {@link #endProcessing(char[], long[], CompilerStats)}.
+ */
+public long[] startProcessing(CompilerStats stats) {
+	return new long[] {
+		stats.parseTime,
+		stats.resolveTime,
+		stats.analyzeTime,
+		stats.generateTime,
+		allocatedBytes()
+	};
+}
+
+/**
+ * Charge the given unit with the time spent in each phase since the snapshot.
+ */
+public void endProcessing(char[] fileName, long[] snapshot, CompilerStats stats) {
+	long allocated = Math.max(0, allocatedBytes() - snapshot[4]);
+	UnitProfile unit = getUnit(fileName);
+	synchronized (this) {
+		unit.parseTime += stats.parseTime - snapshot[0];
+		unit.resolveTime += stats.resolveTime - snapshot[1];
+		unit.analyzeTime += stats.analyzeTime - snapshot[2];
+		unit.generateTime += stats.generateTime - snapshot[3];
+		unit.allocatedBytes += allocated;
+		this.allocationsTotal += allocated;
+	}
+}
+
+/**
+ * Charge the given unit with the time spent writing its class files.
+ */
+public void recordWrite(char[] fileName, long time) {
+	UnitProfile unit = getUnit(fileName);
+	synchronized (this) {
+		unit.writeTime += time;
+	}
+}
+
+/*
+ * Answer the number of bytes allocated so far by the current thread when the
+ * VM can tell, else an estimate based on the heap usage.
+ */
+static long allocatedBytes() {
+	if (allocatedBytesMethod != null) {
+		try {
+			Long value = (Long) allocatedBytesMethod.invoke(threadBean, new Object[] { Long.valueOf(Thread.currentThread().getId()) });
+			return value.longValue();
+		} catch (Exception e) {
+			allocatedBytesMethod = null;
+		}
+	}
+	Runtime runtime = Runtime.getRuntime();
+	return runtime.totalMemory() - runtime.freeMemory();
+}
+
+/**
+ * Answer the units sorted by decreasing total time.
+ */
+public synchronized UnitProfile[] getUnits() {
+	UnitProfile[] result = new UnitProfile[this.units.size()];
+	this.units.values().toArray(result);
+	Arrays.sort(result, new Comparator() {
+		public int compare(Object o1, Object o2) {
+			long t1 = ((UnitProfile) o1).totalTime();
+			long t2 = ((UnitProfile) o2).totalTime();
+			return t1 < t2 ? 1 : (t1 == t2 ? 0 : -1);
+		}
+	});
+	return result;
+}
+
+/**
+ * Answer the classpath entries sorted by decreasing lookup time.
+ */
+public synchronized ClasspathProfile[] getClasspaths() {
+	ClasspathProfile[] result = new ClasspathProfile[this.classpaths.size()];
+	this.classpaths.toArray(result);
+	Arrays.sort(result, new Comparator() {
+		public int compare(Object o1, Object o2) {
+			long t1 = ((ClasspathProfile) o1).lookupTime;
+			long t2 = ((ClasspathProfile) o2).lookupTime;
+			return t1 < t2 ? 1 : (t1 == t2 ? 0 : -1);
+		}
+	});
+	return result;
+}
+
+/**
+ * Write the profile of the last compilation as JSON.
+ */
+public void write(CompilerStats stats) throws IOException {
+	Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(this.profileFileName), Util.UTF_8));
+	try {
+		writer.write("{\n  \"totals\": {"); //$NON-NLS-1$
+		writer.write("\"elapsed\": " + stats.elapsedTime()); //$NON-NLS-1$
+		writer.write(", \"lines\": " + stats.lineCount); //$NON-NLS-1$
+		writer.write(", \"parse\": " + stats.parseTime); //$NON-NLS-1$
+		writer.write(", \"resolve\": " + stats.resolveTime); //$NON-NLS-1$
+		writer.write(", \"analyze\": " + stats.analyzeTime); //$NON-NLS-1$
+		writer.write(", \"generate\": " + stats.generateTime); //$NON-NLS-1$
+		writer.write(", \"allocatedBytes\": " + this.allocationsTotal); //$NON-NLS-1$
+		writer.write(", \"allocationsExact\": " + (allocatedBytesMethod != null)); //$NON-NLS-1$
+		writer.write("},\n  \"units\": ["); //$NON-NLS-1$
+		UnitProfile[] unitProfiles = getUnits();
+		for (int i = 0, max = unitProfiles.length; i < max; i++) {
+			UnitProfile unit = unitProfiles[i];
+			writer.write(i == 0 ? "\n    {" : ",\n    {"); //$NON-NLS-1$ //$NON-NLS-2$
+			writer.write("\"file\": "); //$NON-NLS-1$
+			writeString(writer, unit.fileName);
+			writer.write(", \"parse\": " + unit.parseTime); //$NON-NLS-1$
+			writer.write(", \"resolve\": " + unit.resolveTime); //$NON-NLS-1$
+			writer.write(", \"analyze\": " + unit.analyzeTime); //$NON-NLS-1$
+			writer.write(", \"generate\": " + unit.generateTime); //$NON-NLS-1$
+			writer.write(", \"write\": " + unit.writeTime); //$NON-NLS-1$
+			writer.write(", \"allocatedBytes\": " + unit.allocatedBytes); //$NON-NLS-1$
+			writer.write('}');
+		}
+		writer.write("\n  ],\n  \"classpath\": ["); //$NON-NLS-1$
+		ClasspathProfile[] classpathProfiles = getClasspaths();
+		for (int i = 0, max = classpathProfiles.length; i < max; i++) {
+			ClasspathProfile classpath = classpathProfiles[i];
+			writer.write(i == 0 ? "\n    {" : ",\n    {"); //$NON-NLS-1$ //$NON-NLS-2$
+			writer.write("\"path\": "); //$NON-NLS-1$
+			writeString(writer, classpath.path);
+			writer.write(", \"lookups\": " + classpath.lookupsCount); //$NON-NLS-1$
+			writer.write(", \"hits\": " + classpath.hitsCount); //$NON-NLS-1$
+			writer.write(", \"lookupNanos\": " + classpath.lookupTime); //$NON-NLS-1$
+			writer.write('}');
+		}
+		writer.write("\n  ]\n}\n"); //$NON-NLS-1$
+	} finally {
+		writer.close();
+	}
+}
+
+private static void writeString(Writer writer, String value) throws IOException {
+	writer.write('"');
+	for (int i = 0, length = value.length(); i < length; i++) {
+		char c = value.charAt(i);
+		switch (c) {
+			case '"' :
+			case '\\' :
+				writer.write('\\');
+				writer.write(c);
+				break;
+			case '\n' :
+				writer.write("\\n"); //$NON-NLS-1$
+				break;
+			case '\r' :
+				writer.write("\\r"); //$NON-NLS-1$
+				break;
+			case '\t' :
+				writer.write("\\t"); //$NON-NLS-1$
+				break;
+			default :
+				if (c < 0x20) {
+					String hex = Integer.toHexString(c);
+					writer.write("\\u0000".substring(0, 6 - hex.length())); //$NON-NLS-1$
+					writer.write(hex);
+				} else {
+					writer.write(c);
+				}
+		}
+	}
+	writer.write('"');
+}
+}
@@ -0,0 +1,371 @@
+/*******************************************************************************
+ * Copyright (c) 2009 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.jdt.internal.compiler.batch;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.eclipse.jdt.internal.compiler.impl.CompilerStats;
+import org.eclipse.jdt.internal.compiler.util.Util;
+
+/**
+ * Long-lived batch compiler process.
+ * <p>Compile requests are read either from the standard input, or from
+ * connections accepted on a loopback socket when started with
+ * <code>-port &lt;port&gt;</code>. Each request is a single line holding the
+ * command line arguments of the batch compiler. The answer is made of the
+ * lines the compiler printed, each prefixed with <code>out:</code> or
+ * <code>err:</code>, followed by a <code>stats:</code> line and by a
+ * <code>result:</code> line set to <code>ok</code> or <code>failed</code>.
+ * A <code>shutdown</code> request stops the process.</p>
+ * <p>A <code>cwd:&lt;directory&gt;</code> line gives the working directory of
+ * the client. Relative paths are resolved against the working directory of
+ * the daemon, so the compile requests that follow are refused if the two
+ * differ.</p>
+ * <p>On a socket, the first line of each connection must be
+ * <code>auth:&lt;secret&gt;</code>, and a <code>cwd:</code> line must come
+ * before any compile request. The secret is generated at startup and written
+ * to <code>.jdt-compiler-daemon-&lt;port&gt;</code> in the home directory of
+ * the daemon user, readable by that user only. The file is deleted when the
+ * daemon stops.</p>
+ * <p>The classpath entries are kept open between requests, so that jar files
+ * are opened and indexed once for as long as they do not change on disk.
+ * Each request still gets its own compiler and lookup environment, while
+ * requests that repeat the arguments of a previous one reuse its decoded
+ * configuration.</p>
+ */
+public class CompilerDaemon {
+
+	static final String SHUTDOWN = "shutdown"; //$NON-NLS-1$
+	static final String OUT_PREFIX = "out:"; //$NON-NLS-1$
+	static final String ERR_PREFIX = "err:"; //$NON-NLS-1$
+	static final String STATS_PREFIX = "stats:"; //$NON-NLS-1$
+	static final String RESULT_PREFIX = "result:"; //$NON-NLS-1$
+	static final String AUTH_PREFIX = "auth:"; //$NON-NLS-1$
+	static final String CWD_PREFIX = "cwd:"; //$NON-NLS-1$
+	static final String SECRET_FILE_PREFIX = ".jdt-compiler-daemon-"; //$NON-NLS-1$
+
+	static class WarmClasspath {
+		FileSystem.Classpath classpath;
+		long lastModified;
+		long length;
+
+		WarmClasspath(FileSystem.Classpath classpath, File file) {
+			this.classpath = classpath;
+			this.lastModified = file.lastModified();
+			this.length = file.length();
+		}
+		boolean isUpToDate(File file) {
+			return file.lastModified() == this.lastModified && file.length() == this.length;
+		}
+	}
+
+	/**
+	 * Batch compiler that takes its jar entries from the daemon cache and
+	 * leaves them open once done.
+	 */
+	class DaemonMain extends Main {
+		DaemonMain(PrintWriter outWriter, PrintWriter errWriter) {
+			super(outWriter, errWriter, false /* systemExit */, null /* options */, null /* progress */);
+		}
+		public FileSystem getLibraryAccess() {
+			return new FileSystem(warmUp(this.checkedClasspaths), this.filenames);
+		}
+		protected void releaseLibraryAccess(FileSystem environment) {
+			release(environment);
+		}
+		protected boolean isConfigurationCacheEnabled() {
+			// requests are served one at a time
+			return true;
+		}
+	}
+
+	// classpath path -> WarmClasspath
+	HashMap warmClasspaths = new HashMap();
+	int requestsCount;
+
+public static void main(String[] argv) {
+	CompilerDaemon daemon = new CompilerDaemon();
+	try {
+		if (argv.length == 2 && argv[0].equals("-port")) { //$NON-NLS-1$
+			daemon.serve(Integer.parseInt(argv[1]));
+		} else {
+			daemon.serve(System.in, System.out);
+		}
+	} catch (IOException e) {
+		e.printStackTrace();
+	} finally {
+		daemon.shutdown();
+	}
+}
+
+/**
+ * Accept connections on the loopback interface until a shutdown request is
+ * received. Connections are served one at a time, and must authenticate with
+ * the secret written into the secret file.
+ */
+public void serve(int port) throws IOException {
+	ServerSocket serverSocket = new ServerSocket(port, 0, InetAddress.getByName(null));
+	File secretFile = new File(System.getProperty("user.home"), SECRET_FILE_PREFIX + serverSocket.getLocalPort()); //$NON-NLS-1$
+	try {
+		String secret = writeSecret(secretFile);
+		while (true) {
+			Socket socket = serverSocket.accept();
+			try {
+				if (!serve(socket.getInputStream(), socket.getOutputStream(), secret)) {
+					return;
+				}
+			} finally {
+				socket.close();
+			}
+		}
+	} finally {
+		secretFile.delete();
+		serverSocket.close();
+	}
+}
+
+/*
+ * Generate a new secret and store it into the given file, which only the
+ * daemon user can read. Answer the secret.
+ */
+private static String writeSecret(File secretFile) throws IOException {
+	byte[] bytes = new byte[16];
+	new SecureRandom().nextBytes(bytes);
+	StringBuffer buffer = new StringBuffer(bytes.length * 2);
+	for (int i = 0, max = bytes.length; i < max; i++) {
+		int value = bytes[i] & 0xFF;
+		if (value < 0x10) buffer.append('0');
+		buffer.append(Integer.toHexString(value));
+	}
+	String secret = buffer.toString();
+	secretFile.delete();
+	if (!secretFile.createNewFile()) {
+		throw new IOException(secretFile.getPath());
+	}
+	// restrict the file before the secret gets into it
+	if (!secretFile.setReadable(false, false)
+			|| !secretFile.setReadable(true, true)
+			|| !secretFile.setWritable(false, false)
+			|| !secretFile.setWritable(true, true)) {
+		secretFile.delete();
+		throw new IOException(secretFile.getPath());
+	}
+	OutputStream output = new FileOutputStream(secretFile);
+	try {
+		output.write(secret.getBytes(Util.UTF_8));
+	} finally {
+		output.close();
+	}
+	return secret;
+}
+
+/**
+ * Process the requests read from the given stream until it is exhausted.
+ * Answer false if a shutdown request was received.
+ */
+public boolean serve(InputStream input, OutputStream output) throws IOException {
+	return serve(input, output, null);
+}
+
+/*
+ * Same as serve(InputStream, OutputStream), for a client that must first
+ * send the given secret, then its working directory, unless the secret is
+ * null.
+ */
+private boolean serve(InputStream input, OutputStream output, String secret) throws IOException {
+	BufferedReader reader = new BufferedReader(new InputStreamReader(input, Util.UTF_8));
+	PrintWriter writer = new PrintWriter(new OutputStreamWriter(output, Util.UTF_8));
+	if (secret != null) {
+		String line = reader.readLine();
+		if (line == null
+				|| !line.startsWith(AUTH_PREFIX)
+				|| !MessageDigest.isEqual(
+					line.substring(AUTH_PREFIX.length()).trim().getBytes(Util.UTF_8),
+					secret.getBytes(Util.UTF_8))) {
+			writer.println(RESULT_PREFIX + "denied"); //$NON-NLS-1$
+			writer.flush();
+			return true;
+		}
+	}
+	// on the standard input, the client started the daemon: trust its directory until told otherwise
+	boolean sameWorkingDirectory = secret == null;
+	String line;
+	while ((line = reader.readLine()) != null) {
+		line = line.trim();
+		if (line.length() == 0) continue;
+		if (line.equals(SHUTDOWN)) {
+			writer.println(RESULT_PREFIX + "ok"); //$NON-NLS-1$
+			writer.flush();
+			return false;
+		}
+		if (line.startsWith(CWD_PREFIX)) {
+			sameWorkingDirectory = isWorkingDirectory(line.substring(CWD_PREFIX.length()));
+			writer.println(RESULT_PREFIX + (sameWorkingDirectory ? "ok" : "failed")); //$NON-NLS-1$ //$NON-NLS-2$
+			writer.flush();
+			continue;
+		}
+		if (!sameWorkingDirectory) {
+			writer.println(ERR_PREFIX + "The working directory of the client is not " //$NON-NLS-1$
+				+ System.getProperty("user.dir")); //$NON-NLS-1$
+			writer.println(RESULT_PREFIX + "failed"); //$NON-NLS-1$
+			writer.flush();
+			continue;
+		}
+		compile(Main.tokenize(line), writer);
+		writer.flush();
+	}
+	return true;
+}
+
+/*
+ * Answer true if the given directory is the working directory of the daemon,
+ * against which relative paths get resolved.
+ */
+private static boolean isWorkingDirectory(String directory) {
+	File file = new File(directory);
+	if (!file.isAbsolute()) return false;
+	try {
+		return file.getCanonicalFile().equals(
+			new File(System.getProperty("user.dir")).getCanonicalFile()); //$NON-NLS-1$
+	} catch (IOException e) {
+		return false;
+	}
+}
+
+/**
+ * Run one compilation and write its answer to the given writer.
+ */
+public boolean compile(String[] commandLineArguments, PrintWriter writer) {
+	StringWriter out = new StringWriter();
+	StringWriter err = new StringWriter();
+	DaemonMain main = new DaemonMain(new PrintWriter(out), new PrintWriter(err));
+	boolean succeeded = main.compile(commandLineArguments);
+	this.requestsCount++;
+	printLines(OUT_PREFIX, out.toString(), writer);
+	printLines(ERR_PREFIX, err.toString(), writer);
+	CompilerStats stats = main.batchCompiler == null ? null : main.batchCompiler.stats;
+	if (stats != null) {
+		writer.println(STATS_PREFIX
+			+ "request=" + this.requestsCount //$NON-NLS-1$
+			+ " elapsed=" + (System.currentTimeMillis() - main.startTime) //$NON-NLS-1$
+			+ " lines=" + stats.lineCount //$NON-NLS-1$
+			+ " parse=" + stats.parseTime //$NON-NLS-1$
+			+ " resolve=" + stats.resolveTime //$NON-NLS-1$
+			+ " analyze=" + stats.analyzeTime //$NON-NLS-1$
+			+ " generate=" + stats.generateTime //$NON-NLS-1$
+			+ " classfiles=" + main.exportedClassFilesCounter //$NON-NLS-1$
+			+ " warmClasspaths=" + this.warmClasspaths.size()); //$NON-NLS-1$
+	}
+	writer.println(RESULT_PREFIX + (succeeded ? "ok" : "failed")); //$NON-NLS-1$ //$NON-NLS-2$
+	return succeeded;
+}
+
+private static void printLines(String prefix, String text, PrintWriter writer) {
+	int start = 0, length = text.length();
+	while (start < length) {
+		int end = text.indexOf('\n', start);
+		if (end == -1) end = length;
+		int lineEnd = end > start && text.charAt(end - 1) == '\r' ? end - 1 : end;
+		writer.println(prefix + text.substring(start, lineEnd));
+		start = end + 1;
+	}
+}
+
+/**
+ * Substitute the given classpath entries with the cached ones when they
+ * designate the same unchanged jar with the same access rules and output.
+ */
+synchronized FileSystem.Classpath[] warmUp(FileSystem.Classpath[] classpaths) {
+	int length = classpaths.length;
+	FileSystem.Classpath[] result = new FileSystem.Classpath[length];
+	for (int i = 0; i < length; i++) {
+		FileSystem.Classpath classpath = classpaths[i];
+		result[i] = classpath;
+		CompilationProfiler.ProfilingClasspath profilingClasspath = null;
+		if (classpath instanceof CompilationProfiler.ProfilingClasspath) {
+			// -time:profile wraps the entries: warm up the wrapped one
+			profilingClasspath = (CompilationProfiler.ProfilingClasspath) classpath;
+			classpath = profilingClasspath.classpath;
+		}
+		if (!(classpath instanceof ClasspathJar || classpath instanceof ClasspathMappedJar)) continue;
+		String path = classpath.getPath();
+		File file = new File(path);
+		WarmClasspath warm = (WarmClasspath) this.warmClasspaths.get(path);
+		if (warm != null && warm.isUpToDate(file) && isCompatible(warm.classpath, classpath)) {
+			result[i] = profilingClasspath == null
+				? warm.classpath
+				: new CompilationProfiler.ProfilingClasspath(warm.classpath, profilingClasspath.profile);
+			continue;
+		}
+		if (warm != null) {
+			// jar changed on disk, or different rules: drop the stale index
+			warm.classpath.reset();
+		}
+		this.warmClasspaths.put(path, new WarmClasspath(classpath, file));
+	}
+	return result;
+}
+
+private static boolean isCompatible(FileSystem.Classpath cached, FileSystem.Classpath requested) {
+	ClasspathLocation cachedLocation = (ClasspathLocation) cached;
+	ClasspathLocation requestedLocation = (ClasspathLocation) requested;
+	return equals(cachedLocation.accessRuleSet, requestedLocation.accessRuleSet)
+		&& equals(cachedLocation.destinationPath, requestedLocation.destinationPath);
+}
+
+private static boolean equals(Object o1, Object o2) {
+	return o1 == null ? o2 == null : o1.equals(o2);
+}
+
+/**
+ * Release the entries of the given environment that are not kept warm.
+ */
+synchronized void release(FileSystem environment) {
+	FileSystem.Classpath[] classpaths = environment.classpaths;
+	for (int i = 0, max = classpaths.length; i < max; i++) {
+		FileSystem.Classpath classpath = classpaths[i];
+		if (classpath == null) continue;
+		if (classpath instanceof CompilationProfiler.ProfilingClasspath) {
+			classpath = ((CompilationProfiler.ProfilingClasspath) classpath).classpath;
+		}
+		WarmClasspath warm = (WarmClasspath) this.warmClasspaths.get(classpath.getPath());
+		if (warm == null || warm.classpath != classpath) {
+			classpath.reset();
+		}
+	}
+}
+
+/**
+ * Close all the cached classpath entries.
+ */
+public synchronized void shutdown() {
+	for (Iterator iterator = this.warmClasspaths.values().iterator(); iterator.hasNext(); ) {
+		((WarmClasspath) iterator.next()).classpath.reset();
+	}
+	this.warmClasspaths.clear();
+}
+}
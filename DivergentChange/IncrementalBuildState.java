@@ -0,0 +1,476 @@
+/*******************************************************************************
+ * Copyright (c) 2009 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.jdt.internal.compiler.batch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import org.eclipse.jdt.internal.compiler.ClassFile;
+import org.eclipse.jdt.internal.compiler.CompilationResult;
+import org.eclipse.jdt.internal.compiler.util.SuffixConstants;
+
+/**
+ * State persisted between two runs of the batch compiler in incremental mode
+ * (<code>-incremental &lt;stateDir&gt;</code>).
+ * <p>For each compilation unit, the state records the digest of its contents,
+ * the types it produced, the simple names it references and where its class
+ * files were written. The produced class files are also kept in the state
+ * directory, so that the next build can resolve the types of unchanged units
+ * without recompiling them, and can restore missing output files verbatim.</p>
+ */
+public class IncrementalBuildState {
+
+	static final int VERSION = 1;
+	static final String STATE_FILE_NAME = "state.dat"; //$NON-NLS-1$
+	static final String CLASSES_FOLDER_NAME = "classes"; //$NON-NLS-1$
+
+	static class UnitState {
+		String fileName;
+		// null if the unit needs to be compiled again on the next run
+		String contentDigest;
+		// slash separated names of the produced types, e.g. p/X$Y
+		String[] typeNames;
+		String[] simpleNameReferences;
+		// null if no class file is written out for this unit
+		String outputPath;
+		boolean generatePackagesStructure;
+
+		UnitState(String fileName) {
+			this.fileName = fileName;
+			this.typeNames = NO_STRINGS;
+			this.simpleNameReferences = NO_STRINGS;
+		}
+	}
+
+	static final String[] NO_STRINGS = new String[0];
+
+	File stateDirectory;
+	File classesFolder;
+	String configurationKey;
+	// file name -> UnitState, as recorded by the previous run then updated by this one
+	HashMap units;
+	// file name -> digest of the current contents
+	HashMap currentDigests;
+	// units that were part of the previous run but are no longer part of this one
+	ArrayList removedUnits;
+	// units that are not compiled again by this run
+	ArrayList unchangedUnits;
+
+/**
+ * Answer the state stored into the given directory, or an empty state if none
+ * can be read or if it was produced using a different configuration. An empty
+ * state triggers a full build; the class files kept by the discarded state are
+ * deleted, so that none of them shadows the output of that build.
+ */
+public static IncrementalBuildState read(File stateDirectory, String configurationKey) {
+	IncrementalBuildState state = new IncrementalBuildState(stateDirectory, configurationKey);
+	File stateFile = new File(stateDirectory, STATE_FILE_NAME);
+	if (!stateFile.isFile()) {
+		state.discard();
+		return state;
+	}
+	DataInputStream in = null;
+	try {
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)));
+		if (in.readInt() != VERSION || !configurationKey.equals(in.readUTF())) {
+			state.discard();
+			return state;
+		}
+		for (int i = 0, max = in.readInt(); i < max; i++) {
+			UnitState unit = new UnitState(in.readUTF());
+			if (in.readBoolean()) {
+				unit.contentDigest = in.readUTF();
+			}
+			if (in.readBoolean()) {
+				unit.outputPath = in.readUTF();
+				unit.generatePackagesStructure = in.readBoolean();
+			}
+			unit.typeNames = readStrings(in);
+			unit.simpleNameReferences = readStrings(in);
+			state.units.put(unit.fileName, unit);
+		}
+	} catch (IOException e) {
+		// corrupted state: rebuild everything
+		state.discard();
+	} finally {
+		if (in != null) {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+	return state;
+}
+
+static String[] readStrings(DataInputStream in) throws IOException {
+	int length = in.readInt();
+	if (length == 0) return NO_STRINGS;
+	String[] result = new String[length];
+	for (int i = 0; i < length; i++) {
+		result[i] = in.readUTF();
+	}
+	return result;
+}
+
+static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+	out.writeInt(strings.length);
+	for (int i = 0, max = strings.length; i < max; i++) {
+		out.writeUTF(strings[i]);
+	}
+}
+
+static String simpleName(String typeName) {
+	int start = Math.max(typeName.lastIndexOf('/'), typeName.lastIndexOf('$')) + 1;
+	return start == 0 ? typeName : typeName.substring(start);
+}
+
+IncrementalBuildState(File stateDirectory, String configurationKey) {
+	this.stateDirectory = stateDirectory;
+	this.classesFolder = new File(stateDirectory, CLASSES_FOLDER_NAME);
+	this.configurationKey = configurationKey;
+	this.units = new HashMap();
+	this.currentDigests = new HashMap();
+	this.removedUnits = new ArrayList();
+	this.unchangedUnits = new ArrayList();
+}
+
+/**
+ * Forget about the previous runs: drop the recorded units and delete the class
+ * files kept for them.
+ */
+public void discard() {
+	this.units.clear();
+	this.currentDigests.clear();
+	this.removedUnits.clear();
+	this.unchangedUnits.clear();
+	deleteContents(this.classesFolder);
+}
+
+private static void deleteContents(File folder) {
+	File[] children = folder.listFiles();
+	if (children == null) return;
+	for (int i = 0, max = children.length; i < max; i++) {
+		File child = children[i];
+		if (child.isDirectory()) {
+			deleteContents(child);
+		}
+		child.delete();
+	}
+}
+
+/**
+ * Answer the folder into which the class files of the previous runs are kept.
+ * It must be searched before the regular classpath so that the types of the
+ * units that are not compiled again resolve to their last compiled version.
+ */
+public File getClassesFolder() {
+	return this.classesFolder;
+}
+
+/**
+ * Answer the subset of the given units that must be compiled: the units that
+ * were added or changed since the previous run, the units that failed to
+ * compile, and transitively the units that reference a type produced by any of
+ * them, or by a removed unit. The output of the other units is restored from
+ * the state if it went missing.
+ */
+public CompilationUnit[] selectAffectedUnits(CompilationUnit[] sourceUnits) throws IOException {
+	int length = sourceUnits.length;
+	boolean[] affected = new boolean[length];
+	HashSet changedSimpleNames = new HashSet();
+	HashSet currentFileNames = new HashSet(length);
+	for (int i = 0; i < length; i++) {
+		String fileName = new String(sourceUnits[i].getFileName());
+		currentFileNames.add(fileName);
+		String digest = digest(new File(fileName));
+		this.currentDigests.put(fileName, digest);
+		UnitState unit = (UnitState) this.units.get(fileName);
+		if (unit == null) {
+			affected[i] = true;
+			// the main type of a new unit may shadow another type of the same name
+			String mainTypeName = new File(fileName).getName();
+			int suffixIndex = mainTypeName.lastIndexOf('.');
+			changedSimpleNames.add(suffixIndex == -1 ? mainTypeName : mainTypeName.substring(0, suffixIndex));
+		} else if (!digest.equals(unit.contentDigest)) {
+			affected[i] = true;
+			addSimpleNames(unit, changedSimpleNames);
+		}
+	}
+	for (Iterator iterator = this.units.values().iterator(); iterator.hasNext(); ) {
+		UnitState unit = (UnitState) iterator.next();
+		if (!currentFileNames.contains(unit.fileName)) {
+			this.removedUnits.add(unit);
+			addSimpleNames(unit, changedSimpleNames);
+			iterator.remove();
+		}
+	}
+	// propagate the changes to the dependents until a fixed point is reached
+	boolean changed = !changedSimpleNames.isEmpty();
+	while (changed) {
+		changed = false;
+		for (int i = 0; i < length; i++) {
+			if (affected[i]) continue;
+			UnitState unit = (UnitState) this.units.get(new String(sourceUnits[i].getFileName()));
+			String[] references = unit.simpleNameReferences;
+			for (int j = 0, max = references.length; j < max; j++) {
+				if (changedSimpleNames.contains(references[j])) {
+					affected[i] = true;
+					addSimpleNames(unit, changedSimpleNames);
+					changed = true;
+					break;
+				}
+			}
+		}
+	}
+	for (int i = 0, max = this.removedUnits.size(); i < max; i++) {
+		UnitState unit = (UnitState) this.removedUnits.get(i);
+		deleteClassFiles(unit, unit.typeNames);
+	}
+	int count = 0;
+	CompilationUnit[] result = new CompilationUnit[length];
+	for (int i = 0; i < length; i++) {
+		UnitState unit = (UnitState) this.units.get(new String(sourceUnits[i].getFileName()));
+		if (affected[i]) {
+			result[count++] = sourceUnits[i];
+			if (unit != null) {
+				// stale binaries must not be found while the unit gets compiled again
+				for (int j = 0, max = unit.typeNames.length; j < max; j++) {
+					stateClassFile(unit.typeNames[j]).delete();
+				}
+			}
+		} else {
+			this.unchangedUnits.add(unit);
+			restoreClassFiles(unit);
+		}
+	}
+	if (count != length) {
+		System.arraycopy(result, 0, (result = new CompilationUnit[count]), 0, count);
+	}
+	return result;
+}
+
+private void addSimpleNames(UnitState unit, HashSet simpleNames) {
+	for (int i = 0, max = unit.typeNames.length; i < max; i++) {
+		simpleNames.add(simpleName(unit.typeNames[i]));
+	}
+}
+
+/**
+ * Record the types produced by the given result and keep a copy of their class
+ * files. This must happen before the class files get released to the pool.
+ */
+public void recordResult(CompilationResult result, boolean mustRecompile) throws IOException {
+	String fileName = new String(result.compilationUnit.getFileName());
+	UnitState previous = (UnitState) this.units.get(fileName);
+	UnitState unit = new UnitState(fileName);
+	unit.contentDigest = mustRecompile ? null : (String) this.currentDigests.get(fileName);
+	ClassFile[] classFiles = result.getClassFiles();
+	int length = classFiles.length;
+	unit.typeNames = new String[length];
+	for (int i = 0; i < length; i++) {
+		ClassFile classFile = classFiles[i];
+		unit.typeNames[i] = new String(classFile.fileName());
+		writeFile(stateClassFile(unit.typeNames[i]), classFile.getBytes());
+	}
+	char[][] references = result.simpleNameReferences;
+	if (references != null) {
+		unit.simpleNameReferences = new String[references.length];
+		for (int i = 0, max = references.length; i < max; i++) {
+			unit.simpleNameReferences[i] = new String(references[i]);
+		}
+	}
+	if (previous != null) {
+		// types that are no longer produced by the unit must disappear from the output
+		HashSet newTypeNames = new HashSet(length);
+		for (int i = 0; i < length; i++) {
+			newTypeNames.add(unit.typeNames[i]);
+		}
+		ArrayList obsolete = new ArrayList();
+		for (int i = 0, max = previous.typeNames.length; i < max; i++) {
+			if (!newTypeNames.contains(previous.typeNames[i])) {
+				obsolete.add(previous.typeNames[i]);
+			}
+		}
+		if (!obsolete.isEmpty()) {
+			String[] obsoleteNames = new String[obsolete.size()];
+			obsolete.toArray(obsoleteNames);
+			deleteClassFiles(previous, obsoleteNames);
+		}
+	}
+	this.units.put(fileName, unit);
+}
+
+/**
+ * Record where the class files of the given unit got written.
+ */
+public void recordOutputLocation(CompilationResult result, String outputPath, boolean generatePackagesStructure) {
+	UnitState unit = (UnitState) this.units.get(new String(result.compilationUnit.getFileName()));
+	if (unit != null) {
+		unit.outputPath = outputPath;
+		unit.generatePackagesStructure = generatePackagesStructure;
+	}
+}
+
+/**
+ * Add the class files of the units that were not compiled again to the given
+ * jar, which gets rewritten as a whole on each run. Answer the number of class
+ * files added.
+ */
+public int writeUnchangedClassFiles(ClassFileJarWriter jarWriter) throws IOException {
+	int count = 0;
+	for (int i = 0, max = this.unchangedUnits.size(); i < max; i++) {
+		UnitState unit = (UnitState) this.unchangedUnits.get(i);
+		for (int j = 0, typesCount = unit.typeNames.length; j < typesCount; j++) {
+			String typeName = unit.typeNames[j];
+			jarWriter.write(typeName + SuffixConstants.SUFFIX_STRING_class, readFile(stateClassFile(typeName)));
+			count++;
+		}
+	}
+	return count;
+}
+
+private void restoreClassFiles(UnitState unit) throws IOException {
+	if (unit.outputPath == null) return;
+	for (int i = 0, max = unit.typeNames.length; i < max; i++) {
+		File outputFile = outputClassFile(unit, unit.typeNames[i]);
+		if (!outputFile.exists()) {
+			writeFile(outputFile, readFile(stateClassFile(unit.typeNames[i])));
+		}
+	}
+}
+
+private void deleteClassFiles(UnitState unit, String[] typeNames) {
+	for (int i = 0, max = typeNames.length; i < max; i++) {
+		stateClassFile(typeNames[i]).delete();
+		if (unit.outputPath != null) {
+			outputClassFile(unit, typeNames[i]).delete();
+		}
+	}
+}
+
+private File stateClassFile(String typeName) {
+	return new File(this.classesFolder,
+		typeName.replace('/', File.separatorChar) + SuffixConstants.SUFFIX_STRING_class);
+}
+
+private File outputClassFile(UnitState unit, String typeName) {
+	String relativeName = unit.generatePackagesStructure
+		? typeName.replace('/', File.separatorChar)
+		: typeName.substring(typeName.lastIndexOf('/') + 1);
+	return new File(unit.outputPath, relativeName + SuffixConstants.SUFFIX_STRING_class);
+}
+
+/**
+ * Save the state into its directory for the next run.
+ */
+public void write() throws IOException {
+	this.stateDirectory.mkdirs();
+	File stateFile = new File(this.stateDirectory, STATE_FILE_NAME);
+	File tempFile = new File(this.stateDirectory, STATE_FILE_NAME + ".tmp"); //$NON-NLS-1$
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+	try {
+		out.writeInt(VERSION);
+		out.writeUTF(this.configurationKey);
+		out.writeInt(this.units.size());
+		for (Iterator iterator = this.units.values().iterator(); iterator.hasNext(); ) {
+			UnitState unit = (UnitState) iterator.next();
+			out.writeUTF(unit.fileName);
+			out.writeBoolean(unit.contentDigest != null);
+			if (unit.contentDigest != null) {
+				out.writeUTF(unit.contentDigest);
+			}
+			out.writeBoolean(unit.outputPath != null);
+			if (unit.outputPath != null) {
+				out.writeUTF(unit.outputPath);
+				out.writeBoolean(unit.generatePackagesStructure);
+			}
+			writeStrings(out, unit.typeNames);
+			writeStrings(out, unit.simpleNameReferences);
+		}
+	} finally {
+		out.close();
+	}
+	stateFile.delete();
+	if (!tempFile.renameTo(stateFile)) {
+		throw new IOException(stateFile.getPath());
+	}
+}
+
+static String digest(File file) throws IOException {
+	MessageDigest messageDigest;
+	try {
+		messageDigest = MessageDigest.getInstance("SHA-1"); //$NON-NLS-1$
+	} catch (NoSuchAlgorithmException e) {
+		throw new IOException(e.getMessage());
+	}
+	InputStream in = new FileInputStream(file);
+	try {
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			messageDigest.update(buffer, 0, read);
+		}
+	} finally {
+		in.close();
+	}
+	byte[] bytes = messageDigest.digest();
+	StringBuffer buffer = new StringBuffer(bytes.length * 2);
+	for (int i = 0, max = bytes.length; i < max; i++) {
+		int value = bytes[i] & 0xFF;
+		buffer.append(Character.forDigit(value >> 4, 16)).append(Character.forDigit(value & 0xF, 16));
+	}
+	return buffer.toString();
+}
+
+static byte[] readFile(File file) throws IOException {
+	InputStream in = new FileInputStream(file);
+	try {
+		byte[] contents = new byte[(int) file.length()];
+		int offset = 0;
+		int read;
+		while (offset < contents.length && (read = in.read(contents, offset, contents.length - offset)) != -1) {
+			offset += read;
+		}
+		return contents;
+	} finally {
+		in.close();
+	}
+}
+
+static void writeFile(File file, byte[] contents) throws IOException {
+	File parent = file.getParentFile();
+	if (parent != null && !parent.exists()) {
+		parent.mkdirs();
+	}
+	OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+	try {
+		out.write(contents);
+	} finally {
+		out.close();
+	}
+}
+}
@@ -13,8 +13,10 @@
  *******************************************************************************/
 package org.eclipse.jdt.internal.compiler.batch;
 
+import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
@@ -34,7 +36,9 @@ import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -55,6 +59,7 @@ import org.eclipse.jdt.internal.compiler.Compiler;
 import org.eclipse.jdt.internal.compiler.ICompilerRequestor;
 import org.eclipse.jdt.internal.compiler.IErrorHandlingPolicy;
 import org.eclipse.jdt.internal.compiler.IProblemFactory;
+import org.eclipse.jdt.internal.compiler.ast.CompilationUnitDeclaration;
 import org.eclipse.jdt.internal.compiler.batch.FileSystem.Classpath;
 import org.eclipse.jdt.internal.compiler.classfmt.ClassFileConstants;
 import org.eclipse.jdt.internal.compiler.env.AccessRestriction;
@@ -83,6 +88,16 @@ public class Main implements ProblemSeverities, SuffixConstants {
 		private PrintWriter out;
 		private HashMap parameters;
 		int tagBits;
+		// extra problems already reported during the current compilation, see spillExtraProblems
+		private int loggedExtraProblemsCount;
+		private int spilledExtraProblemsCount;
+		private int spilledErrorsAndWarningsCount;
+		// xml form of the spilled extra problems, waiting for their place in the log
+		private File extraProblemsSpillFile;
+		private GenericXMLWriter extraProblemsSpill;
+		// contents of the last source file read to report problems that came without their unit source
+		private char[] cachedSourceFileName;
+		private char[] cachedSource;
 		private static final String CLASS = "class"; //$NON-NLS-1$
 		private static final String CLASS_FILE = "classfile"; //$NON-NLS-1$
 		private static final String CLASSPATH = "classpath"; //$NON-NLS-1$
@@ -105,12 +120,14 @@ public class Main implements ProblemSeverities, SuffixConstants {
 		private static final String EXTRA_PROBLEMS = "extra_problems"; //$NON-NLS-1$
 		private static final HashtableOfInt FIELD_TABLE = new HashtableOfInt();
 		private static final String KEY = "key"; //$NON-NLS-1$
+		private static final int LOG_BUFFER_SIZE = 64 * 1024;
 		private static final String MESSAGE = "message"; //$NON-NLS-1$
 		private static final String NUMBER_OF_CLASSFILES = "number_of_classfiles"; //$NON-NLS-1$
 		private static final String NUMBER_OF_ERRORS = "errors"; //$NON-NLS-1$
 		private static final String NUMBER_OF_LINES = "number_of_lines"; //$NON-NLS-1$
 		private static final String NUMBER_OF_PROBLEMS = "problems"; //$NON-NLS-1$
 		private static final String NUMBER_OF_TASKS = "tasks"; //$NON-NLS-1$
+		private static final String NUMBER_OF_UNCHANGED_CLASSFILES = "number_of_unchanged_classfiles"; //$NON-NLS-1$
 		private static final String NUMBER_OF_WARNINGS = "warnings"; //$NON-NLS-1$
 		private static final String OPTION = "option"; //$NON-NLS-1$
 		private static final String OPTIONS = "options"; //$NON-NLS-1$
@@ -258,19 +275,14 @@ public class Main implements ProblemSeverities, SuffixConstants {
 			//sanity .....
 			int startPosition = problem.getSourceStart();
 			int endPosition = problem.getSourceEnd();
+			if ((startPosition > endPosition)
+				|| ((startPosition < 0) && (endPosition < 0)))
+				return Messages.problem_noSourceInformation;
 			if (unitSource == null) {
-				if (problem.getOriginatingFileName() != null) {
-					try {
-						unitSource = Util.getFileCharContent(new File(new String(problem.getOriginatingFileName())), null);
-					} catch (IOException e) {
-						// ignore;
-					}
-				}
+				unitSource = getOriginatingSource(problem);
 			}
 			int length = unitSource == null ? 0 : unitSource.length;
-			if ((startPosition > endPosition)
-				|| ((startPosition < 0) && (endPosition < 0))
-				|| length == 0)
+			if (length == 0)
 				return Messages.problem_noSourceInformation;
 
 			StringBuffer errorBuffer = new StringBuffer();
@@ -321,14 +333,10 @@ public class Main implements ProblemSeverities, SuffixConstants {
 			//sanity .....
 			int startPosition = problem.getSourceStart();
 			int endPosition = problem.getSourceEnd();
-			if (unitSource == null) {
-				if (problem.getOriginatingFileName() != null) {
-					try {
-						unitSource = Util.getFileCharContent(new File(new String(problem.getOriginatingFileName())), null);
-					} catch(IOException e) {
-						// ignore
-					}
-				}
+			if (unitSource == null
+					&& startPosition <= endPosition
+					&& (startPosition >= 0 || endPosition >= 0)) {
+				unitSource = getOriginatingSource(problem);
 			}
 			int length = unitSource== null ? 0 : unitSource.length;
 			if ((startPosition > endPosition)
@@ -378,6 +386,25 @@ public class Main implements ProblemSeverities, SuffixConstants {
 			}
 		}
 
+		/*
+		 * Answer the contents of the file the given problem originates from, or
+		 * null. Problems that come without their unit source tend to come in
+		 * series for the same file, hence the last file read is kept.
+		 */
+		private char[] getOriginatingSource(CategorizedProblem problem) {
+			char[] fileName = problem.getOriginatingFileName();
+			if (fileName == null) return null;
+			if (!CharOperation.equals(fileName, this.cachedSourceFileName)) {
+				this.cachedSourceFileName = fileName;
+				try {
+					this.cachedSource = Util.getFileCharContent(new File(new String(fileName)), null);
+				} catch (IOException e) {
+					this.cachedSource = null;
+				}
+			}
+			return this.cachedSource;
+		}
+
 		private String getFieldName(int id) {
 			int key2 = id & IProblem.IgnoreCategoriesMask;
 			if (key2 == 0) {
@@ -597,40 +624,122 @@ public class Main implements ProblemSeverities, SuffixConstants {
 
 		public void loggingExtraProblems(Main currentMain) {
 			ArrayList problems = currentMain.extraProblems;
-			final int count = problems.size();
-			int localErrorCount = 0;
-			int localProblemCount = 0;
-			if (count != 0) {
-				int errors = 0;
-				int warnings = 0;
-				for (int i = 0; i < count; i++) {
-					CategorizedProblem problem = (CategorizedProblem) problems.get(i);
-					if (problem != null) {
-						currentMain.globalProblemsCount++;
-						logExtraProblem(problem, localProblemCount, currentMain.globalProblemsCount);
-						localProblemCount++;
-						if (problem.isError()) {
-							localErrorCount++;
-							errors++;
-							currentMain.globalErrorsCount++;
-						} else if (problem.isWarning()) {
-							currentMain.globalWarningsCount++;
-							warnings++;
-						}
+			int errorsAndWarnings = this.spilledErrorsAndWarningsCount + printExtraProblems(problems, currentMain);
+			if ((this.tagBits & Logger.XML) != 0) {
+				if (errorsAndWarnings != 0) {
+					startLoggingExtraProblems(this.spilledExtraProblemsCount + problems.size());
+					if (this.extraProblemsSpill != null) {
+						this.extraProblemsSpill.close();
+						copySpilledExtraProblems();
 					}
+					logXmlExtraProblems(problems, currentMain);
+					endLoggingExtraProblems();
 				}
-				if ((this.tagBits & Logger.XML) != 0) {
-					if ((errors + warnings) != 0) {
-						startLoggingExtraProblems(count);
-						for (int i = 0; i < count; i++) {
-							CategorizedProblem problem = (CategorizedProblem) problems.get(i);
-							if (problem!= null) {
-								if (problem.getID() != IProblem.Task) {
-									logXmlExtraProblem(problem, localProblemCount, currentMain.globalProblemsCount);
-								}
-							}
-						}
-						endLoggingExtraProblems();
+			}
+			if (this.extraProblemsSpill != null) {
+				this.extraProblemsSpill.close();
+				this.extraProblemsSpillFile.delete();
+			}
+			this.extraProblemsSpill = null;
+			this.extraProblemsSpillFile = null;
+			this.loggedExtraProblemsCount = 0;
+			this.spilledExtraProblemsCount = 0;
+			this.spilledErrorsAndWarningsCount = 0;
+			this.cachedSourceFileName = null;
+			this.cachedSource = null;
+		}
+
+		/**
+		 * Report the extra problems collected so far, so that they need not be
+		 * kept until the end of the compilation. Their xml form is written to a
+		 * temporary file until {@link #loggingExtraProblems(Main)} gets to insert
+		 * it at its place in the log.
+		 * @return false if the problems could not be spilled and must be kept
+		 */
+		public boolean spillExtraProblems(Main currentMain) {
+			if ((this.tagBits & Logger.XML) != 0 && this.extraProblemsSpill == null) {
+				try {
+					this.extraProblemsSpillFile = File.createTempFile("extra_problems", ".xml"); //$NON-NLS-1$ //$NON-NLS-2$
+					this.extraProblemsSpill = new GenericXMLWriter(
+						new BufferedWriter(new OutputStreamWriter(new FileOutputStream(this.extraProblemsSpillFile), Util.UTF_8), LOG_BUFFER_SIZE),
+						Util.LINE_SEPARATOR,
+						false);
+				} catch (IOException e) {
+					if (this.extraProblemsSpillFile != null) {
+						this.extraProblemsSpillFile.delete();
+						this.extraProblemsSpillFile = null;
+					}
+					return false;
+				}
+			}
+			ArrayList problems = currentMain.extraProblems;
+			int errorsAndWarnings = printExtraProblems(problems, currentMain);
+			if (this.extraProblemsSpill != null) {
+				PrintWriter currentLog = this.log;
+				this.log = this.extraProblemsSpill;
+				try {
+					logXmlExtraProblems(problems, currentMain);
+				} finally {
+					this.log = currentLog;
+				}
+			}
+			this.spilledExtraProblemsCount += problems.size();
+			this.spilledErrorsAndWarningsCount += errorsAndWarnings;
+			return true;
+		}
+
+		/*
+		 * Print the given extra problems and update the global counters.
+		 * Answer the number of errors and warnings among them.
+		 */
+		private int printExtraProblems(ArrayList problems, Main currentMain) {
+			int errorsAndWarnings = 0;
+			for (int i = 0, count = problems.size(); i < count; i++) {
+				CategorizedProblem problem = (CategorizedProblem) problems.get(i);
+				if (problem != null) {
+					currentMain.globalProblemsCount++;
+					logExtraProblem(problem, this.loggedExtraProblemsCount, currentMain.globalProblemsCount);
+					this.loggedExtraProblemsCount++;
+					if (problem.isError()) {
+						errorsAndWarnings++;
+						currentMain.globalErrorsCount++;
+					} else if (problem.isWarning()) {
+						currentMain.globalWarningsCount++;
+						errorsAndWarnings++;
+					}
+				}
+			}
+			return errorsAndWarnings;
+		}
+
+		private void logXmlExtraProblems(ArrayList problems, Main currentMain) {
+			for (int i = 0, count = problems.size(); i < count; i++) {
+				CategorizedProblem problem = (CategorizedProblem) problems.get(i);
+				if (problem != null) {
+					if (problem.getID() != IProblem.Task) {
+						logXmlExtraProblem(problem, this.loggedExtraProblemsCount, currentMain.globalProblemsCount);
+					}
+				}
+			}
+		}
+
+		private void copySpilledExtraProblems() {
+			InputStreamReader reader = null;
+			try {
+				reader = new InputStreamReader(new FileInputStream(this.extraProblemsSpillFile), Util.UTF_8);
+				char[] buffer = new char[8192];
+				int read;
+				while ((read = reader.read(buffer)) != -1) {
+					this.log.write(buffer, 0, read);
+				}
+			} catch (IOException e) {
+				// the spilled problems were printed already, only their xml form is lost
+			} finally {
+				if (reader != null) {
+					try {
+						reader.close();
+					} catch (IOException e) {
+						// ignore
 					}
 				}
 			}
@@ -665,6 +774,22 @@ public class Main implements ProblemSeverities, SuffixConstants {
 				}));
 		}
 
+		/**
+		 * @param stateDirectory the directory holding the incremental build state
+		 * @param e the failure met while reading or writing the state
+		 */
+		public void logIncrementalStateFailure(String stateDirectory, IOException e) {
+			if ((this.tagBits & Logger.XML) != 0) {
+				this.parameters.put(Logger.MESSAGE, this.main.bind("output.incrementalStateFailure", //$NON-NLS-1$
+					stateDirectory,
+					e.getMessage()));
+				printTag(Logger.ERROR_TAG, this.parameters, true, true);
+			}
+			this.printlnErr(this.main.bind("output.incrementalStateFailure", //$NON-NLS-1$
+				stateDirectory,
+				e.getMessage()));
+		}
+
 		/**
 		 * @param exportedClassFilesCounter
 		 */
@@ -681,6 +806,22 @@ public class Main implements ProblemSeverities, SuffixConstants {
 			}
 		}
 
+		/**
+		 * @param unchangedClassFilesCounter
+		 */
+		public void logNumberOfUnchangedClassFiles(int unchangedClassFilesCounter) {
+			if ((this.tagBits & Logger.XML) != 0) {
+				this.parameters.put(Logger.VALUE, new Integer(unchangedClassFilesCounter));
+				printTag(Logger.NUMBER_OF_UNCHANGED_CLASSFILES, this.parameters, true, true);
+			}
+			if (unchangedClassFilesCounter == 1) {
+				printlnOut(this.main.bind("compile.oneClassFileUnchanged")); //$NON-NLS-1$
+			} else {
+				printlnOut(this.main.bind("compile.severalClassFilesUnchanged", //$NON-NLS-1$
+					String.valueOf(unchangedClassFilesCounter)));
+			}
+		}
+
 		/**
 		 * @param options the given compiler options
 		 */
@@ -941,6 +1082,47 @@ public class Main implements ProblemSeverities, SuffixConstants {
 			}
 		}
 
+		/**
+		 * Print the units and the classpath entries that cost the most.
+		 * @param profiler the profile of the last compilation
+		 */
+		public void logProfile(CompilationProfiler profiler) {
+			CompilationProfiler.UnitProfile[] units = profiler.getUnits();
+			int max = Math.min(units.length, CompilationProfiler.TOP_COUNT);
+			if (max != 0) {
+				printlnOut(this.main.bind("compile.profile.units", String.valueOf(max))); //$NON-NLS-1$
+				for (int i = 0; i < max; i++) {
+					CompilationProfiler.UnitProfile unit = units[i];
+					printlnOut(this.main.bind("compile.profile.unit", //$NON-NLS-1$
+						new String[] {
+							unit.fileName,
+							String.valueOf(unit.totalTime()),
+							String.valueOf(unit.parseTime),
+							String.valueOf(unit.resolveTime),
+							String.valueOf(unit.analyzeTime),
+							String.valueOf(unit.generateTime),
+							String.valueOf(unit.writeTime),
+							String.valueOf(unit.allocatedBytes / 1024),
+						}));
+				}
+			}
+			CompilationProfiler.ClasspathProfile[] classpaths = profiler.getClasspaths();
+			max = Math.min(classpaths.length, CompilationProfiler.TOP_COUNT);
+			if (max != 0) {
+				printlnOut(this.main.bind("compile.profile.classpaths", String.valueOf(max))); //$NON-NLS-1$
+				for (int i = 0; i < max; i++) {
+					CompilationProfiler.ClasspathProfile classpath = classpaths[i];
+					printlnOut(this.main.bind("compile.profile.classpath", //$NON-NLS-1$
+						new String[] {
+							classpath.path,
+							String.valueOf(classpath.lookupsCount),
+							String.valueOf(classpath.hitsCount),
+							String.valueOf(classpath.lookupTime / 1000000),
+						}));
+				}
+			}
+		}
+
 		/**
 		 * Print the usage of the compiler
 		 * @param usage
@@ -1121,6 +1303,9 @@ public class Main implements ProblemSeverities, SuffixConstants {
 			if (this.main.exportedClassFilesCounter != 0
 					&& (this.main.showProgress || isTimed || this.main.verbose)) {
 				logNumberOfClassFilesGenerated(this.main.exportedClassFilesCounter);
+				if (this.main.unchangedClassFilesCounter != 0) {
+					logNumberOfUnchangedClassFiles(this.main.unchangedClassFilesCounter);
+				}
 			}
 			if ((this.tagBits & Logger.XML) != 0) {
 				endTag(Logger.STATS);
@@ -1144,7 +1329,7 @@ public class Main implements ProblemSeverities, SuffixConstants {
 				int index = logFileName.lastIndexOf('.');
 				if (index != -1) {
 					if (logFileName.substring(index).toLowerCase().equals(".xml")) { //$NON-NLS-1$
-						this.log = new GenericXMLWriter(new OutputStreamWriter(new FileOutputStream(logFileName, false), Util.UTF_8), Util.LINE_SEPARATOR, true);
+						this.log = new GenericXMLWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFileName, false), Util.UTF_8), LOG_BUFFER_SIZE), Util.LINE_SEPARATOR, true);
 						this.tagBits |= Logger.XML;
 						// insert time stamp as comment
 						this.log.println("<!-- " + dateFormat.format(date) + " -->");//$NON-NLS-1$//$NON-NLS-2$
@@ -1154,11 +1339,11 @@ public class Main implements ProblemSeverities, SuffixConstants {
 						this.parameters.put(Logger.COMPILER_COPYRIGHT, this.main.bind("compiler.copyright")); //$NON-NLS-1$
 						printTag(Logger.COMPILER, this.parameters, true, false);
 					} else {
-						this.log = new PrintWriter(new FileOutputStream(logFileName, false));
+						this.log = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFileName, false)), LOG_BUFFER_SIZE));
 						this.log.println("# " + dateFormat.format(date));//$NON-NLS-1$
 					}
 				} else {
-					this.log = new PrintWriter(new FileOutputStream(logFileName, false));
+					this.log = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFileName, false)), LOG_BUFFER_SIZE));
 					this.log.println("# " + dateFormat.format(date));//$NON-NLS-1$
 				}
 			} catch (FileNotFoundException e) {
@@ -1243,6 +1428,75 @@ public class Main implements ProblemSeverities, SuffixConstants {
 			return bundle;
 		}
 	}
+	/**
+	 * Outcome of {@link Main#configure(String[])} for a given command line, so
+	 * that a compiler invoked again with the very same arguments can skip
+	 * decoding them. Only the paths are cached, not the classpath entries: each
+	 * compiler sets up its own entries from them, against the current state of
+	 * the file system. A configuration is only reused under the system
+	 * properties it was decoded with.
+	 */
+	static class Configuration {
+		static final int MAX_CACHED_CONFIGURATIONS = 16;
+		// command line -> Configuration, least recently used first
+		private static LinkedHashMap Cache = new LinkedHashMap(MAX_CACHED_CONFIGURATIONS, 0.75f, true);
+
+		Map initialOptions;
+		Map systemProperties;
+		Map options;
+		String[] filenames;
+		String[] encodings;
+		String[] destinationPaths;
+		String[] classNames;
+		String destinationPath;
+		// as passed to setPaths, null if not specified
+		String[] bootclasspaths;
+		String sourcepathClasspathArg;
+		String[] sourcepathClasspaths;
+		String[] classpaths;
+		String[] extdirsClasspaths;
+		String[] endorsedDirClasspaths;
+		String customEncoding;
+		String[] expandedCommandLine;
+		String incrementalStateDirectory;
+		String jarDestinationPath;
+		boolean jarStoredEntries;
+		boolean jarSortedEntries;
+		int maxProblems;
+		int maxRepetition;
+		boolean proceedOnError;
+		boolean produceRefInfo;
+		boolean systemExitWhenFinished;
+		int timing;
+		boolean timingStats;
+		int loggerTagBits;
+
+		static synchronized Configuration get(String commandLine) {
+			return (Configuration) Cache.get(commandLine);
+		}
+		static String[] toArray(ArrayList list) {
+			if (list == null) return null;
+			String[] result = new String[list.size()];
+			list.toArray(result);
+			return result;
+		}
+		static ArrayList toList(String[] array) {
+			if (array == null) return null;
+			ArrayList result = new ArrayList(Math.max(array.length, DEFAULT_SIZE_CLASSPATH));
+			for (int i = 0, max = array.length; i < max; i++) {
+				result.add(array[i]);
+			}
+			return result;
+		}
+		static synchronized void put(String commandLine, Configuration configuration) {
+			Cache.put(commandLine, configuration);
+			if (Cache.size() > MAX_CACHED_CONFIGURATIONS) {
+				Iterator iterator = Cache.keySet().iterator();
+				iterator.next();
+				iterator.remove();
+			}
+		}
+	}
 	// javadoc analysis tuning
 	boolean enableJavadocOn;
 
@@ -1271,6 +1525,18 @@ public class Main implements ProblemSeverities, SuffixConstants {
 	private boolean didSpecifyTarget;
 	public String[] encodings;
 	public int exportedClassFilesCounter;
+	// class files among the exported ones that were already up to date on disk
+	public int unchangedClassFilesCounter;
+	// directory holding the state of the previous run in incremental mode, null otherwise
+	public String incrementalStateDirectory;
+	IncrementalBuildState incrementalState;
+	// asynchronous class file output, null when class files are written on the requestor thread
+	BatchClassFileWriter classFileWriter;
+	// jar file into which class files are written (-d:jar), null when writing to folders
+	public String jarDestinationPath;
+	public boolean jarStoredEntries;
+	public boolean jarSortedEntries;
+	ClassFileJarWriter jarWriter;
 	public String[] filenames;
 	public String[] classNames;
 	// overrides of destinationPath on a directory argument basis
@@ -1305,12 +1571,16 @@ public class Main implements ProblemSeverities, SuffixConstants {
 
 	public int timing = TIMING_DISABLED;
 	public CompilerStats[] compilerStats;
+	// per unit and per classpath entry timings (-time:profile), null otherwise
+	public CompilationProfiler profiler;
 	public boolean verbose = false;
 	private String[] expandedCommandLine;
 
 	private PrintWriter err;
 
 	ArrayList extraProblems;
+	// extra problems beyond this number get reported before the end of the compilation
+	static final int MAX_BUFFERED_PROBLEMS = Math.max(1, Integer.getInteger("jdt.compiler.maxBufferedProblems", 1000).intValue()); //$NON-NLS-1$
 	public final static String bundleName = "org.eclipse.jdt.internal.compiler.batch.messages"; //$NON-NLS-1$
 	// two uses: recognize 'none' in options; code the singleton none
 	// for the '-d none' option (wherever it may be found)
@@ -1318,6 +1588,171 @@ public class Main implements ProblemSeverities, SuffixConstants {
 
 	public static final String NONE = "none"; //$NON-NLS-1$
 
+	// options matched as a whole by configure(String[]); the ones taking a
+	// suffix, like -warn:, are still tested one after the other
+	static final int ARG_LOG = 1;
+	static final int ARG_REPEAT = 2;
+	static final int ARG_MAX_PROBLEMS = 3;
+	static final int ARG_SOURCE = 4;
+	static final int ARG_ENCODING = 5;
+	static final int ARG_1_3 = 6;
+	static final int ARG_1_4 = 7;
+	static final int ARG_1_5 = 8;
+	static final int ARG_1_6 = 9;
+	static final int ARG_1_7 = 10;
+	static final int ARG_D = 11;
+	static final int ARG_CLASSPATH = 12;
+	static final int ARG_BOOTCLASSPATH = 13;
+	static final int ARG_SOURCEPATH = 14;
+	static final int ARG_EXTDIRS = 15;
+	static final int ARG_ENDORSEDDIRS = 16;
+	static final int ARG_PROGRESS = 17;
+	static final int ARG_PROCEED_ON_ERROR = 18;
+	static final int ARG_TIME = 19;
+	static final int ARG_TIME_DETAIL = 20;
+	static final int ARG_TIME_PROFILE = 21;
+	static final int ARG_VERSION = 22;
+	static final int ARG_SHOWVERSION = 23;
+	static final int ARG_DEPRECATION = 24;
+	static final int ARG_HELP = 25;
+	static final int ARG_HELP_WARN = 26;
+	static final int ARG_NO_EXIT = 27;
+	static final int ARG_VERBOSE = 28;
+	static final int ARG_REFERENCE_INFO = 29;
+	static final int ARG_INLINE_JSR = 30;
+	static final int ARG_TARGET = 31;
+	static final int ARG_PRESERVE_ALL_LOCALS = 32;
+	static final int ARG_ENABLE_JAVADOC = 33;
+	static final int ARG_XEMACS = 34;
+	static final int ARG_PROCESSORPATH = 35;
+	static final int ARG_PROCESSOR = 36;
+	static final int ARG_PROC_ONLY = 37;
+	static final int ARG_PROC_NONE = 38;
+	static final int ARG_S = 39;
+	static final int ARG_XPRINT = 40;
+	static final int ARG_O = 41;
+	static final int ARG_CLASS_NAMES = 42;
+	static final int ARG_INCREMENTAL = 43;
+	static final HashMap COMMAND_LINE_OPTIONS = new HashMap();
+	// -warn tokens that set the severity of a single problem -> its option key;
+	// the others are handled by handleWarningToken(String, boolean) case by case
+	static final HashMap WARNING_TOKEN_OPTIONS = new HashMap();
+	static {
+		COMMAND_LINE_OPTIONS.put("-log", new Integer(ARG_LOG)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-repeat", new Integer(ARG_REPEAT)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-maxProblems", new Integer(ARG_MAX_PROBLEMS)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-source", new Integer(ARG_SOURCE)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-encoding", new Integer(ARG_ENCODING)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-1.3", new Integer(ARG_1_3)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-1.4", new Integer(ARG_1_4)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-1.5", new Integer(ARG_1_5)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-5", new Integer(ARG_1_5)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-5.0", new Integer(ARG_1_5)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-1.6", new Integer(ARG_1_6)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-6", new Integer(ARG_1_6)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-6.0", new Integer(ARG_1_6)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-1.7", new Integer(ARG_1_7)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-7", new Integer(ARG_1_7)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-7.0", new Integer(ARG_1_7)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-d", new Integer(ARG_D)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-classpath", new Integer(ARG_CLASSPATH)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-cp", new Integer(ARG_CLASSPATH)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-bootclasspath", new Integer(ARG_BOOTCLASSPATH)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-sourcepath", new Integer(ARG_SOURCEPATH)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-extdirs", new Integer(ARG_EXTDIRS)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-endorseddirs", new Integer(ARG_ENDORSEDDIRS)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-progress", new Integer(ARG_PROGRESS)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-proceedOnError", new Integer(ARG_PROCEED_ON_ERROR)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-time", new Integer(ARG_TIME)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-time:detail", new Integer(ARG_TIME_DETAIL)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-time:profile", new Integer(ARG_TIME_PROFILE)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-version", new Integer(ARG_VERSION)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-v", new Integer(ARG_VERSION)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-showversion", new Integer(ARG_SHOWVERSION)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-deprecation", new Integer(ARG_DEPRECATION)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-help", new Integer(ARG_HELP)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-?", new Integer(ARG_HELP)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-help:warn", new Integer(ARG_HELP_WARN)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-?:warn", new Integer(ARG_HELP_WARN)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-noExit", new Integer(ARG_NO_EXIT)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-verbose", new Integer(ARG_VERBOSE)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-referenceInfo", new Integer(ARG_REFERENCE_INFO)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-inlineJSR", new Integer(ARG_INLINE_JSR)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-target", new Integer(ARG_TARGET)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-preserveAllLocals", new Integer(ARG_PRESERVE_ALL_LOCALS)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-enableJavadoc", new Integer(ARG_ENABLE_JAVADOC)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-Xemacs", new Integer(ARG_XEMACS)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-processorpath", new Integer(ARG_PROCESSORPATH)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-processor", new Integer(ARG_PROCESSOR)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-proc:only", new Integer(ARG_PROC_ONLY)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-proc:none", new Integer(ARG_PROC_NONE)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-s", new Integer(ARG_S)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-XprintProcessorInfo", new Integer(ARG_XPRINT)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-XprintRounds", new Integer(ARG_XPRINT)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-O", new Integer(ARG_O)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-classNames", new Integer(ARG_CLASS_NAMES)); //$NON-NLS-1$
+		COMMAND_LINE_OPTIONS.put("-incremental", new Integer(ARG_INCREMENTAL)); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("assertIdentifier", CompilerOptions.OPTION_ReportAssertIdentifier); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("boxing", CompilerOptions.OPTION_ReportAutoboxing); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("constructorName", CompilerOptions.OPTION_ReportMethodWithConstructorName); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("conditionAssign", CompilerOptions.OPTION_ReportPossibleAccidentalBooleanAssignment); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("compareIdentical", CompilerOptions.OPTION_ReportComparingIdentical); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("charConcat", CompilerOptions.OPTION_ReportNoImplicitStringConversion); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("dep-ann", CompilerOptions.OPTION_ReportMissingDeprecatedAnnotation); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("discouraged", CompilerOptions.OPTION_ReportDiscouragedReference); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("enumSwitch", CompilerOptions.OPTION_ReportIncompleteEnumSwitch); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("incomplete-switch", CompilerOptions.OPTION_ReportIncompleteEnumSwitch); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("emptyBlock", CompilerOptions.OPTION_ReportUndocumentedEmptyBlock); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("enumIdentifier", CompilerOptions.OPTION_ReportEnumIdentifier); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("fieldHiding", CompilerOptions.OPTION_ReportFieldHiding); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("finalBound", CompilerOptions.OPTION_ReportFinalParameterBound); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("finally", CompilerOptions.OPTION_ReportFinallyBlockNotCompletingNormally); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("forbidden", CompilerOptions.OPTION_ReportForbiddenReference); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("fallthrough", CompilerOptions.OPTION_ReportFallthroughCase); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("hashCode", CompilerOptions.OPTION_ReportMissingHashCodeMethod); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("indirectStatic", CompilerOptions.OPTION_ReportIndirectStaticAccess); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("intfNonInherited", CompilerOptions.OPTION_ReportIncompatibleNonInheritedInterfaceMethod); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("interfaceNonInherited", CompilerOptions.OPTION_ReportIncompatibleNonInheritedInterfaceMethod); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("intfAnnotation", CompilerOptions.OPTION_ReportAnnotationSuperInterface); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("intfRedundant", CompilerOptions.OPTION_ReportRedundantSuperinterface); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("localHiding", CompilerOptions.OPTION_ReportLocalVariableHiding); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("maskedCatchBlock", CompilerOptions.OPTION_ReportHiddenCatchBlock); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("maskedCatchBlocks", CompilerOptions.OPTION_ReportHiddenCatchBlock); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("nls", CompilerOptions.OPTION_ReportNonExternalizedStringLiteral); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("noEffectAssign", CompilerOptions.OPTION_ReportNoEffectAssignment); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("noImplicitStringConversion", CompilerOptions.OPTION_ReportNoImplicitStringConversion); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("over-ann", CompilerOptions.OPTION_ReportMissingOverrideAnnotation); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("pkgDefaultMethod", CompilerOptions.OPTION_ReportOverridingPackageDefaultMethod); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("packageDefaultMethod", CompilerOptions.OPTION_ReportOverridingPackageDefaultMethod); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("paramAssign", CompilerOptions.OPTION_ReportParameterAssignment); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("raw", CompilerOptions.OPTION_ReportRawTypeReference); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("redundantSuperinterface", CompilerOptions.OPTION_ReportRedundantSuperinterface); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("syntheticAccess", CompilerOptions.OPTION_ReportSyntheticAccessEmulation); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("synthetic-access", CompilerOptions.OPTION_ReportSyntheticAccessEmulation); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("staticReceiver", CompilerOptions.OPTION_ReportNonStaticAccessToStatic); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("semicolon", CompilerOptions.OPTION_ReportEmptyStatement); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("serial", CompilerOptions.OPTION_ReportMissingSerialVersion); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("super", CompilerOptions.OPTION_ReportOverridingMethodWithoutSuperInvocation); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("typeHiding", CompilerOptions.OPTION_ReportTypeParameterHiding); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("unusedLocal", CompilerOptions.OPTION_ReportUnusedLocal); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("unusedLocals", CompilerOptions.OPTION_ReportUnusedLocal); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("unusedArgument", CompilerOptions.OPTION_ReportUnusedParameter); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("unusedArguments", CompilerOptions.OPTION_ReportUnusedParameter); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("unusedImport", CompilerOptions.OPTION_ReportUnusedImport); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("unusedImports", CompilerOptions.OPTION_ReportUnusedImport); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("unusedPrivate", CompilerOptions.OPTION_ReportUnusedPrivateMember); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("unusedLabel", CompilerOptions.OPTION_ReportUnusedLabel); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("uselessTypeCheck", CompilerOptions.OPTION_ReportUnnecessaryTypeCheck); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("unchecked", CompilerOptions.OPTION_ReportUncheckedTypeOperation); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("unsafe", CompilerOptions.OPTION_ReportUncheckedTypeOperation); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("unnecessaryElse", CompilerOptions.OPTION_ReportUnnecessaryElse); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("unusedThrown", CompilerOptions.OPTION_ReportUnusedDeclaredThrownException); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("unqualifiedField", CompilerOptions.OPTION_ReportUnqualifiedFieldAccess); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("unqualified-field-access", CompilerOptions.OPTION_ReportUnqualifiedFieldAccess); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("unusedTypeArgs", CompilerOptions.OPTION_ReportUnusedTypeArgumentsForMethodInvocation); //$NON-NLS-1$
+		WARNING_TOKEN_OPTIONS.put("varargsCast", CompilerOptions.OPTION_ReportVarargsArgumentNeedCast); //$NON-NLS-1$
+	}
+
 /**
  * @deprecated - use {@link BatchCompiler#compile(String, PrintWriter, PrintWriter, CompilationProgress)} instead
  * 						  e.g. BatchCompiler.compile(commandLine, new PrintWriter(System.out), new PrintWriter(System.err), null);
@@ -1441,6 +1876,11 @@ public void addExtraProblems(CategorizedProblem problem) {
 		this.extraProblems = new ArrayList();
 	}
 	this.extraProblems.add(problem);
+	// if spilling fails, try again once as many problems got added
+	if (this.extraProblems.size() % MAX_BUFFERED_PROBLEMS == 0
+			&& this.logger.spillExtraProblems(this)) {
+		this.extraProblems.clear();
+	}
 }
 protected void addNewEntry(ArrayList paths, String currentClasspathName,
 		ArrayList currentRuleSpecs, String customEncoding,
@@ -1639,6 +2079,7 @@ public boolean compile(String[] argv) {
 				this.globalWarningsCount = 0;
 				this.globalTasksCount = 0;
 				this.exportedClassFilesCounter = 0;
+				this.unchangedClassFilesCounter = 0;
 
 				if (this.maxRepetition > 1) {
 					this.logger.flush();
@@ -1684,6 +2125,96 @@ public boolean compile(String[] argv) {
 	return false;
 }
 
+/*
+ * Answer true if configurations get cached across compilers, which only suits
+ * compilers that run one at a time. Off unless the jdt.compiler.configurationCache
+ * system property is true.
+ */
+protected boolean isConfigurationCacheEnabled() {
+	String setting = System.getProperty("jdt.compiler.configurationCache"); //$NON-NLS-1$
+	return setting != null && setting.equals("true"); //$NON-NLS-1$
+}
+private static String getConfigurationKey(String[] argv) {
+	StringBuffer buffer = new StringBuffer();
+	for (int i = 0, max = argv.length; i < max; i++) {
+		buffer.append(argv[i]).append('\0');
+	}
+	return buffer.toString();
+}
+/*
+ * Take over the configuration cached for the given command line if any, and
+ * if it was decoded from the same default options and system properties.
+ * Answer true if it was.
+ */
+private boolean restoreConfiguration(String configurationKey) {
+	Configuration configuration = Configuration.get(configurationKey);
+	if (configuration == null
+			|| !configuration.initialOptions.equals(this.options)
+			|| !configuration.systemProperties.equals(System.getProperties())) {
+		return false;
+	}
+	this.options.putAll(configuration.options);
+	this.filenames = configuration.filenames;
+	this.encodings = configuration.encodings;
+	this.destinationPaths = configuration.destinationPaths;
+	this.classNames = configuration.classNames;
+	this.destinationPath = configuration.destinationPath;
+	this.expandedCommandLine = configuration.expandedCommandLine;
+	this.incrementalStateDirectory = configuration.incrementalStateDirectory;
+	this.jarDestinationPath = configuration.jarDestinationPath;
+	this.jarStoredEntries = configuration.jarStoredEntries;
+	this.jarSortedEntries = configuration.jarSortedEntries;
+	this.maxProblems = configuration.maxProblems;
+	this.maxRepetition = configuration.maxRepetition;
+	this.proceedOnError = configuration.proceedOnError;
+	this.produceRefInfo = configuration.produceRefInfo;
+	this.systemExitWhenFinished = configuration.systemExitWhenFinished;
+	this.timing = configuration.timing;
+	if (configuration.timingStats) {
+		this.compilerStats = new CompilerStats[this.maxRepetition];
+	}
+	this.showProgress = false;
+	this.logger.tagBits |= configuration.loggerTagBits;
+	// the jars, their manifests and the extension folders may have changed since
+	setPaths(Configuration.toList(configuration.bootclasspaths),
+			configuration.sourcepathClasspathArg,
+			Configuration.toList(configuration.sourcepathClasspaths),
+			Configuration.toList(configuration.classpaths),
+			Configuration.toList(configuration.extdirsClasspaths),
+			Configuration.toList(configuration.endorsedDirClasspaths),
+			configuration.customEncoding);
+	if (this.pendingErrors != null) {
+		for (Iterator iterator = this.pendingErrors.iterator(); iterator.hasNext(); ) {
+			String message = (String) iterator.next();
+			this.logger.logPendingError(message);
+		}
+		this.pendingErrors = null;
+	}
+	return true;
+}
+private void storeConfiguration(String configurationKey, Map initialOptions, Configuration configuration) {
+	configuration.initialOptions = initialOptions;
+	configuration.options = new HashMap(this.options);
+	configuration.filenames = this.filenames;
+	configuration.encodings = this.encodings;
+	configuration.destinationPaths = this.destinationPaths;
+	configuration.classNames = this.classNames;
+	configuration.destinationPath = this.destinationPath;
+	configuration.expandedCommandLine = this.expandedCommandLine;
+	configuration.incrementalStateDirectory = this.incrementalStateDirectory;
+	configuration.jarDestinationPath = this.jarDestinationPath;
+	configuration.jarStoredEntries = this.jarStoredEntries;
+	configuration.jarSortedEntries = this.jarSortedEntries;
+	configuration.maxProblems = this.maxProblems;
+	configuration.maxRepetition = this.maxRepetition;
+	configuration.proceedOnError = this.proceedOnError;
+	configuration.produceRefInfo = this.produceRefInfo;
+	configuration.systemExitWhenFinished = this.systemExitWhenFinished;
+	configuration.timing = this.timing;
+	configuration.timingStats = this.compilerStats != null;
+	configuration.loggerTagBits = this.logger.tagBits;
+	Configuration.put(configurationKey, configuration);
+}
 /*
 Decode the command line arguments
  */
@@ -1694,6 +2225,18 @@ public void configure(String[] argv) {
 		return;
 	}
 
+	String configurationKey = null;
+	Map initialOptions = null;
+	Map systemProperties = null;
+	if (isConfigurationCacheEnabled()) {
+		configurationKey = getConfigurationKey(argv);
+		if (restoreConfiguration(configurationKey)) {
+			return;
+		}
+		initialOptions = new HashMap(this.options);
+		systemProperties = new HashMap(System.getProperties());
+	}
+
 	final int INSIDE_CLASSPATH_start = 1;
 	final int INSIDE_DESTINATION_PATH = 3;
 	final int INSIDE_TARGET = 4;
@@ -1711,6 +2254,9 @@ public void configure(String[] argv) {
 	final int INSIDE_PROCESSOR_start = 18;
 	final int INSIDE_S_start = 19;
 	final int INSIDE_CLASS_NAMES = 20;
+	final int INSIDE_INCREMENTAL_STATE = 21;
+	final int INSIDE_JAR_DESTINATION_PATH = 22;
+	final int INSIDE_PROFILE = 23;
 
 	final int DEFAULT = 0;
 	ArrayList bootclasspaths = new ArrayList(DEFAULT_SIZE_CLASSPATH);
@@ -1738,6 +2284,7 @@ public void configure(String[] argv) {
 	String customEncoding = null;
 	String customDestinationPath = null;
 	String currentSourceDirectory = null;
+	boolean didSpecifySourceDirectory = false;
 	String currentArg = Util.EMPTY_STRING;
 
 	// expand the command line if necessary
@@ -1864,87 +2411,266 @@ public void configure(String[] argv) {
 					mode = DEFAULT;
 					continue;
 				}
-				if (currentArg.equals("-log")) { //$NON-NLS-1$
-					if (this.log != null)
-						throw new IllegalArgumentException(
-							this.bind("configure.duplicateLog", currentArg)); //$NON-NLS-1$
-					mode = INSIDE_LOG;
-					continue;
-				}
-				if (currentArg.equals("-repeat")) { //$NON-NLS-1$
-					if (this.maxRepetition > 0)
-						throw new IllegalArgumentException(
-							this.bind("configure.duplicateRepeat", currentArg)); //$NON-NLS-1$
-					mode = INSIDE_REPETITION;
-					continue;
-				}
-				if (currentArg.equals("-maxProblems")) { //$NON-NLS-1$
-					if (this.maxProblems > 0)
-						throw new IllegalArgumentException(
-							this.bind("configure.duplicateMaxProblems", currentArg)); //$NON-NLS-1$
-					mode = INSIDE_MAX_PROBLEMS;
-					continue;
-				}
-				if (currentArg.equals("-source")) { //$NON-NLS-1$
-					mode = INSIDE_SOURCE;
-					continue;
-				}
-				if (currentArg.equals("-encoding")) { //$NON-NLS-1$
-					mode = INSIDE_DEFAULT_ENCODING;
-					continue;
-				}
-				if (currentArg.equals("-1.3")) { //$NON-NLS-1$
-					if (didSpecifyCompliance) {
-						throw new IllegalArgumentException(
-							this.bind("configure.duplicateCompliance", currentArg));//$NON-NLS-1$
-					}
-					didSpecifyCompliance = true;
-					this.options.put(CompilerOptions.OPTION_Compliance, CompilerOptions.VERSION_1_3);
-					mode = DEFAULT;
-					continue;
-				}
-				if (currentArg.equals("-1.4")) { //$NON-NLS-1$
-					if (didSpecifyCompliance) {
-						throw new IllegalArgumentException(
-							this.bind("configure.duplicateCompliance", currentArg)); //$NON-NLS-1$
-					}
-					didSpecifyCompliance = true;
-					this.options.put(CompilerOptions.OPTION_Compliance, CompilerOptions.VERSION_1_4);
-					mode = DEFAULT;
-					continue;
-				}
-				if (currentArg.equals("-1.5") || currentArg.equals("-5") || currentArg.equals("-5.0")) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
-					if (didSpecifyCompliance) {
-						throw new IllegalArgumentException(
-							this.bind("configure.duplicateCompliance", currentArg)); //$NON-NLS-1$
-					}
-					didSpecifyCompliance = true;
-					this.options.put(CompilerOptions.OPTION_Compliance, CompilerOptions.VERSION_1_5);
-					mode = DEFAULT;
-					continue;
-				}
-				if (currentArg.equals("-1.6") || currentArg.equals("-6") || currentArg.equals("-6.0")) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
-					if (didSpecifyCompliance) {
-						throw new IllegalArgumentException(
-							this.bind("configure.duplicateCompliance", currentArg)); //$NON-NLS-1$
-					}
-					didSpecifyCompliance = true;
-					this.options.put(CompilerOptions.OPTION_Compliance, CompilerOptions.VERSION_1_6);
-					mode = DEFAULT;
-					continue;
-				}
-				if (currentArg.equals("-1.7") || currentArg.equals("-7") || currentArg.equals("-7.0")) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
-					if (didSpecifyCompliance) {
-						throw new IllegalArgumentException(
-							this.bind("configure.duplicateCompliance", currentArg)); //$NON-NLS-1$
+				Integer option = (Integer) COMMAND_LINE_OPTIONS.get(currentArg);
+				if (option != null) {
+					switch (option.intValue()) {
+						case ARG_LOG :
+							if (this.log != null)
+								throw new IllegalArgumentException(
+									this.bind("configure.duplicateLog", currentArg)); //$NON-NLS-1$
+							mode = INSIDE_LOG;
+							continue;
+						case ARG_REPEAT :
+							if (this.maxRepetition > 0)
+								throw new IllegalArgumentException(
+									this.bind("configure.duplicateRepeat", currentArg)); //$NON-NLS-1$
+							mode = INSIDE_REPETITION;
+							continue;
+						case ARG_MAX_PROBLEMS :
+							if (this.maxProblems > 0)
+								throw new IllegalArgumentException(
+									this.bind("configure.duplicateMaxProblems", currentArg)); //$NON-NLS-1$
+							mode = INSIDE_MAX_PROBLEMS;
+							continue;
+						case ARG_SOURCE :
+							mode = INSIDE_SOURCE;
+							continue;
+						case ARG_ENCODING :
+							mode = INSIDE_DEFAULT_ENCODING;
+							continue;
+						case ARG_1_3 :
+							if (didSpecifyCompliance) {
+								throw new IllegalArgumentException(
+									this.bind("configure.duplicateCompliance", currentArg));//$NON-NLS-1$
+							}
+							didSpecifyCompliance = true;
+							this.options.put(CompilerOptions.OPTION_Compliance, CompilerOptions.VERSION_1_3);
+							mode = DEFAULT;
+							continue;
+						case ARG_1_4 :
+							if (didSpecifyCompliance) {
+								throw new IllegalArgumentException(
+									this.bind("configure.duplicateCompliance", currentArg)); //$NON-NLS-1$
+							}
+							didSpecifyCompliance = true;
+							this.options.put(CompilerOptions.OPTION_Compliance, CompilerOptions.VERSION_1_4);
+							mode = DEFAULT;
+							continue;
+						case ARG_1_5 :
+							if (didSpecifyCompliance) {
+								throw new IllegalArgumentException(
+									this.bind("configure.duplicateCompliance", currentArg)); //$NON-NLS-1$
+							}
+							didSpecifyCompliance = true;
+							this.options.put(CompilerOptions.OPTION_Compliance, CompilerOptions.VERSION_1_5);
+							mode = DEFAULT;
+							continue;
+						case ARG_1_6 :
+							if (didSpecifyCompliance) {
+								throw new IllegalArgumentException(
+									this.bind("configure.duplicateCompliance", currentArg)); //$NON-NLS-1$
+							}
+							didSpecifyCompliance = true;
+							this.options.put(CompilerOptions.OPTION_Compliance, CompilerOptions.VERSION_1_6);
+							mode = DEFAULT;
+							continue;
+						case ARG_1_7 :
+							if (didSpecifyCompliance) {
+								throw new IllegalArgumentException(
+									this.bind("configure.duplicateCompliance", currentArg)); //$NON-NLS-1$
+							}
+							didSpecifyCompliance = true;
+							this.options.put(CompilerOptions.OPTION_Compliance, CompilerOptions.VERSION_1_7);
+							mode = DEFAULT;
+							continue;
+						case ARG_D :
+							if (this.destinationPath != null || this.jarDestinationPath != null) {
+								StringBuffer errorMessage = new StringBuffer();
+								errorMessage.append(currentArg);
+								if ((index + 1) < argCount) {
+									errorMessage.append(' ');
+									errorMessage.append(newCommandLineArgs[index + 1]);
+								}
+								throw new IllegalArgumentException(
+									this.bind("configure.duplicateOutputPath", errorMessage.toString())); //$NON-NLS-1$
+							}
+							mode = INSIDE_DESTINATION_PATH;
+							continue;
+						case ARG_CLASSPATH :
+							mode = INSIDE_CLASSPATH_start;
+							continue;
+						case ARG_BOOTCLASSPATH :
+							if (bootclasspaths.size() > 0) {
+								StringBuffer errorMessage = new StringBuffer();
+								errorMessage.append(currentArg);
+								if ((index + 1) < argCount) {
+									errorMessage.append(' ');
+									errorMessage.append(newCommandLineArgs[index + 1]);
+								}
+								throw new IllegalArgumentException(
+									this.bind("configure.duplicateBootClasspath", errorMessage.toString())); //$NON-NLS-1$
+							}
+							mode = INSIDE_BOOTCLASSPATH_start;
+							continue;
+						case ARG_SOURCEPATH :
+							if (sourcepathClasspathArg != null) {
+								StringBuffer errorMessage = new StringBuffer();
+								errorMessage.append(currentArg);
+								if ((index + 1) < argCount) {
+									errorMessage.append(' ');
+									errorMessage.append(newCommandLineArgs[index + 1]);
+								}
+								throw new IllegalArgumentException(
+									this.bind("configure.duplicateSourcepath", errorMessage.toString())); //$NON-NLS-1$
+							}
+							mode = INSIDE_SOURCE_PATH_start;
+							continue;
+						case ARG_EXTDIRS :
+							if (extdirsClasspaths != null) {
+								StringBuffer errorMessage = new StringBuffer();
+								errorMessage.append(currentArg);
+								if ((index + 1) < argCount) {
+									errorMessage.append(' ');
+									errorMessage.append(newCommandLineArgs[index + 1]);
+								}
+								throw new IllegalArgumentException(
+									this.bind("configure.duplicateExtDirs", errorMessage.toString())); //$NON-NLS-1$
+							}
+							mode = INSIDE_EXT_DIRS;
+							continue;
+						case ARG_ENDORSEDDIRS :
+							if (endorsedDirClasspaths != null) {
+								StringBuffer errorMessage = new StringBuffer();
+								errorMessage.append(currentArg);
+								if ((index + 1) < argCount) {
+									errorMessage.append(' ');
+									errorMessage.append(newCommandLineArgs[index + 1]);
+								}
+								throw new IllegalArgumentException(
+									this.bind("configure.duplicateEndorsedDirs", errorMessage.toString())); //$NON-NLS-1$
+							}
+							mode = INSIDE_ENDORSED_DIRS;
+							continue;
+						case ARG_PROGRESS :
+							mode = DEFAULT;
+							this.showProgress = true;
+							continue;
+						case ARG_PROCEED_ON_ERROR :
+							mode = DEFAULT;
+							this.proceedOnError = true;
+							continue;
+						case ARG_TIME :
+							mode = DEFAULT;
+							this.timing = TIMING_ENABLED;
+							continue;
+						case ARG_TIME_DETAIL :
+							mode = DEFAULT;
+							this.timing = TIMING_ENABLED|TIMING_DETAILED;
+							continue;
+						case ARG_TIME_PROFILE :
+							if (this.profiler != null)
+								throw new IllegalArgumentException(
+									this.bind("configure.duplicateProfile", currentArg)); //$NON-NLS-1$
+							mode = INSIDE_PROFILE;
+							this.timing = TIMING_ENABLED|TIMING_DETAILED;
+							continue;
+						case ARG_VERSION :
+							this.logger.logVersion(true);
+							this.proceed = false;
+							return;
+						case ARG_SHOWVERSION :
+							printVersionRequired = true;
+							mode = DEFAULT;
+							continue;
+						case ARG_DEPRECATION :
+							didSpecifyDeprecation = true;
+							this.options.put(CompilerOptions.OPTION_ReportDeprecation, CompilerOptions.WARNING);
+							mode = DEFAULT;
+							continue;
+						case ARG_HELP :
+							printUsageRequired = true;
+							mode = DEFAULT;
+							continue;
+						case ARG_HELP_WARN :
+							printUsageRequired = true;
+							usageSection = "misc.usage.warn"; //$NON-NLS-1$
+							continue;
+						case ARG_NO_EXIT :
+							this.systemExitWhenFinished = false;
+							mode = DEFAULT;
+							continue;
+						case ARG_VERBOSE :
+							this.verbose = true;
+							mode = DEFAULT;
+							continue;
+						case ARG_REFERENCE_INFO :
+							this.produceRefInfo = true;
+							mode = DEFAULT;
+							continue;
+						case ARG_INLINE_JSR :
+						    mode = DEFAULT;
+							this.options.put(
+									CompilerOptions.OPTION_InlineJsr,
+									CompilerOptions.ENABLED);
+							continue;
+						case ARG_TARGET :
+							mode = INSIDE_TARGET;
+							continue;
+						case ARG_PRESERVE_ALL_LOCALS :
+							this.options.put(
+								CompilerOptions.OPTION_PreserveUnusedLocal,
+								CompilerOptions.PRESERVE);
+						    mode = DEFAULT;
+							continue;
+						case ARG_ENABLE_JAVADOC :
+						    mode = DEFAULT;
+							this.enableJavadocOn = true;
+							continue;
+						case ARG_XEMACS :
+							mode = DEFAULT;
+							this.logger.setEmacs();
+							continue;
+						case ARG_PROCESSORPATH :
+							mode = INSIDE_PROCESSOR_PATH_start;
+							continue;
+						case ARG_PROCESSOR :
+							mode = INSIDE_PROCESSOR_start;
+							continue;
+						case ARG_PROC_ONLY :
+							this.options.put(
+								CompilerOptions.OPTION_GenerateClassFiles,
+								CompilerOptions.DISABLED);
+							mode = DEFAULT;
+							continue;
+						case ARG_PROC_NONE :
+							didSpecifyDisabledAnnotationProcessing = true;
+							this.options.put(
+								CompilerOptions.OPTION_Process_Annotations,
+								CompilerOptions.DISABLED);
+							mode = DEFAULT;
+							continue;
+						case ARG_S :
+							mode = INSIDE_S_start;
+							continue;
+						case ARG_XPRINT :
+							mode = DEFAULT;
+							continue;
+						case ARG_O :
+							mode = DEFAULT;
+							continue;
+						case ARG_CLASS_NAMES :
+							mode = INSIDE_CLASS_NAMES;
+							continue;
+						case ARG_INCREMENTAL :
+							if (this.incrementalStateDirectory != null)
+								throw new IllegalArgumentException(
+									this.bind("configure.duplicateIncremental", currentArg)); //$NON-NLS-1$
+							mode = INSIDE_INCREMENTAL_STATE;
+							continue;
 					}
-					didSpecifyCompliance = true;
-					this.options.put(CompilerOptions.OPTION_Compliance, CompilerOptions.VERSION_1_7);
-					mode = DEFAULT;
-					continue;
 				}
-				if (currentArg.equals("-d")) { //$NON-NLS-1$
-					if (this.destinationPath != null) {
+				if (currentArg.startsWith("-d:jar")) { //$NON-NLS-1$
+					if (this.destinationPath != null || this.jarDestinationPath != null) {
 						StringBuffer errorMessage = new StringBuffer();
 						errorMessage.append(currentArg);
 						if ((index + 1) < argCount) {
@@ -1954,138 +2680,20 @@ public void configure(String[] argv) {
 						throw new IllegalArgumentException(
 							this.bind("configure.duplicateOutputPath", errorMessage.toString())); //$NON-NLS-1$
 					}
-					mode = INSIDE_DESTINATION_PATH;
-					continue;
-				}
-				if (currentArg.equals("-classpath") //$NON-NLS-1$
-					|| currentArg.equals("-cp")) { //$NON-NLS-1$
-					mode = INSIDE_CLASSPATH_start;
-					continue;
-				}
-				if (currentArg.equals("-bootclasspath")) {//$NON-NLS-1$
-					if (bootclasspaths.size() > 0) {
-						StringBuffer errorMessage = new StringBuffer();
-						errorMessage.append(currentArg);
-						if ((index + 1) < argCount) {
-							errorMessage.append(' ');
-							errorMessage.append(newCommandLineArgs[index + 1]);
-						}
-						throw new IllegalArgumentException(
-							this.bind("configure.duplicateBootClasspath", errorMessage.toString())); //$NON-NLS-1$
-					}
-					mode = INSIDE_BOOTCLASSPATH_start;
-					continue;
-				}
-				if (currentArg.equals("-sourcepath")) {//$NON-NLS-1$
-					if (sourcepathClasspathArg != null) {
-						StringBuffer errorMessage = new StringBuffer();
-						errorMessage.append(currentArg);
-						if ((index + 1) < argCount) {
-							errorMessage.append(' ');
-							errorMessage.append(newCommandLineArgs[index + 1]);
-						}
-						throw new IllegalArgumentException(
-							this.bind("configure.duplicateSourcepath", errorMessage.toString())); //$NON-NLS-1$
-					}
-					mode = INSIDE_SOURCE_PATH_start;
-					continue;
-				}
-				if (currentArg.equals("-extdirs")) {//$NON-NLS-1$
-					if (extdirsClasspaths != null) {
-						StringBuffer errorMessage = new StringBuffer();
-						errorMessage.append(currentArg);
-						if ((index + 1) < argCount) {
-							errorMessage.append(' ');
-							errorMessage.append(newCommandLineArgs[index + 1]);
-						}
-						throw new IllegalArgumentException(
-							this.bind("configure.duplicateExtDirs", errorMessage.toString())); //$NON-NLS-1$
-					}
-					mode = INSIDE_EXT_DIRS;
-					continue;
-				}
-				if (currentArg.equals("-endorseddirs")) { //$NON-NLS-1$
-					if (endorsedDirClasspaths != null) {
-						StringBuffer errorMessage = new StringBuffer();
-						errorMessage.append(currentArg);
-						if ((index + 1) < argCount) {
-							errorMessage.append(' ');
-							errorMessage.append(newCommandLineArgs[index + 1]);
-						}
-						throw new IllegalArgumentException(
-							this.bind("configure.duplicateEndorsedDirs", errorMessage.toString())); //$NON-NLS-1$
-					}
-					mode = INSIDE_ENDORSED_DIRS;
-					continue;
-				}
-				if (currentArg.equals("-progress")) { //$NON-NLS-1$
-					mode = DEFAULT;
-					this.showProgress = true;
-					continue;
-				}
-				if (currentArg.equals("-proceedOnError")) { //$NON-NLS-1$
-					mode = DEFAULT;
-					this.proceedOnError = true;
-					continue;
-				}
-				if (currentArg.equals("-time")) { //$NON-NLS-1$
-					mode = DEFAULT;
-					this.timing = TIMING_ENABLED;
-					continue;
-				}
-				if (currentArg.equals("-time:detail")) { //$NON-NLS-1$
-					mode = DEFAULT;
-					this.timing = TIMING_ENABLED|TIMING_DETAILED;
-					continue;
-				}
-				if (currentArg.equals("-version") //$NON-NLS-1$
-						|| currentArg.equals("-v")) { //$NON-NLS-1$
-					this.logger.logVersion(true);
-					this.proceed = false;
-					return;
-				}
-				if (currentArg.equals("-showversion")) { //$NON-NLS-1$
-					printVersionRequired = true;
-					mode = DEFAULT;
-					continue;
-				}
-				if ("-deprecation".equals(currentArg)) { //$NON-NLS-1$
-					didSpecifyDeprecation = true;
-					this.options.put(CompilerOptions.OPTION_ReportDeprecation, CompilerOptions.WARNING);
-					mode = DEFAULT;
-					continue;
-				}
-				if (currentArg.equals("-help") || currentArg.equals("-?")) { //$NON-NLS-1$ //$NON-NLS-2$
-					printUsageRequired = true;
-					mode = DEFAULT;
-					continue;
-				}
-				if (currentArg.equals("-help:warn") || //$NON-NLS-1$
-						currentArg.equals("-?:warn")) { //$NON-NLS-1$
-					printUsageRequired = true;
-					usageSection = "misc.usage.warn"; //$NON-NLS-1$
-					continue;
-				}
-				if (currentArg.equals("-noExit")) { //$NON-NLS-1$
-					this.systemExitWhenFinished = false;
-					mode = DEFAULT;
-					continue;
-				}
-				if (currentArg.equals("-verbose")) { //$NON-NLS-1$
-					this.verbose = true;
-					mode = DEFAULT;
-					continue;
-				}
-				if (currentArg.equals("-referenceInfo")) { //$NON-NLS-1$
-					this.produceRefInfo = true;
-					mode = DEFAULT;
-					continue;
-				}
-				if (currentArg.equals("-inlineJSR")) { //$NON-NLS-1$
-				    mode = DEFAULT;
-					this.options.put(
-							CompilerOptions.OPTION_InlineJsr,
-							CompilerOptions.ENABLED);
+					// -d:jar[:stored][:sorted]
+					StringTokenizer tokenizer = new StringTokenizer(currentArg.substring(6), ":"); //$NON-NLS-1$
+					while (tokenizer.hasMoreTokens()) {
+						String token = tokenizer.nextToken();
+						if (token.equals("stored")) { //$NON-NLS-1$
+							this.jarStoredEntries = true;
+						} else if (token.equals("sorted")) { //$NON-NLS-1$
+							this.jarSortedEntries = true;
+						} else {
+							throw new IllegalArgumentException(
+								this.bind("configure.invalidJarOutputOption", currentArg)); //$NON-NLS-1$
+						}
+					}
+					mode = INSIDE_JAR_DESTINATION_PATH;
 					continue;
 				}
 				if (currentArg.startsWith("-g")) { //$NON-NLS-1$
@@ -2218,64 +2826,11 @@ public void configure(String[] argv) {
 					}
 					continue;
 				}
-				if (currentArg.equals("-target")) { //$NON-NLS-1$
-					mode = INSIDE_TARGET;
-					continue;
-				}
-				if (currentArg.equals("-preserveAllLocals")) { //$NON-NLS-1$
-					this.options.put(
-						CompilerOptions.OPTION_PreserveUnusedLocal,
-						CompilerOptions.PRESERVE);
-				    mode = DEFAULT;
-					continue;
-				}
-				if (currentArg.equals("-enableJavadoc")) {//$NON-NLS-1$
-				    mode = DEFAULT;
-					this.enableJavadocOn = true;
-					continue;
-				}
-				if (currentArg.equals("-Xemacs")) { //$NON-NLS-1$
-					mode = DEFAULT;
-					this.logger.setEmacs();
-					continue;
-				}
 				// annotation processing
 				if (currentArg.startsWith("-A")) { //$NON-NLS-1$
 					mode = DEFAULT;
 					continue;
 				}
-				if (currentArg.equals("-processorpath")) { //$NON-NLS-1$
-					mode = INSIDE_PROCESSOR_PATH_start;
-					continue;
-				}
-				if (currentArg.equals("-processor")) { //$NON-NLS-1$
-					mode = INSIDE_PROCESSOR_start;
-					continue;
-				}
-				if (currentArg.equals("-proc:only")) { //$NON-NLS-1$
-					this.options.put(
-						CompilerOptions.OPTION_GenerateClassFiles,
-						CompilerOptions.DISABLED);
-					mode = DEFAULT;
-					continue;
-				}
-				if (currentArg.equals("-proc:none")) { //$NON-NLS-1$
-					didSpecifyDisabledAnnotationProcessing = true;
-					this.options.put(
-						CompilerOptions.OPTION_Process_Annotations,
-						CompilerOptions.DISABLED);
-					mode = DEFAULT;
-					continue;
-				}
-				if (currentArg.equals("-s")) { //$NON-NLS-1$
-					mode = INSIDE_S_start;
-					continue;
-				}
-				if (currentArg.equals("-XprintProcessorInfo") //$NON-NLS-1$
-						|| currentArg.equals("-XprintRounds")) { //$NON-NLS-1$
-					mode = DEFAULT;
-					continue;
-				}
 				// tolerated javac options - quietly filtered out
 				if (currentArg.startsWith("-X")) { //$NON-NLS-1$
 					mode = DEFAULT;
@@ -2285,14 +2840,6 @@ public void configure(String[] argv) {
 					mode = DEFAULT;
 					continue;
 				}
-				if (currentArg.equals("-O")) { //$NON-NLS-1$
-					mode = DEFAULT;
-					continue;
-				}
-				if (currentArg.equals("-classNames")) { //$NON-NLS-1$
-					mode = INSIDE_CLASS_NAMES;
-					continue;
-				}
 				break;
 			case INSIDE_TARGET :
 				if (this.didSpecifyTarget) {
@@ -2328,6 +2875,14 @@ public void configure(String[] argv) {
 				this.log = currentArg;
 				mode = DEFAULT;
 				continue;
+			case INSIDE_PROFILE :
+				this.profiler = new CompilationProfiler(currentArg);
+				mode = DEFAULT;
+				continue;
+			case INSIDE_INCREMENTAL_STATE :
+				this.incrementalStateDirectory = currentArg;
+				mode = DEFAULT;
+				continue;
 			case INSIDE_REPETITION :
 				try {
 					this.maxRepetition = Integer.parseInt(currentArg);
@@ -2391,6 +2946,11 @@ public void configure(String[] argv) {
 				setDestinationPath(currentArg.equals(NONE) ? NONE : currentArg);
 				mode = DEFAULT;
 				continue;
+			case INSIDE_JAR_DESTINATION_PATH :
+				// the destination path stays unset: it names a folder
+				this.jarDestinationPath = currentArg;
+				mode = DEFAULT;
+				continue;
 			case INSIDE_CLASSPATH_start:
 				mode = DEFAULT;
 				index += processPaths(newCommandLineArgs, index, currentArg, classpaths);
@@ -2484,6 +3044,7 @@ public void configure(String[] argv) {
 			}
 			currentSourceDirectory = currentArg;
 		}
+		didSpecifySourceDirectory = true;
 		File dir = new File(currentSourceDirectory);
 		if (!dir.isDirectory()) {
 			throw new IllegalArgumentException(
@@ -2640,6 +3201,20 @@ public void configure(String[] argv) {
 			classCount);
 	}
 
+	Configuration configuration = null;
+	if (configurationKey != null) {
+		// setPaths turns the paths into classpath entries in place
+		configuration = new Configuration();
+		configuration.systemProperties = systemProperties;
+		configuration.bootclasspaths = Configuration.toArray(bootclasspaths);
+		configuration.sourcepathClasspathArg = sourcepathClasspathArg;
+		configuration.sourcepathClasspaths = Configuration.toArray(sourcepathClasspaths);
+		configuration.classpaths = Configuration.toArray(classpaths);
+		configuration.extdirsClasspaths = Configuration.toArray(extdirsClasspaths);
+		configuration.endorsedDirClasspaths = Configuration.toArray(endorsedDirClasspaths);
+		configuration.customEncoding = customEncoding;
+	}
+
 	setPaths(bootclasspaths,
 			sourcepathClasspathArg,
 			sourcepathClasspaths,
@@ -2654,6 +3229,17 @@ public void configure(String[] argv) {
 			this.logger.logPendingError(message);
 		}
 		this.pendingErrors = null;
+	} else if (configuration != null
+			// the outcome must not depend on the contents of files or folders,
+			// besides the paths that setPaths processes again on reuse
+			&& !needExpansion
+			&& !didSpecifySourceDirectory
+			// nor have produced any output
+			&& this.log == null
+			&& !this.verbose
+			&& !printVersionRequired
+			&& this.profiler == null) {
+		storeConfiguration(configurationKey, initialOptions, configuration);
 	}
 }
 protected void disableWarnings() {
@@ -2705,7 +3291,21 @@ public ICompilerRequestor getBatchRequestor() {
 			if (compilationResult.hasProblems() || compilationResult.hasTasks()) {
 				Main.this.logger.logProblems(compilationResult.getAllProblems(), compilationResult.compilationUnit.getContents(), Main.this);
 			}
-			outputClassFiles(compilationResult);
+			if (Main.this.incrementalState != null) {
+				try {
+					// units with errors are compiled again on the next run so that their errors get reported again
+					Main.this.incrementalState.recordResult(compilationResult, compilationResult.hasErrors());
+				} catch (IOException e) {
+					Main.this.logger.logIncrementalStateFailure(Main.this.incrementalStateDirectory, e);
+				}
+			}
+			if (Main.this.profiler != null) {
+				long start = System.currentTimeMillis();
+				outputClassFiles(compilationResult);
+				Main.this.profiler.recordWrite(compilationResult.getFileName(), System.currentTimeMillis() - start);
+			} else {
+				outputClassFiles(compilationResult);
+			}
 			Main.this.logger.endLoggingSource();
 		}
 	};
@@ -2775,6 +3375,58 @@ public FileSystem getLibraryAccess() {
 	return new FileSystem(this.checkedClasspaths, this.filenames);
 }
 
+/*
+ * Release the name environment once a compilation is over. Long-lived
+ * callers may override this to keep classpath entries open for later runs.
+ */
+protected void releaseLibraryAccess(FileSystem environment) {
+	environment.cleanup();
+}
+
+/*
+ * Answer the name environment used in incremental mode: the class files kept
+ * from the previous run come first, so that the units which do not need to be
+ * compiled again are seen as binaries, followed by the regular classpath.
+ */
+protected FileSystem getIncrementalLibraryAccess(CompilationUnit[] compilationUnits) {
+	int length = this.checkedClasspaths.length;
+	FileSystem.Classpath[] classpaths = new FileSystem.Classpath[length + 1];
+	File classesFolder = this.incrementalState.getClassesFolder();
+	classesFolder.mkdirs();
+	classpaths[0] = FileSystem.getClasspath(classesFolder.getAbsolutePath(), null, null);
+	System.arraycopy(this.checkedClasspaths, 0, classpaths, 1, length);
+	int unitsLength = compilationUnits.length;
+	String[] fileNames = new String[unitsLength];
+	for (int i = 0; i < unitsLength; i++) {
+		fileNames[i] = new String(compilationUnits[i].getFileName());
+	}
+	return new FileSystem(classpaths, fileNames);
+}
+
+/*
+ * Answer a key that changes whenever a setting which may alter the generated
+ * class files changes. A state recorded with a different key is discarded.
+ */
+protected String getIncrementalConfigurationKey() {
+	StringBuffer buffer = new StringBuffer(this.bind("compiler.version")); //$NON-NLS-1$
+	Object[] entries = this.options.entrySet().toArray();
+	Arrays.sort(entries, new Comparator() {
+		public int compare(Object o1, Object o2) {
+			return String.valueOf(((Map.Entry) o1).getKey()).compareTo(String.valueOf(((Map.Entry) o2).getKey()));
+		}
+	});
+	for (int i = 0, max = entries.length; i < max; i++) {
+		Map.Entry entry = (Map.Entry) entries[i];
+		buffer.append('\n').append(entry.getKey()).append('=').append(entry.getValue());
+	}
+	for (int i = 0, max = this.checkedClasspaths.length; i < max; i++) {
+		buffer.append('\n').append(this.checkedClasspaths[i].getPath());
+	}
+	buffer.append('\n').append(this.destinationPath);
+	buffer.append('\n').append(this.jarDestinationPath);
+	return buffer.toString();
+}
+
 /*
  *  Low-level API performing the actual compilation
  */
@@ -3059,6 +3711,13 @@ protected ArrayList handleExtdirs(ArrayList extdirsClasspaths) {
 */
 protected void handleWarningToken(String token, boolean isEnabling) {
 	if (token.length() == 0) return;
+	String optionKey = (String) WARNING_TOKEN_OPTIONS.get(token);
+	if (optionKey != null) {
+		this.options.put(
+			optionKey,
+			isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
+		return;
+	}
 	switch(token.charAt(0)) {
 		case 'a' :
 			if (token.equals("allDeprecation")) { //$NON-NLS-1$
@@ -3075,11 +3734,6 @@ protected void handleWarningToken(String token, boolean isEnabling) {
 			} else if (token.equals("allJavadoc")) { //$NON-NLS-1$
 				this.warnAllJavadocOn = this.warnJavadocOn = isEnabling;
 				return;
-			} else if (token.equals("assertIdentifier")) { //$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportAssertIdentifier,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
 			} else if (token.equals("allDeadCode")) { //$NON-NLS-1$
 				this.options.put(
 						CompilerOptions.OPTION_ReportDeadCode,
@@ -3090,37 +3744,6 @@ protected void handleWarningToken(String token, boolean isEnabling) {
 					return;
 			}
 			break;
-		case 'b' :
-			if (token.equals("boxing")) { //$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportAutoboxing,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			}
-			break;
-		case 'c' :
-			if (token.equals("constructorName")) { //$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportMethodWithConstructorName,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			} else if (token.equals("conditionAssign")) { //$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportPossibleAccidentalBooleanAssignment,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			} else if (token.equals("compareIdentical")) { //$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportComparingIdentical,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			} else if (token.equals("charConcat") /*|| token.equals("noImplicitStringConversion")/*backward compatible*/) {//$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportNoImplicitStringConversion,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			}
-			break;
 		case 'd' :
 			if (token.equals("deprecation")) { //$NON-NLS-1$
 				this.options.put(
@@ -3133,16 +3756,6 @@ protected void handleWarningToken(String token, boolean isEnabling) {
 					CompilerOptions.OPTION_ReportDeprecationWhenOverridingDeprecatedMethod,
 					CompilerOptions.DISABLED);
 				return;
-			} else if (token.equals("dep-ann")) { //$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportMissingDeprecatedAnnotation,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			} else if (token.equals("discouraged")) { //$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportDiscouragedReference,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
 			} else if (token.equals("deadCode")) { //$NON-NLS-1$
 				this.options.put(
 					CompilerOptions.OPTION_ReportDeadCode,
@@ -3153,53 +3766,6 @@ protected void handleWarningToken(String token, boolean isEnabling) {
 				return;
 			}
 			break;
-		case 'e' :
-			if (token.equals("enumSwitch") //$NON-NLS-1$
-					|| token.equals("incomplete-switch")) { //$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportIncompleteEnumSwitch,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			} else if (token.equals("emptyBlock")) {//$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportUndocumentedEmptyBlock,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			} else if (token.equals("enumIdentifier")) { //$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportEnumIdentifier,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			}
-			break;
-		case 'f' :
-			if (token.equals("fieldHiding")) { //$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportFieldHiding,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			} else if (token.equals("finalBound")) {//$NON-NLS-1$
-				this.options.put(
-						CompilerOptions.OPTION_ReportFinalParameterBound,
-						isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			} else if (token.equals("finally")) { //$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportFinallyBlockNotCompletingNormally,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			} else if (token.equals("forbidden")) { //$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportForbiddenReference,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			} else if (token.equals("fallthrough")) { //$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportFallthroughCase,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			}
-			break;
 		case 'h' :
 			if (token.equals("hiding")) { //$NON-NLS-1$
 				this.options.put(
@@ -3215,34 +3781,6 @@ protected void handleWarningToken(String token, boolean isEnabling) {
 					CompilerOptions.OPTION_ReportTypeParameterHiding,
 					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
 				return;
-			} else if (token.equals("hashCode")) { //$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportMissingHashCodeMethod,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			}
-			break;
-		case 'i' :
-			if (token.equals("indirectStatic")) { //$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportIndirectStaticAccess,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			} else if (token.equals("intfNonInherited") || token.equals("interfaceNonInherited")/*backward compatible*/) { //$NON-NLS-1$ //$NON-NLS-2$
-				this.options.put(
-					CompilerOptions.OPTION_ReportIncompatibleNonInheritedInterfaceMethod,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			} else if (token.equals("intfAnnotation")) { //$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportAnnotationSuperInterface,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			} else if (token.equals("intfRedundant") /*|| token.equals("redundantSuperinterface")*/) { //$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportRedundantSuperinterface,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);	
-				return;
 			}
 			break;
 		case 'j' :
@@ -3251,39 +3789,8 @@ protected void handleWarningToken(String token, boolean isEnabling) {
 				return;
 			}
 			break;
-		case 'l' :
-			if (token.equals("localHiding")) { //$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportLocalVariableHiding,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			}
-			break;
-		case 'm' :
-			if (token.equals("maskedCatchBlock") || token.equals("maskedCatchBlocks")/*backward compatible*/) { //$NON-NLS-1$ //$NON-NLS-2$
-				this.options.put(
-					CompilerOptions.OPTION_ReportHiddenCatchBlock,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			}
-			break;
 		case 'n' :
-			if (token.equals("nls")) { //$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportNonExternalizedStringLiteral,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			} else if (token.equals("noEffectAssign")) { //$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportNoEffectAssignment,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			} else if (/*token.equals("charConcat") ||*/ token.equals("noImplicitStringConversion")/*backward compatible*/) {//$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportNoImplicitStringConversion,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			} else if (token.equals("null")) { //$NON-NLS-1$
+			if (token.equals("null")) { //$NON-NLS-1$
 				this.options.put(
 						CompilerOptions.OPTION_ReportNullReference,
 						isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
@@ -3315,37 +3822,6 @@ protected void handleWarningToken(String token, boolean isEnabling) {
 					CompilerOptions.OPTION_ReportMissingSynchronizedOnInheritedMethod,
 					isEnabling ? CompilerOptions.ERROR : CompilerOptions.IGNORE);
 				return;
-			} else if (token.equals("over-ann")) { //$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportMissingOverrideAnnotation,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			}
-			break;
-		case 'p' :
-			if (token.equals("pkgDefaultMethod") || token.equals("packageDefaultMethod")/*backward compatible*/ ) { //$NON-NLS-1$ //$NON-NLS-2$
-				this.options.put(
-					CompilerOptions.OPTION_ReportOverridingPackageDefaultMethod,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);	
-				return;
-			} else if (token.equals("paramAssign")) { //$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportParameterAssignment,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			}
-			break;
-		case 'r' :
-			if (token.equals("raw")) {//$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportRawTypeReference,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			} else if (/*token.equals("intfRedundant") ||*/ token.equals("redundantSuperinterface")) { //$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportRedundantSuperinterface,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);	
-				return;
 			}
 			break;
 		case 's' :
@@ -3354,31 +3830,11 @@ protected void handleWarningToken(String token, boolean isEnabling) {
 					CompilerOptions.OPTION_ReportSpecialParameterHidingField,
 					isEnabling ? CompilerOptions.ENABLED : CompilerOptions.DISABLED);
 				return;
-			} else if (token.equals("syntheticAccess") || token.equals("synthetic-access")) { //$NON-NLS-1$ //$NON-NLS-2$
-				this.options.put(
-					CompilerOptions.OPTION_ReportSyntheticAccessEmulation,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			} else if (token.equals("staticReceiver")) { //$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportNonStaticAccessToStatic,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
 			} else 	if (/*token.equals("over-sync") ||*/ token.equals("syncOverride")) { //$NON-NLS-1$ 
 				this.options.put(
 					CompilerOptions.OPTION_ReportMissingSynchronizedOnInheritedMethod,
 					isEnabling ? CompilerOptions.ERROR : CompilerOptions.IGNORE);
 				return;
-			} else if (token.equals("semicolon")) {//$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportEmptyStatement,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			} else if (token.equals("serial")) {//$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportMissingSerialVersion,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
 			} else if (token.equals("suppress")) {//$NON-NLS-1$
 				this.options.put(
 					CompilerOptions.OPTION_SuppressWarnings,
@@ -3392,11 +3848,6 @@ protected void handleWarningToken(String token, boolean isEnabling) {
 					CompilerOptions.OPTION_ReportIndirectStaticAccess,
 					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
 				return;
-			} else if (token.equals("super")) { //$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportOverridingMethodWithoutSuperInvocation,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
 			}
 			break;
 		case 't' :
@@ -3415,65 +3866,10 @@ protected void handleWarningToken(String token, boolean isEnabling) {
 					CompilerOptions.OPTION_TaskTags,
 					isEnabling ? taskTags : Util.EMPTY_STRING);
 				return;
-			} else if (token.equals("typeHiding")) { //$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportTypeParameterHiding,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
 			}
 			break;
 		case 'u' :
-			if (token.equals("unusedLocal") || token.equals("unusedLocals")/*backward compatible*/) { //$NON-NLS-1$ //$NON-NLS-2$
-				this.options.put(
-					CompilerOptions.OPTION_ReportUnusedLocal,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			} else if (token.equals("unusedArgument") || token.equals("unusedArguments")/*backward compatible*/) { //$NON-NLS-1$ //$NON-NLS-2$
-				this.options.put(
-					CompilerOptions.OPTION_ReportUnusedParameter,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			} else if (token.equals("unusedImport") || token.equals("unusedImports")/*backward compatible*/) { //$NON-NLS-1$ //$NON-NLS-2$
-				this.options.put(
-					CompilerOptions.OPTION_ReportUnusedImport,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			} else if (token.equals("unusedPrivate")) { //$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportUnusedPrivateMember,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			} else if (token.equals("unusedLabel")) { //$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportUnusedLabel,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			} else if (token.equals("uselessTypeCheck")) {//$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportUnnecessaryTypeCheck,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			} else if (token.equals("unchecked") || token.equals("unsafe")) {//$NON-NLS-1$ //$NON-NLS-2$
-				this.options.put(
-					CompilerOptions.OPTION_ReportUncheckedTypeOperation,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			} else if (token.equals("unnecessaryElse")) {//$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportUnnecessaryElse,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			} else if (token.equals("unusedThrown")) { //$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportUnusedDeclaredThrownException,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			} else if (token.equals("unqualifiedField") || token.equals("unqualified-field-access")) { //$NON-NLS-1$ //$NON-NLS-2$
-				this.options.put(
-					CompilerOptions.OPTION_ReportUnqualifiedFieldAccess,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			} else if (token.equals("unused")) { //$NON-NLS-1$
+			if (token.equals("unused")) { //$NON-NLS-1$
 				this.options.put(
 					CompilerOptions.OPTION_ReportUnusedLocal,
 					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
@@ -3496,19 +3892,6 @@ protected void handleWarningToken(String token, boolean isEnabling) {
 						CompilerOptions.OPTION_ReportUnusedTypeArgumentsForMethodInvocation,
 						isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
 				return;
-			} else if (token.equals("unusedTypeArgs")) { //$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportUnusedTypeArgumentsForMethodInvocation,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
-			}
-			break;
-		case 'v' :
-			if (token.equals("varargsCast")) { //$NON-NLS-1$
-				this.options.put(
-					CompilerOptions.OPTION_ReportVarargsArgumentNeedCast,
-					isEnabling ? CompilerOptions.WARNING : CompilerOptions.IGNORE);
-				return;
 			}
 			break;
 		case 'w' :
@@ -3591,6 +3974,14 @@ public void outputClassFiles(CompilationResult unitResult) {
 		boolean generateClasspathStructure = false;
 		CompilationUnit compilationUnit =
 			(CompilationUnit) unitResult.compilationUnit;
+		if (compilationUnit.destinationPath == null && this.jarWriter != null) {
+			if (this.incrementalState != null) {
+				// the jar gets rewritten as a whole, there is no class file to restore later on
+				this.incrementalState.recordOutputLocation(unitResult, null, false);
+			}
+			outputClassFiles(classFiles);
+			return;
+		}
 		if (compilationUnit.destinationPath == null) {
 			if (this.destinationPath == null) {
 				currentDestinationPath =
@@ -3603,6 +3994,9 @@ public void outputClassFiles(CompilationResult unitResult) {
 			currentDestinationPath = compilationUnit.destinationPath;
 			generateClasspathStructure = true;
 		} // else leave currentDestinationPath null
+		if (this.incrementalState != null) {
+			this.incrementalState.recordOutputLocation(unitResult, currentDestinationPath, generateClasspathStructure);
+		}
 		if (currentDestinationPath != null) {
 			for (int i = 0, fileCount = classFiles.length; i < fileCount; i++) {
 				// retrieve the key and the corresponding classfile
@@ -3623,11 +4017,19 @@ public void outputClassFiles(CompilationResult unitResult) {
 									String.valueOf(this.exportedClassFilesCounter+1),
 									relativeStringName
 								}));
-					Util.writeToDisk(
-						generateClasspathStructure,
-						currentDestinationPath,
-						relativeStringName,
-						classFile);
+					if (this.classFileWriter != null) {
+						this.classFileWriter.write(
+							generateClasspathStructure,
+							currentDestinationPath,
+							relativeStringName,
+							classFile.getBytes());
+					} else {
+						Util.writeToDisk(
+							generateClasspathStructure,
+							currentDestinationPath,
+							relativeStringName,
+							classFile);
+					}
 					this.logger.logClassFile(
 						generateClasspathStructure,
 						currentDestinationPath,
@@ -3638,8 +4040,54 @@ public void outputClassFiles(CompilationResult unitResult) {
 				}
 			}
 			this.batchCompiler.lookupEnvironment.releaseClassFiles(classFiles);
+			if (this.classFileWriter != null) {
+				if ((this.logger.tagBits & Logger.XML) != 0) {
+					// failures must be logged within the element of their unit
+					logClassFileWriteFailures(this.classFileWriter.flush());
+				} else {
+					logClassFileWriteFailures(this.classFileWriter.getFailures());
+				}
+			}
+		}
+	}
+}
+/*
+ * Add the given class files to the output jar.
+ */
+private void outputClassFiles(ClassFile[] classFiles) {
+	String jarPath = this.jarWriter.getPath();
+	for (int i = 0, fileCount = classFiles.length; i < fileCount; i++) {
+		ClassFile classFile = classFiles[i];
+		String entryName = new String(CharOperation.concat(classFile.fileName(), SuffixConstants.SUFFIX_class));
+		try {
+			if (this.compilerOptions.verbose)
+				this.out.println(
+					Messages.bind(
+						Messages.compilation_write,
+						new String[] {
+							String.valueOf(this.exportedClassFilesCounter+1),
+							entryName
+						}));
+			this.jarWriter.write(entryName, classFile.getBytes());
+			this.logger.logClassFile(true, jarPath, entryName.replace('/', File.separatorChar));
+			this.exportedClassFilesCounter++;
+		} catch (IOException e) {
+			this.logger.logNoClassFileCreated(jarPath, entryName, e);
 		}
 	}
+	this.batchCompiler.lookupEnvironment.releaseClassFiles(classFiles);
+}
+/*
+ * Report the class files that the asynchronous writer failed to write.
+ * These were accounted for as exported when they were queued.
+ */
+private void logClassFileWriteFailures(BatchClassFileWriter.WriteRequest[] failures) {
+	if (failures == null) return;
+	for (int i = 0, max = failures.length; i < max; i++) {
+		BatchClassFileWriter.WriteRequest failure = failures[i];
+		this.logger.logNoClassFileCreated(failure.outputPath, failure.relativeFileName, failure.exception);
+		this.exportedClassFilesCounter--;
+	}
 }
 /*
  *  Low-level API performing the actual compilation
@@ -3648,23 +4096,86 @@ public void performCompilation() {
 
 	this.startTime = System.currentTimeMillis();
 
-	FileSystem environment = getLibraryAccess();
+	if (this.jarDestinationPath != null) {
+		try {
+			this.jarWriter = new ClassFileJarWriter(new File(this.jarDestinationPath), this.jarStoredEntries, this.jarSortedEntries);
+		} catch (IOException e) {
+			throw new IllegalArgumentException(this.bind("configure.cannotOpenJarOutput", this.jarDestinationPath)); //$NON-NLS-1$
+		}
+	}
+	CompilationUnit[] compilationUnits = null;
+	FileSystem environment;
+	if (this.incrementalStateDirectory != null) {
+		this.incrementalState = IncrementalBuildState.read(
+			new File(this.incrementalStateDirectory),
+			getIncrementalConfigurationKey());
+		try {
+			compilationUnits = this.incrementalState.selectAffectedUnits(getCompilationUnits());
+		} catch (IOException e) {
+			// fall back to a full build
+			this.logger.logIncrementalStateFailure(this.incrementalStateDirectory, e);
+			this.incrementalState = new IncrementalBuildState(
+				new File(this.incrementalStateDirectory),
+				getIncrementalConfigurationKey());
+			this.incrementalState.discard();
+			compilationUnits = getCompilationUnits();
+		}
+		environment = getIncrementalLibraryAccess(compilationUnits);
+	} else {
+		environment = getLibraryAccess();
+	}
 	this.compilerOptions = new CompilerOptions(this.options);
 	this.compilerOptions.performMethodsFullRecovery = false;
 	this.compilerOptions.performStatementsRecovery = false;
-	this.batchCompiler =
-		new Compiler(
-			environment,
-			getHandlingPolicy(),
-			this.compilerOptions,
-			getBatchRequestor(),
-			getProblemFactory(),
-			this.out,
-			this.progress);
+	if (this.profiler == null) {
+		this.batchCompiler =
+			new Compiler(
+				environment,
+				getHandlingPolicy(),
+				this.compilerOptions,
+				getBatchRequestor(),
+				getProblemFactory(),
+				this.out,
+				this.progress);
+	} else {
+		this.profiler.reset();
+		final CompilationProfiler unitsProfiler = this.profiler;
+		this.batchCompiler =
+			new Compiler(
+				environment,
+				getHandlingPolicy(),
+				this.compilerOptions,
+				getBatchRequestor(),
+				getProblemFactory(),
+				this.out,
+				this.progress) {
+			// charge each unit with the time and allocations of its own processing
+			public void process(CompilationUnitDeclaration unit, int i) {
+				long[] snapshot = unitsProfiler.startProcessing(this.stats);
+				try {
+					super.process(unit, i);
+				} finally {
+					unitsProfiler.endProcessing(unit.getFileName(), snapshot, this.stats);
+				}
+			}
+		};
+	}
 	this.batchCompiler.remainingIterations = this.maxRepetition-this.currentRepetition/*remaining iterations including this one*/;
 	// temporary code to allow the compiler to revert to a single thread
 	String setting = System.getProperty("jdt.compiler.useSingleThread"); //$NON-NLS-1$
 	this.batchCompiler.useSingleThread = setting != null && setting.equals("true"); //$NON-NLS-1$
+	// class files are written by a pool of threads when jdt.compiler.outputThreads is set to a positive count
+	setting = System.getProperty("jdt.compiler.outputThreads"); //$NON-NLS-1$
+	if (setting != null) {
+		try {
+			int outputThreads = Integer.parseInt(setting);
+			if (outputThreads > 0) {
+				this.classFileWriter = new BatchClassFileWriter(outputThreads);
+			}
+		} catch (NumberFormatException e) {
+			// ignore: write on the requestor thread
+		}
+	}
 
 	if (this.compilerOptions.complianceLevel >= ClassFileConstants.JDK1_6
 			&& this.compilerOptions.processAnnotations) {
@@ -3681,12 +4192,42 @@ public void performCompilation() {
 
 	// set the non-externally configurable options.
 	this.compilerOptions.verbose = this.verbose;
-	this.compilerOptions.produceReferenceInfo = this.produceRefInfo;
+	// reference information drives the dependency graph of incremental builds
+	this.compilerOptions.produceReferenceInfo = this.produceRefInfo || this.incrementalState != null;
 	try {
 		this.logger.startLoggingSources();
-		this.batchCompiler.compile(getCompilationUnits());
+		this.batchCompiler.compile(compilationUnits == null ? getCompilationUnits() : compilationUnits);
+		if (this.jarWriter != null && this.incrementalState != null) {
+			try {
+				this.exportedClassFilesCounter += this.incrementalState.writeUnchangedClassFiles(this.jarWriter);
+			} catch (IOException e) {
+				this.logger.logNoClassFileCreated(this.jarDestinationPath, new File(this.jarDestinationPath).getName(), e);
+			}
+		}
 	} finally {
+		if (this.classFileWriter != null) {
+			logClassFileWriteFailures(this.classFileWriter.shutdown());
+			this.unchangedClassFilesCounter += this.classFileWriter.skippedFilesCounter;
+			this.classFileWriter = null;
+		}
 		this.logger.endLoggingSources();
+		if (this.jarWriter != null) {
+			try {
+				this.jarWriter.close();
+			} catch (IOException e) {
+				this.logger.logNoClassFileCreated(this.jarDestinationPath, new File(this.jarDestinationPath).getName(), e);
+			}
+			this.jarWriter = null;
+		}
+	}
+
+	if (this.incrementalState != null) {
+		try {
+			this.incrementalState.write();
+		} catch (IOException e) {
+			this.logger.logIncrementalStateFailure(this.incrementalStateDirectory, e);
+		}
+		this.incrementalState = null;
 	}
 
 	if (this.extraProblems != null) {
@@ -3697,9 +4238,17 @@ public void performCompilation() {
 		this.compilerStats[this.currentRepetition] = this.batchCompiler.stats;
 	}
 	this.logger.printStats();
+	if (this.profiler != null) {
+		this.logger.logProfile(this.profiler);
+		try {
+			this.profiler.write(this.batchCompiler.stats);
+		} catch (IOException e) {
+			this.logger.logPendingError(this.bind("output.cannotWriteProfile", this.profiler.profileFileName, e.getMessage())); //$NON-NLS-1$
+		}
+	}
 
 	// cleanup
-	environment.cleanup();
+	releaseLibraryAccess(environment);
 }
 public void printUsage() {
 	printUsage("misc.usage"); //$NON-NLS-1$
@@ -3751,12 +4300,13 @@ public void processPathEntries(final int defaultSize, final ArrayList paths,
 	String currentClasspathName = null;
 	String currentDestinationPath = null;
 	ArrayList currentRuleSpecs = new ArrayList(defaultSize);
-	StringTokenizer tokenizer = new StringTokenizer(currentPath,
-			File.pathSeparator + "[]", true); //$NON-NLS-1$
-	ArrayList tokens = new ArrayList();
-	while (tokenizer.hasMoreTokens()) {
-		tokens.add(tokenizer.nextToken());
-	}
+	// entries already added by this call, see isNewEntry
+	HashSet addedEntries = new HashSet();
+	// tokens are read on the fly: separators and brackets are single
+	// characters, words span up to the next one of these
+	final char[] source = currentPath.toCharArray();
+	final int sourceLength = source.length;
+	final char pathSeparator = File.pathSeparatorChar;
 	// state machine
 	final int start = 0;
 	final int readyToClose = 1;
@@ -3784,11 +4334,12 @@ public void processPathEntries(final int defaultSize, final ArrayList paths,
 
 	final int error = 99;
 	int state = start;
-	String token = null;
-	int cursor = 0, tokensNb = tokens.size(), bracket = -1;
-	while (cursor < tokensNb && state != error) {
-		token = (String) tokens.get(cursor++);
-		if (token.equals(File.pathSeparator)) {
+	// bracket is the offset of the opening bracket to come back to
+	int cursor = 0, bracket = -1;
+	while (cursor < sourceLength && state != error) {
+		int tokenStart = cursor;
+		char current = source[cursor++];
+		if (current == pathSeparator) {
 			switch (state) {
 			case start:
 			case readyToCloseOrOtherEntry:
@@ -3798,9 +4349,11 @@ public void processPathEntries(final int defaultSize, final ArrayList paths,
 			case readyToCloseEndingWithRules:
 			case readyToCloseEndingWithDestinationPath:
 				state = readyToCloseOrOtherEntry;
-				addNewEntry(paths, currentClasspathName, currentRuleSpecs,
-						customEncoding, currentDestinationPath, isSourceOnly,
-						rejectDestinationPathOnJars);
+				if (isNewEntry(addedEntries, currentClasspathName, currentRuleSpecs, currentDestinationPath)) {
+					addNewEntry(paths, currentClasspathName, currentRuleSpecs,
+							customEncoding, currentDestinationPath, isSourceOnly,
+							rejectDestinationPathOnJars);
+				}
 				currentRuleSpecs.clear();
 				break;
 			case rulesReadyToClose:
@@ -3817,13 +4370,13 @@ public void processPathEntries(final int defaultSize, final ArrayList paths,
 			default:
 				state = error;
 			}
-		} else if (token.equals("[")) { //$NON-NLS-1$
+		} else if (current == '[') {
 			switch (state) {
 			case start:
 				currentClasspathName = ""; //$NON-NLS-1$
 				//$FALL-THROUGH$
 				case readyToClose:
-				bracket = cursor - 1;
+				bracket = tokenStart;
 				//$FALL-THROUGH$
 				case bracketClosed:
 				state = bracketOpened;
@@ -3838,7 +4391,7 @@ public void processPathEntries(final int defaultSize, final ArrayList paths,
 			default:
 				state = error;
 			}
-		} else if (token.equals("]")) { //$NON-NLS-1$
+		} else if (current == ']') {
 			switch (state) {
 			case rulesReadyToClose:
 				state = readyToCloseEndingWithRules;
@@ -3855,20 +4408,25 @@ public void processPathEntries(final int defaultSize, final ArrayList paths,
 			}
 		} else {
 			// regular word
+			while (cursor < sourceLength) {
+				current = source[cursor];
+				if (current == pathSeparator || current == '[' || current == ']') break;
+				cursor++;
+			}
 			switch (state) {
 			case start:
 			case readyToCloseOrOtherEntry:
 				state = readyToClose;
-				currentClasspathName = token;
+				currentClasspathName = new String(source, tokenStart, cursor - tokenStart);
 				break;
 			case rulesStart:
-				if (token.startsWith("-d ")) { //$NON-NLS-1$
+				if (isDestinationPathToken(source, tokenStart, cursor)) {
 					if (currentDestinationPath != null) {
 						throw new IllegalArgumentException(
 								this.bind("configure.duplicateDestinationPathEntry", //$NON-NLS-1$
 										currentPath));
 					}
-					currentDestinationPath = token.substring(3).trim();
+					currentDestinationPath = new String(source, tokenStart + 3, cursor - tokenStart - 3).trim();
 					state = destinationPathReadyToClose;
 					break;
 				} // else we proceed with a rule
@@ -3880,20 +4438,19 @@ public void processPathEntries(final int defaultSize, final ArrayList paths,
 								currentPath));
 				}
 				state = rulesReadyToClose;
-				currentRuleSpecs.add(token);
+				currentRuleSpecs.add(new String(source, tokenStart, cursor - tokenStart));
 				break;
 			case destinationPathStart:
-				if (!token.startsWith("-d ")) { //$NON-NLS-1$
+				if (!isDestinationPathToken(source, tokenStart, cursor)) {
 					state = error;
 				} else {
-					currentDestinationPath = token.substring(3).trim();
+					currentDestinationPath = new String(source, tokenStart + 3, cursor - tokenStart - 3).trim();
 					state = destinationPathReadyToClose;
 				}
 				break;
 			case bracketClosed:
-				for (int i = bracket; i < cursor ; i++) {
-					currentClasspathName += (String) tokens.get(i);
-				}
+				// the brackets were part of the name
+				currentClasspathName += new String(source, bracket, cursor - bracket);
 				state = readyToClose;
 				break;
 			case bracketOpened:
@@ -3902,7 +4459,7 @@ public void processPathEntries(final int defaultSize, final ArrayList paths,
 				state = error;
 			}
 		}
-		if (state == bracketClosed && cursor == tokensNb) {
+		if (state == bracketClosed && cursor == sourceLength) {
 			cursor = bracket + 1;
 			state = rulesStart;
 		}
@@ -3913,9 +4470,11 @@ public void processPathEntries(final int defaultSize, final ArrayList paths,
 		case readyToClose:
 		case readyToCloseEndingWithRules:
 		case readyToCloseEndingWithDestinationPath:
-			addNewEntry(paths, currentClasspathName, currentRuleSpecs,
-				customEncoding, currentDestinationPath, isSourceOnly,
-				rejectDestinationPathOnJars);
+			if (isNewEntry(addedEntries, currentClasspathName, currentRuleSpecs, currentDestinationPath)) {
+				addNewEntry(paths, currentClasspathName, currentRuleSpecs,
+					customEncoding, currentDestinationPath, isSourceOnly,
+					rejectDestinationPathOnJars);
+			}
 			break;
 		case bracketOpened:
 		case bracketClosed:
@@ -3927,6 +4486,31 @@ public void processPathEntries(final int defaultSize, final ArrayList paths,
 	}
 }
 
+/*
+ * Answer true if the given token of the source starts with "-d ".
+ */
+private static boolean isDestinationPathToken(char[] source, int start, int end) {
+	return end - start >= 3
+		&& source[start] == '-'
+		&& source[start + 1] == 'd'
+		&& source[start + 2] == ' ';
+}
+/*
+ * Answer false if the same entry, with the same access rules and destination
+ * path, was already added. Later occurrences could not contribute anything but
+ * the cost of opening the entry again.
+ */
+private static boolean isNewEntry(HashSet addedEntries, String classpathName, ArrayList ruleSpecs, String destinationPath) {
+	StringBuffer key = new StringBuffer(classpathName);
+	for (int i = 0, max = ruleSpecs.size(); i < max; i++) {
+		key.append(File.pathSeparatorChar).append((String) ruleSpecs.get(i));
+	}
+	if (destinationPath != null) {
+		key.append('[').append(destinationPath);
+	}
+	return addedEntries.add(key.toString());
+}
+
 private int processPaths(String[] args, int index, String currentArg, ArrayList paths) {
 	int localIndex = index;
 	int count = 0;
@@ -4122,6 +4706,15 @@ protected void setPaths(ArrayList bootclasspaths,
 	classpaths = FileSystem.ClasspathNormalizer.normalize(classpaths);
 	this.checkedClasspaths = new FileSystem.Classpath[classpaths.size()];
 	classpaths.toArray(this.checkedClasspaths);
+	String setting = System.getProperty("jdt.compiler.mappedJars"); //$NON-NLS-1$
+	if (setting != null && setting.equals("true")) { //$NON-NLS-1$
+		for (int i = 0, max = this.checkedClasspaths.length; i < max; i++) {
+			this.checkedClasspaths[i] = ClasspathMappedJar.map(this.checkedClasspaths[i]);
+		}
+	}
+	if (this.profiler != null) {
+		this.checkedClasspaths = this.profiler.wrap(this.checkedClasspaths);
+	}
 	this.logger.logClasspath(this.checkedClasspaths);
 }
 protected void validateOptions(boolean didSpecifyCompliance) {
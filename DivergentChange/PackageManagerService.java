@@ -26,6 +26,7 @@ import org.xmlpull.v1.XmlSerializer;
 
 import android.app.ActivityManagerNative;
 import android.app.IActivityManager;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.ContentResolver;
 import android.content.Context;
@@ -65,6 +66,7 @@ import android.os.Environment;
 import android.os.FileObserver;
 import android.os.FileUtils;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
 import android.os.Process;
 import android.os.ServiceManager;
@@ -74,6 +76,13 @@ import android.util.*;
 import android.view.Display;
 import android.view.WindowManager;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
@@ -84,16 +93,28 @@ import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
@@ -136,8 +157,106 @@ class PackageManagerService extends IPackageManager.Stub {
             Process.THREAD_PRIORITY_BACKGROUND);
     final Handler mHandler;
 
+    // Package sizes are computed on their own thread, without holding
+    // mInstallLock, so that a request for the sizes of every package
+    // neither waits behind installs nor holds them up.
+    final HandlerThread mSizeThread = new HandlerThread("PackageSizes",
+            Process.THREAD_PRIORITY_BACKGROUND);
+    final Handler mSizeHandler;
+
+    // How long a computed size is handed out again: data and cache sizes
+    // change without the package manager knowing.
+    static final long SIZE_CACHE_TIMEOUT = 10 * 1000;
+
+    static final class SizeRequest {
+        final String packageName;
+        final ArrayList<IPackageStatsObserver> observers =
+                new ArrayList<IPackageStatsObserver>();
+        // Set when the package changes while its size is being computed.
+        boolean invalidated;
+
+        SizeRequest(String packageName) {
+            this.packageName = packageName;
+        }
+    }
+
+    static final class CachedSize {
+        final PackageStats stats;
+        final long time;
+
+        CachedSize(PackageStats stats, long time) {
+            this.stats = stats;
+            this.time = time;
+        }
+    }
+
+    // Size requests waiting for mComputeSizes, oldest first, one per
+    // package.  These, mSizeRequestsByName, mSizeCache and mComputingSize
+    // are guarded by mSizeRequests.
+    final ArrayList<SizeRequest> mSizeRequests = new ArrayList<SizeRequest>();
+    final HashMap<String, SizeRequest> mSizeRequestsByName =
+            new HashMap<String, SizeRequest>();
+    final HashMap<String, CachedSize> mSizeCache = new HashMap<String, CachedSize>();
+    SizeRequest mComputingSize;
+
+    final Runnable mComputeSizes = new Runnable() {
+        public void run() {
+            while (true) {
+                final SizeRequest request;
+                synchronized (mSizeRequests) {
+                    if (mSizeRequests.isEmpty()) {
+                        return;
+                    }
+                    request = mSizeRequests.remove(0);
+                    mSizeRequestsByName.remove(request.packageName);
+                    mComputingSize = request;
+                }
+                try {
+                    computePackageSize(request);
+                } finally {
+                    synchronized (mSizeRequests) {
+                        mComputingSize = null;
+                    }
+                }
+            }
+        }
+    };
+
+    // Delay before settings changes get written, so that a burst of changes
+    // is written once.
+    static final long WRITE_SETTINGS_DELAY = 1000;
+
+    // Set while mWriteSettings is posted; guarded by mPackages.
+    boolean mWriteSettingsPending;
+
+    final Runnable mWriteSettings = new Runnable() {
+        public void run() {
+            Settings.Snapshot snapshot;
+            synchronized (mPackages) {
+                mWriteSettingsPending = false;
+                snapshot = mSettings.snapshotLP();
+            }
+            if (snapshot != null) {
+                mSettings.writeSnapshot(snapshot);
+            }
+        }
+    };
+
+    // Writes the certificate cache after packages were added or removed,
+    // off the package lock.
+    final Runnable mWriteScanCache = new Runnable() {
+        public void run() {
+            mScanCache.writeLP();
+        }
+    };
+
     final int mSdkVersion = SystemProperties.getInt(
             "ro.build.version.sdk", 0);
+
+    // Number of threads parsing packages while scanning a directory at boot;
+    // 1 scans serially.
+    final int mScanThreads = SystemProperties.getInt(
+            "ro.pm.scan_threads", 1);
     
     final Context mContext;
     final boolean mFactoryTest;
@@ -201,11 +320,60 @@ class PackageManagerService extends IPackageManager.Stub {
 
     final Settings mSettings;
     boolean mRestoredSettings;
+
+    // Certificates of the package files seen by previous scans.
+    final ScanCache mScanCache;
+
+    // Canonical certificate arrays of the packages and shared users.
+    static final SignatureRegistry sSignatureRegistry = new SignatureRegistry();
     boolean mReportedUidError;
 
     // Group-ids that are given to all packages as read from etc/permissions.xml.
     int[] mGlobalGids;
 
+    /**
+     * Copy of the state read by the most frequent queries, so that they can
+     * be answered without waiting for mPackages while packages are being
+     * installed or removed.  Never modified once published: each change to
+     * that state publishes a new one.
+     *
+     * Only getPackageInfo(), getPackageUid(), getPackageGids(),
+     * getApplicationInfo(), checkPermission() and checkUidPermission() read
+     * it.  Intent resolution still needs mPackages, except for the results
+     * found in mResolveCache.
+     *
+     * The packages are not copied but shared with mPackages: a package must
+     * not be modified once it is in mPackages.  The only exception is
+     * mPreferredOrder, which the queries reading the snapshot ignore.
+     *
+     * Granted permissions are bitsets indexed by the permission ids of
+     * permissionIds, see isPermissionGranted().
+     */
+    static final class ReadSnapshot {
+        // Package name -> package.
+        final HashMap<String, PackageParser.Package> packages =
+                new HashMap<String, PackageParser.Package>();
+        // Package name -> gids of its uid, for packages with settings.
+        final HashMap<String, int[]> packageGids = new HashMap<String, int[]>();
+        // Package name -> permissions granted to its uid.
+        final HashMap<String, int[]> packagePermissions =
+                new HashMap<String, int[]>();
+        // Uid -> permissions granted to it.
+        final SparseArray<int[]> uidPermissions = new SparseArray<int[]>();
+        // Permission name -> permission id.
+        HashMap<String, Integer> permissionIds = new HashMap<String, Integer>();
+    }
+
+    volatile ReadSnapshot mReadSnapshot = new ReadSnapshot();
+    // Snapshots are published once the boot scan is over; guarded by mPackages.
+    boolean mPublishSnapshots;
+
+    // Permission name -> dense id, assigned the first time the permission
+    // is granted.  Ids are never reused.
+    final HashMap<String, Integer> mPermissionIds = new HashMap<String, Integer>();
+    // Set when ids were assigned since the last published snapshot.
+    boolean mPermissionIdsChanged;
+
     // These are the built-in uid -> permission mappings that were read from the
     // etc/permissions.xml file.
     final SparseArray<HashSet<String>> mSystemPermissions =
@@ -219,6 +387,30 @@ class PackageManagerService extends IPackageManager.Stub {
     final ActivityIntentResolver mActivities =
             new ActivityIntentResolver();
 
+    // Results of queryIntentActivities(), by resolveCacheKey(); cleared
+    // whenever activities, their enabled state or the preferred packages
+    // change.  The cached lists and ResolveInfos are never handed out,
+    // only copies of them.  Guarded by itself, so that cached results are
+    // handed out without waiting for mPackages.  Results are added and the
+    // cache cleared with mPackages held too, so a result is never added
+    // after the change that made it stale.
+    static final int MAX_RESOLVE_CACHE_SIZE = 64;
+    final LinkedHashMap<String, List<ResolveInfo>> mResolveCache =
+            new LinkedHashMap<String, List<ResolveInfo>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<ResolveInfo>> eldest) {
+            return size() > MAX_RESOLVE_CACHE_SIZE;
+        }
+    };
+    int mResolveCacheHits;
+    int mResolveCacheMisses;
+
+    void clearResolveCacheLP() {
+        synchronized (mResolveCache) {
+            mResolveCache.clear();
+        }
+    }
+
     // All available receivers, for your resolving pleasure.
     final ActivityIntentResolver mReceivers =
             new ActivityIntentResolver();
@@ -336,6 +528,8 @@ class PackageManagerService extends IPackageManager.Stub {
         synchronized (mPackages) {
             mHandlerThread.start();
             mHandler = new Handler(mHandlerThread.getLooper());
+            mSizeThread.start();
+            mSizeHandler = new Handler(mSizeThread.getLooper());
             
             File dataDir = Environment.getDataDirectory();
             mAppDataDir = new File(dataDir, "data");
@@ -354,6 +548,8 @@ class PackageManagerService extends IPackageManager.Stub {
             readPermissions();
 
             mRestoredSettings = mSettings.readLP();
+            mScanCache = new ScanCache(new File(dataDir, "system"));
+            mScanCache.readLP(SystemProperties.get("ro.build.fingerprint"));
             long startTime = SystemClock.uptimeMillis();
             
             EventLog.writeEvent(LOG_BOOT_PROGRESS_PMS_SYSTEM_SCAN_START,
@@ -490,7 +686,11 @@ class PackageManagerService extends IPackageManager.Stub {
 
             updatePermissionsLP();
 
+            mPublishSnapshots = true;
+            publishSnapshotLP();
+
             mSettings.writeLP();
+            mScanCache.writeLP();
 
             EventLog.writeEvent(LOG_BOOT_PROGRESS_PMS_READY,
                     SystemClock.uptimeMillis());
@@ -530,6 +730,7 @@ class PackageManagerService extends IPackageManager.Stub {
             dataDir.delete();
         }
         mSettings.removePackageLP(packageName);
+        publishSnapshotLP();
     }
 
     void readPermissions() {
@@ -709,37 +910,124 @@ class PackageManagerService extends IPackageManager.Stub {
         return PackageParser.generatePackageInfo(p, gp.gids, flags);
     }
 
-    public PackageInfo getPackageInfo(String packageName, int flags) {
-        synchronized (mPackages) {
-            PackageParser.Package p = mPackages.get(packageName);
-            if (Config.LOGV) Log.v(
-                TAG, "getApplicationInfo " + packageName
-                + ": " + p);
-            if (p != null) {
-                return generatePackageInfo(p, flags);
+    /**
+     * Publish a new snapshot of the state read by the lock-free queries.
+     */
+    void publishSnapshotLP() {
+        if (!mPublishSnapshots) {
+            return;
+        }
+        ReadSnapshot snapshot = new ReadSnapshot();
+        snapshot.packages.putAll(mPackages);
+
+        // Uids without settings only have the permissions assigned to them
+        // by the system.
+        final int NS = mSystemPermissions.size();
+        for (int i=0; i<NS; i++) {
+            int[] bits = null;
+            for (String perm : mSystemPermissions.valueAt(i)) {
+                bits = setPermissionBit(bits, getPermissionIdLP(perm));
+            }
+            snapshot.uidPermissions.put(mSystemPermissions.keyAt(i), bits);
+        }
+        // The bitsets are never modified, only replaced: share them.
+        for (SharedUserSetting sus : mSettings.mSharedUsers.values()) {
+            snapshot.uidPermissions.put(sus.userId, sus.grantedPermissionBits);
+        }
+        for (PackageSetting ps : mSettings.mPackages.values()) {
+            if (ps.sharedUser == null) {
+                snapshot.uidPermissions.put(ps.userId, ps.grantedPermissionBits);
+            }
+        }
+        for (PackageParser.Package p : mPackages.values()) {
+            final PackageSetting ps = (PackageSetting)p.mExtras;
+            if (ps != null) {
+                final GrantedPermissions gp = ps.sharedUser != null ? ps.sharedUser : ps;
+                snapshot.packageGids.put(p.packageName, gp.gids);
+                snapshot.packagePermissions.put(p.packageName, gp.grantedPermissionBits);
             }
         }
+
+        if (mPermissionIdsChanged) {
+            snapshot.permissionIds = new HashMap<String, Integer>(mPermissionIds);
+            mPermissionIdsChanged = false;
+        } else {
+            snapshot.permissionIds = mReadSnapshot.permissionIds;
+        }
+
+        mReadSnapshot = snapshot;
+    }
+
+    /**
+     * Return the id of the given permission, assigning one if needed.
+     */
+    int getPermissionIdLP(String permName) {
+        Integer id = mPermissionIds.get(permName);
+        if (id == null) {
+            id = mPermissionIds.size();
+            mPermissionIds.put(permName, id);
+            mPermissionIdsChanged = true;
+        }
+        return id;
+    }
+
+    /**
+     * Return a copy of the given bitset with the given bit set, or the
+     * bitset itself if the bit was set already.
+     */
+    static int[] setPermissionBit(int[] bits, int id) {
+        final int word = id >> 5;
+        final int mask = 1 << (id & 31);
+        if (bits != null && word < bits.length && (bits[word] & mask) != 0) {
+            return bits;
+        }
+        int[] newBits = new int[bits != null && bits.length > word ? bits.length : word + 1];
+        if (bits != null) {
+            System.arraycopy(bits, 0, newBits, 0, bits.length);
+        }
+        newBits[word] |= mask;
+        return newBits;
+    }
+
+    static boolean isPermissionGranted(ReadSnapshot snapshot, String permName,
+            int[] bits) {
+        if (bits == null) {
+            return false;
+        }
+        Integer id = snapshot.permissionIds.get(permName);
+        if (id == null) {
+            return false;
+        }
+        final int word = id >> 5;
+        return word < bits.length && (bits[word] & (1 << (id & 31))) != 0;
+    }
+
+    public PackageInfo getPackageInfo(String packageName, int flags) {
+        final ReadSnapshot snapshot = mReadSnapshot;
+        PackageParser.Package p = snapshot.packages.get(packageName);
+        if (Config.LOGV) Log.v(
+            TAG, "getApplicationInfo " + packageName
+            + ": " + p);
+        if (p != null && snapshot.packageGids.containsKey(packageName)) {
+            return PackageParser.generatePackageInfo(p,
+                    snapshot.packageGids.get(packageName), flags);
+        }
         return null;
     }
 
     public int getPackageUid(String packageName) {
-        synchronized (mPackages) {
-            PackageParser.Package p = mPackages.get(packageName);
-            return p != null ? p.applicationInfo.uid : -1;
-        }
+        PackageParser.Package p = mReadSnapshot.packages.get(packageName);
+        return p != null ? p.applicationInfo.uid : -1;
     }
 
     public int[] getPackageGids(String packageName) {
-        synchronized (mPackages) {
-            PackageParser.Package p = mPackages.get(packageName);
-            if (Config.LOGV) Log.v(
-                TAG, "getApplicationInfo " + packageName
-                + ": " + p);
-            if (p != null) {
-                final PackageSetting ps = (PackageSetting)p.mExtras;
-                final SharedUserSetting suid = ps.sharedUser;
-                return suid != null ? suid.gids : ps.gids;
-            }
+        final ReadSnapshot snapshot = mReadSnapshot;
+        PackageParser.Package p = snapshot.packages.get(packageName);
+        if (Config.LOGV) Log.v(
+            TAG, "getApplicationInfo " + packageName
+            + ": " + p);
+        if (p != null) {
+            return snapshot.packageGids.get(packageName);
         }
         // stupid thing to indicate an error.
         return new int[0];
@@ -797,18 +1085,16 @@ class PackageManagerService extends IPackageManager.Stub {
     }
     
     public ApplicationInfo getApplicationInfo(String packageName, int flags) {
-        synchronized (mPackages) {
-            PackageParser.Package p = mPackages.get(packageName);
-            if (Config.LOGV) Log.v(
-                TAG, "getApplicationInfo " + packageName
-                + ": " + p);
-            if (p != null) {
-                // Note: isEnabledLP() does not apply here - always return info
-                return PackageParser.generateApplicationInfo(p, flags);
-            }
-            if ("android".equals(packageName)||"system".equals(packageName)) {
-                return mAndroidApplication;
-            }
+        PackageParser.Package p = mReadSnapshot.packages.get(packageName);
+        if (Config.LOGV) Log.v(
+            TAG, "getApplicationInfo " + packageName
+            + ": " + p);
+        if (p != null) {
+            // Note: isEnabledLP() does not apply here - always return info
+            return PackageParser.generateApplicationInfo(p, flags);
+        }
+        if ("android".equals(packageName)||"system".equals(packageName)) {
+            return mAndroidApplication;
         }
         return null;
     }
@@ -827,6 +1113,7 @@ class PackageManagerService extends IPackageManager.Stub {
                         Log.w(TAG, "Couldn't clear application caches");
                         succeded = false;
                     } 
+                    invalidatePackageSize(null);
                 } //end if mInstaller
                 if(observer != null) {
                     try {
@@ -879,56 +1166,25 @@ class PackageManagerService extends IPackageManager.Stub {
     }
 
     public int checkPermission(String permName, String pkgName) {
-        synchronized (mPackages) {
-            PackageParser.Package p = mPackages.get(pkgName);
-            if (p != null && p.mExtras != null) {
-                PackageSetting ps = (PackageSetting)p.mExtras;
-                if (ps.sharedUser != null) {
-                    if (ps.sharedUser.grantedPermissions.contains(permName)) {
-                        return PackageManager.PERMISSION_GRANTED;
-                    }
-                } else if (ps.grantedPermissions.contains(permName)) {
-                    return PackageManager.PERMISSION_GRANTED;
-                }
-            }
+        final ReadSnapshot snapshot = mReadSnapshot;
+        if (isPermissionGranted(snapshot, permName,
+                snapshot.packagePermissions.get(pkgName))) {
+            return PackageManager.PERMISSION_GRANTED;
         }
         return PackageManager.PERMISSION_DENIED;
     }
 
     public int checkUidPermission(String permName, int uid) {
-        synchronized (mPackages) {
-            Object obj = mSettings.getUserIdLP(uid);
-            if (obj != null) {
-                if (obj instanceof SharedUserSetting) {
-                    SharedUserSetting sus = (SharedUserSetting)obj;
-                    if (sus.grantedPermissions.contains(permName)) {
-                        return PackageManager.PERMISSION_GRANTED;
-                    }
-                } else if (obj instanceof PackageSetting) {
-                    PackageSetting ps = (PackageSetting)obj;
-                    if (ps.grantedPermissions.contains(permName)) {
-                        return PackageManager.PERMISSION_GRANTED;
-                    }
-                }
-            } else {
-                HashSet<String> perms = mSystemPermissions.get(uid);
-                if (perms != null && perms.contains(permName)) {
-                    return PackageManager.PERMISSION_GRANTED;
-                }
-            }
+        final ReadSnapshot snapshot = mReadSnapshot;
+        if (isPermissionGranted(snapshot, permName,
+                snapshot.uidPermissions.get(uid))) {
+            return PackageManager.PERMISSION_GRANTED;
         }
         return PackageManager.PERMISSION_DENIED;
     }
 
     private BasePermission findPermissionTreeLP(String permName) {
-        for(BasePermission bp : mSettings.mPermissionTrees.values()) {
-            if (permName.startsWith(bp.name) &&
-                    permName.length() > bp.name.length() &&
-                    permName.charAt(bp.name.length()) == '.') {
-                return bp;
-            }
-        }
-        return null;
+        return mSettings.mPermissionTreeIndex.find(permName);
     }
 
     private BasePermission checkPermissionTreeLP(String permName) {
@@ -970,7 +1226,8 @@ class PackageManagerService extends IPackageManager.Stub {
             if (added) {
                 mSettings.mPermissions.put(info.name, bp);
             }
-            mSettings.writeLP();
+            mSettings.permissionChangedLP(info.name);
+            scheduleWriteSettingsLP();
             return added;
         }
     }
@@ -986,7 +1243,8 @@ class PackageManagerService extends IPackageManager.Stub {
                             + name);
                 }
                 mSettings.mPermissions.remove(name);
-                mSettings.writeLP();
+                mSettings.permissionChangedLP(name);
+                scheduleWriteSettingsLP();
             }
         }
     }
@@ -1012,12 +1270,19 @@ class PackageManagerService extends IPackageManager.Stub {
         if (p2.mSignatures == null) {
             return PackageManager.SIGNATURE_SECOND_NOT_SIGNED;
         }
+        if (p1.mSignatures == p2.mSignatures) {
+            return PackageManager.SIGNATURE_MATCH;
+        }
+        // Interned arrays hold canonical certificates.
+        final boolean interned = sSignatureRegistry.isInterned(p1.mSignatures)
+                && sSignatureRegistry.isInterned(p2.mSignatures);
         final int N1 = p1.mSignatures.length;
         final int N2 = p2.mSignatures.length;
         for (int i=0; i<N1; i++) {
             boolean match = false;
             for (int j=0; j<N2; j++) {
-                if (p1.mSignatures[i].equals(p2.mSignatures[j])) {
+                if (interned ? p1.mSignatures[i] == p2.mSignatures[j]
+                        : p1.mSignatures[i].equals(p2.mSignatures[j])) {
                     match = true;
                     break;
                 }
@@ -1183,10 +1448,91 @@ class PackageManagerService extends IPackageManager.Stub {
             return list;
         }
 
-        synchronized (mPackages) {
-            return (List<ResolveInfo>)mActivities.
-                queryIntent(null, intent, resolvedType, flags);
+        final String key = resolveCacheKey(intent, resolvedType, flags);
+        if (key == null) {
+            synchronized (mPackages) {
+                return (List<ResolveInfo>)mActivities.
+                    queryIntent(null, intent, resolvedType, flags);
+            }
+        }
+        List<ResolveInfo> list;
+        synchronized (mResolveCache) {
+            list = mResolveCache.get(key);
+            if (list != null) {
+                mResolveCacheHits++;
+            }
         }
+        if (list == null) {
+            synchronized (mPackages) {
+                list = (List<ResolveInfo>)mActivities.
+                    queryIntent(null, intent, resolvedType, flags);
+                synchronized (mResolveCache) {
+                    mResolveCacheMisses++;
+                    mResolveCache.put(key, list);
+                }
+            }
+        }
+        // Callers may modify the list they get, and the ResolveInfos
+        // in it: hand out copies, the cached entries stay untouched.
+        final int N = list.size();
+        List<ResolveInfo> result = new ArrayList<ResolveInfo>(N);
+        for (int i=0; i<N; i++) {
+            result.add(copyResolveInfo(list.get(i)));
+        }
+        return result;
+    }
+
+    /**
+     * Return a copy of the given ResolveInfo, with its own ActivityInfo or
+     * ServiceInfo.
+     */
+    private static ResolveInfo copyResolveInfo(ResolveInfo orig) {
+        ResolveInfo ri = new ResolveInfo();
+        if (orig.activityInfo != null) {
+            ri.activityInfo = new ActivityInfo(orig.activityInfo);
+        }
+        if (orig.serviceInfo != null) {
+            ri.serviceInfo = new ServiceInfo(orig.serviceInfo);
+        }
+        ri.filter = orig.filter;
+        ri.priority = orig.priority;
+        ri.preferredOrder = orig.preferredOrder;
+        ri.match = orig.match;
+        ri.specificIndex = orig.specificIndex;
+        ri.isDefault = orig.isDefault;
+        ri.labelRes = orig.labelRes;
+        ri.nonLocalizedLabel = orig.nonLocalizedLabel;
+        ri.icon = orig.icon;
+        return ri;
+    }
+
+    /**
+     * Return the key of the results of the given query in mResolveCache,
+     * made of everything the intent filters match on, or null if they
+     * should not be cached.
+     */
+    private static String resolveCacheKey(Intent intent, String resolvedType,
+            int flags) {
+        if ((flags&PackageManager.GET_RESOLVED_FILTER) != 0
+                || (intent.getFlags()&Intent.FLAG_DEBUG_LOG_RESOLUTION) != 0) {
+            // Callers of the former modify the ResolveInfos; the latter
+            // wants the resolution logged.
+            return null;
+        }
+        StringBuilder key = new StringBuilder(128);
+        key.append(Integer.toHexString(flags));
+        key.append('\0').append(intent.getAction());
+        key.append('\0').append(resolvedType);
+        key.append('\0').append(intent.getData());
+        Set<String> categories = intent.getCategories();
+        if (categories != null) {
+            String[] sorted = categories.toArray(new String[categories.size()]);
+            Arrays.sort(sorted);
+            for (int i=0; i<sorted.length; i++) {
+                key.append('\0').append(sorted[i]);
+            }
+        }
+        return key.toString();
     }
 
     public List<ResolveInfo> queryIntentActivityOptions(ComponentName caller,
@@ -1539,6 +1885,11 @@ class PackageManagerService extends IPackageManager.Stub {
 
         String[] files = dir.list();
 
+        if (mScanThreads > 1 && files.length > 1) {
+            scanDirInParallelLI(dir, files, flags, scanMode);
+            return;
+        }
+
         int i;
         for (i=0; i<files.length; i++) {
             File file = new File(dir, files[i]);
@@ -1547,6 +1898,128 @@ class PackageManagerService extends IPackageManager.Stub {
         }
     }
 
+    /**
+     * Outcome of parsing a package file during a parallel directory scan.
+     */
+    static final class ParsedPackage {
+        final File scanFile;
+        final int parseFlags;
+        PackageParser.Package pkg;
+        int error = PackageManager.INSTALL_SUCCEEDED;
+
+        ParsedPackage(File scanFile, int parseFlags) {
+            this.scanFile = scanFile;
+            this.parseFlags = parseFlags;
+        }
+    }
+
+    /**
+     * Like the serial scan of scanDirLI(), but the files are parsed and their
+     * certificates collected on a pool of mScanThreads threads.  The packages
+     * are then added one at a time on the calling thread, in the order of the
+     * files, so that the outcome is the same as that of a serial scan.
+     *
+     * The caller holds mPackages, so the workers look up the package settings
+     * in a copy of mSettings.mPackages taken before the scan.  They only read
+     * the code path and time stamp of these settings, which only change when
+     * the same package gets added, after its parse completed.
+     */
+    private void scanDirInParallelLI(File dir, String[] files, int flags, int scanMode) {
+        final int parseFlags = flags | PackageParser.PARSE_MUST_BE_APK | mDefParseFlags;
+        final HashMap<String, PackageSetting> settings =
+                new HashMap<String, PackageSetting>(mSettings.mPackages);
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(mScanThreads, files.length));
+        try {
+            ArrayList<Future<ParsedPackage>> results =
+                    new ArrayList<Future<ParsedPackage>>(files.length);
+            for (int i=0; i<files.length; i++) {
+                final File file = new File(dir, files[i]);
+                results.add(executor.submit(new Callable<ParsedPackage>() {
+                    public ParsedPackage call() {
+                        return parsePackageForScan(file, parseFlags, settings);
+                    }
+                }));
+            }
+            for (int i=0; i<files.length; i++) {
+                ParsedPackage parsed = waitForParsedPackage(results.get(i));
+                if (parsed == null) {
+                    mLastScanError = PackageManager.INSTALL_PARSE_FAILED_UNEXPECTED_EXCEPTION;
+                    continue;
+                }
+                mLastScanError = parsed.error;
+                if (parsed.pkg == null) {
+                    continue;
+                }
+                File file = parsed.scanFile;
+                int mode = scanMode;
+                PackageSetting ps = mSettings.peekPackageLP(parsed.pkg.packageName,
+                        file.toString());
+                // The apk is forward locked (not public) if its code and resources
+                // are kept in different files.
+                if (ps != null && !ps.codePath.equals(ps.resourcePath)) {
+                    mode |= SCAN_FORWARD_LOCKED;
+                }
+                scanPackageLI(file, file, file, parsed.pkg, parsed.parseFlags,
+                        mode | SCAN_UPDATE_SIGNATURE);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static ParsedPackage waitForParsedPackage(Future<ParsedPackage> result) {
+        while (true) {
+            try {
+                return result.get();
+            } catch (InterruptedException e) {
+                // The scan cannot go on without this package; keep waiting.
+            } catch (ExecutionException e) {
+                Log.w(TAG, "Exception parsing package", e.getCause());
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Parses the given package file and collects its certificates if they may
+     * have changed, as scanPackageLI() does, without touching any shared state.
+     */
+    private ParsedPackage parsePackageForScan(File scanFile, int parseFlags,
+            HashMap<String, PackageSetting> settings) {
+        ParsedPackage result = new ParsedPackage(scanFile, parseFlags);
+        PackageParser pp = new PackageParser(scanFile.getPath());
+        pp.setSeparateProcesses(mSeparateProcesses);
+        pp.setSdkVersion(mSdkVersion);
+        final PackageParser.Package pkg = pp.parsePackage(scanFile,
+                scanFile.getAbsolutePath(), mMetrics, parseFlags);
+        if (pkg == null) {
+            result.error = pp.getParseError();
+            return result;
+        }
+        if (GET_CERTIFICATES) {
+            PackageSetting ps = settings.get(pkg.packageName);
+            if (ps == null || !ps.codePath.equals(scanFile)
+                    || ps.timeStamp != scanFile.lastModified()) {
+                Signature[] sigs = mScanCache.getSignatures(scanFile);
+                if (sigs != null) {
+                    pkg.mSignatures = sSignatureRegistry.intern(sigs);
+                    result.pkg = pkg;
+                    return result;
+                }
+                Log.i(TAG, scanFile.toString() + " changed; collecting certs");
+                if (!pp.collectCertificates(pkg, parseFlags)) {
+                    result.error = pp.getParseError();
+                    return result;
+                }
+                pkg.mSignatures = sSignatureRegistry.intern(pkg.mSignatures);
+                mScanCache.putSignatures(scanFile, pkg.mSignatures);
+            }
+        }
+        result.pkg = pkg;
+        return result;
+    }
+
     private static void reportSettingsProblem(int priority, String msg) {
         try {
             File dataDir = Environment.getDataDirectory();
@@ -1570,11 +2043,18 @@ class PackageManagerService extends IPackageManager.Stub {
         if (GET_CERTIFICATES) {
             if (ps == null || !ps.codePath.equals(srcFile)
                     || ps.timeStamp != srcFile.lastModified()) {
+                Signature[] sigs = mScanCache.getSignatures(srcFile);
+                if (sigs != null) {
+                    pkg.mSignatures = sSignatureRegistry.intern(sigs);
+                    return true;
+                }
                 Log.i(TAG, srcFile.toString() + " changed; collecting certs");
                 if (!pp.collectCertificates(pkg, parseFlags)) {
                     mLastScanError = pp.getParseError();
                     return false;
                 }
+                pkg.mSignatures = sSignatureRegistry.intern(pkg.mSignatures);
+                mScanCache.putSignatures(srcFile, pkg.mSignatures);
             }
         }
         return true;
@@ -2059,6 +2539,7 @@ class PackageManagerService extends IPackageManager.Stub {
                 a.info.processName = fixProcessName(pkg.applicationInfo.processName,
                         a.info.processName, pkg.applicationInfo.uid);
                 mActivities.addActivity(a, "activity");
+                clearResolveCacheLP();
                 if ((parseFlags&PackageParser.PARSE_CHATTY) != 0) {
                     if (r == null) {
                         r = new StringBuilder(256);
@@ -2120,6 +2601,9 @@ class PackageManagerService extends IPackageManager.Stub {
                         bp = new BasePermission(p.info.name, p.info.packageName,
                                 BasePermission.TYPE_NORMAL);
                         permissionMap.put(p.info.name, bp);
+                        if (p.tree) {
+                            mSettings.mPermissionTreeIndex.add(bp);
+                        }
                     }
                     if (bp.perm == null) {
                         if (bp.sourcePackage == null
@@ -2190,6 +2674,9 @@ class PackageManagerService extends IPackageManager.Stub {
             }
     
             pkgSetting.setTimeStamp(scanFileTime);
+
+            invalidatePackageSize(pkg.packageName);
+            publishSnapshotLP();
         }
         
         return pkg;
@@ -2292,6 +2779,8 @@ class PackageManagerService extends IPackageManager.Stub {
             mPackages.remove(pkg.applicationInfo.packageName);
             if (pkg.mPath != null) {
                 mAppDirs.remove(pkg.mPath);
+                mScanCache.remove(pkg.mPath);
+                mHandler.post(mWriteScanCache);
             }
     
             PackageSetting ps = (PackageSetting)pkg.mExtras;
@@ -2384,6 +2873,7 @@ class PackageManagerService extends IPackageManager.Stub {
             for (i=0; i<N; i++) {
                 PackageParser.Activity a = pkg.activities.get(i);
                 mActivities.removeActivity(a, "activity");
+                clearResolveCacheLP();
                 if (chatty) {
                     if (r == null) {
                         r = new StringBuilder(256);
@@ -2411,6 +2901,7 @@ class PackageManagerService extends IPackageManager.Stub {
                     if (bp.type != BasePermission.TYPE_BUILTIN) {
                         if (tree) {
                             mSettings.mPermissionTrees.remove(p.info.name);
+                            mSettings.mPermissionTreeIndex.remove(p.info.name);
                         } else {
                             mSettings.mPermissions.remove(p.info.name);
                         }
@@ -2448,6 +2939,9 @@ class PackageManagerService extends IPackageManager.Stub {
             if (r != null) {
                 if (Config.LOGD) Log.d(TAG, "  Instrumentation: " + r);
             }
+
+            invalidatePackageSize(pkg.packageName);
+            publishSnapshotLP();
         }
     }
 
@@ -2465,6 +2959,7 @@ class PackageManagerService extends IPackageManager.Stub {
                 Log.w(TAG, "Removing dangling permission tree: " + bp.name
                         + " from package " + bp.sourcePackage);
                 it.remove();
+                mSettings.mPermissionTreeIndex.remove(bp.name);
             }
         }
 
@@ -2500,6 +2995,7 @@ class PackageManagerService extends IPackageManager.Stub {
         for (PackageParser.Package pkg : mPackages.values()) {
             grantPermissionsLP(pkg, false);
         }
+        publishSnapshotLP();
     }
 
     private void grantPermissionsLP(PackageParser.Package pkg, boolean replace) {
@@ -2514,6 +3010,7 @@ class PackageManagerService extends IPackageManager.Stub {
             ps.permissionsFixed = false;
             if (gp == ps) {
                 gp.grantedPermissions.clear();
+                gp.grantedPermissionBits = null;
                 gp.gids = mGlobalGids;
             }
         }
@@ -2571,6 +3068,8 @@ class PackageManagerService extends IPackageManager.Stub {
                         if (!gp.grantedPermissions.contains(perm)) {
                             addedPermission = true;
                             gp.grantedPermissions.add(perm);
+                            gp.grantedPermissionBits = setPermissionBit(
+                                    gp.grantedPermissionBits, getPermissionIdLP(perm));
                             gp.gids = appendInts(gp.gids, bp.gids);
                         }
                     } else {
@@ -2965,6 +3464,7 @@ class PackageManagerService extends IPackageManager.Stub {
                         if (p != null) {
                             synchronized (mPackages) {
                                 grantPermissionsLP(p, false);
+                                publishSnapshotLP();
                             }
                             addedPackage = p.applicationInfo.packageName;
                             addedUid = p.applicationInfo.uid;
@@ -2975,6 +3475,7 @@ class PackageManagerService extends IPackageManager.Stub {
                 synchronized (mPackages) {
                     mSettings.writeLP();
                 }
+                mHandler.post(mWriteScanCache);
             }
 
             if (removedPackage != null) {
@@ -3136,6 +3637,7 @@ class PackageManagerService extends IPackageManager.Stub {
                 returnCode = pp.getParseError();
                 break main_flow;
             }
+            pkg.mSignatures = sSignatureRegistry.intern(pkg.mSignatures);
             
             boolean replacingExistingPackage = false;
             
@@ -3249,6 +3751,7 @@ class PackageManagerService extends IPackageManager.Stub {
                 
                 synchronized (mPackages) {
                     grantPermissionsLP(newPackage, true);
+                    publishSnapshotLP();
                     installedPackageName = pkgName;
                     installedPackageUid = newPackage.applicationInfo.uid;
                     installedPackage = newPackage;
@@ -3263,6 +3766,7 @@ class PackageManagerService extends IPackageManager.Stub {
                     returnCode = PackageManager.INSTALL_SUCCEEDED;
                     //to update install status
                     mSettings.writeLP();
+                    mHandler.post(mWriteScanCache);
                     break main_flow;
                 }
             } else {
@@ -3569,6 +4073,7 @@ class PackageManagerService extends IPackageManager.Stub {
             }
             synchronized (mPackages) {
                 outInfo.removedUid = mSettings.removePackageLP(packageName);
+                publishSnapshotLP();
             }
         }
         return true;
@@ -3586,6 +4091,7 @@ class PackageManagerService extends IPackageManager.Stub {
                 synchronized (mInstallLock) {
                     succeded = clearApplicationUserDataLI(packageName);
                 }
+                invalidatePackageSize(packageName);
                 if(succeded) {
                     //invoke DeviceMemoryMonitor's update method to clear any notifications
                     DeviceMemoryMonitorService dmm = (DeviceMemoryMonitorService)
@@ -3646,6 +4152,7 @@ class PackageManagerService extends IPackageManager.Stub {
                 synchronized (mInstallLock) {
                     succeded = deleteApplicationCacheFilesLI(packageName);
                 }
+                invalidatePackageSize(packageName);
                 if(observer != null) {
                     try {
                         observer.onRemoveCompleted(packageName, succeded);
@@ -3688,62 +4195,164 @@ class PackageManagerService extends IPackageManager.Stub {
 
     public void getPackageSizeInfo(final String packageName,
             final IPackageStatsObserver observer) {
+        getPackageSizesInfo(new String[] { packageName }, observer);
+    }
+
+    /**
+     * Compute the sizes of the given packages, reporting each of them to
+     * the observer as soon as it is known.  Requests for a package that is
+     * already queued share its computation.
+     */
+    public void getPackageSizesInfo(String[] packageNames,
+            IPackageStatsObserver observer) {
         mContext.enforceCallingOrSelfPermission(
                 android.Manifest.permission.GET_PACKAGE_SIZE, null);
-        // Queue up an async operation since the package deletion may take a little while.
-        mHandler.post(new Runnable() {
-            public void run() {
-                mHandler.removeCallbacks(this);
-                PackageStats lStats = new PackageStats(packageName);
-                final boolean succeded;
-                synchronized (mInstallLock) {
-                    succeded = getPackageSizeInfoLI(packageName, lStats);
+        if (observer == null) {
+            return;
+        }
+        synchronized (mSizeRequests) {
+            final boolean idle = mSizeRequests.isEmpty();
+            for (int i=0; i<packageNames.length; i++) {
+                SizeRequest request = mSizeRequestsByName.get(packageNames[i]);
+                if (request == null) {
+                    request = new SizeRequest(packageNames[i]);
+                    mSizeRequests.add(request);
+                    mSizeRequestsByName.put(request.packageName, request);
                 }
-                if(observer != null) {
-                    try {
-                        observer.onGetStatsCompleted(lStats, succeded);
-                    } catch (RemoteException e) {
-                        Log.i(TAG, "Observer no longer exists.");
-                    }
-                } //end if observer
-            } //end run
-        });
+                request.observers.add(observer);
+            }
+            if (idle && !mSizeRequests.isEmpty()) {
+                mSizeHandler.post(mComputeSizes);
+            }
+        }
     }
 
-    private boolean getPackageSizeInfoLI(String packageName, PackageStats pStats) {
-        if (packageName == null) {
-            Log.w(TAG, "Attempt to get size of null packageName.");
-            return false;
-        }
-        PackageParser.Package p;
-        synchronized (mPackages) {
-            p = mPackages.get(packageName);
-        }
-        if (p == null) {
-            Log.w(TAG, "Package named '" + packageName +"' doesn't exist.");
-            return false;
-        }
-        final ApplicationInfo applicationInfo = p.applicationInfo;
-        if (applicationInfo == null) {
-            Log.w(TAG, "Package " + packageName + " has no applicationInfo.");
-            return false;
+    /**
+     * Drop the requests of the given observer whose sizes are not being
+     * computed yet, when the caller no longer needs them.
+     */
+    public void cancelPackageSizeInfo(IPackageStatsObserver observer) {
+        mContext.enforceCallingOrSelfPermission(
+                android.Manifest.permission.GET_PACKAGE_SIZE, null);
+        if (observer == null) {
+            return;
         }
-        if (mInstaller != null) {
-            int res = mInstaller.getSizeInfo(packageName, p.mPath,
-                    isForwardLocked(p) ? applicationInfo.publicSourceDir : null,
-                            pStats);
-            if (res < 0) {
-                return false;
-            } else {
-                return true;
+        final IBinder binder = observer.asBinder();
+        synchronized (mSizeRequests) {
+            for (int i=mSizeRequests.size()-1; i>=0; i--) {
+                SizeRequest request = mSizeRequests.get(i);
+                for (int j=request.observers.size()-1; j>=0; j--) {
+                    if (request.observers.get(j).asBinder() == binder) {
+                        request.observers.remove(j);
+                    }
+                }
+                if (request.observers.isEmpty()) {
+                    mSizeRequests.remove(i);
+                    mSizeRequestsByName.remove(request.packageName);
+                }
             }
         }
-        return true;
     }
 
-        
-    public void addPackageToPreferred(String packageName) {
-        mContext.enforceCallingOrSelfPermission(
+    /**
+     * Forget the computed size of the given package, or of all packages if
+     * null, after its files changed.
+     */
+    void invalidatePackageSize(String packageName) {
+        synchronized (mSizeRequests) {
+            if (packageName == null) {
+                mSizeCache.clear();
+            } else {
+                mSizeCache.remove(packageName);
+            }
+            if (mComputingSize != null && (packageName == null
+                    || packageName.equals(mComputingSize.packageName))) {
+                mComputingSize.invalidated = true;
+            }
+        }
+    }
+
+    // Called on mSizeThread only.
+    private void computePackageSize(SizeRequest request) {
+        // Observers that died meanwhile are not waiting anymore.
+        for (int i=request.observers.size()-1; i>=0; i--) {
+            if (!request.observers.get(i).asBinder().isBinderAlive()) {
+                request.observers.remove(i);
+            }
+        }
+        if (request.observers.isEmpty()) {
+            return;
+        }
+
+        PackageStats stats = null;
+        boolean succeded = true;
+        synchronized (mSizeRequests) {
+            CachedSize cached = mSizeCache.get(request.packageName);
+            if (cached != null && SystemClock.uptimeMillis() - cached.time < SIZE_CACHE_TIMEOUT) {
+                stats = cached.stats;
+            }
+        }
+        if (stats == null) {
+            final long time = SystemClock.uptimeMillis();
+            stats = new PackageStats(request.packageName);
+            succeded = readPackageSize(request.packageName, stats);
+            if (succeded) {
+                synchronized (mSizeRequests) {
+                    if (!request.invalidated) {
+                        mSizeCache.put(request.packageName, new CachedSize(stats, time));
+                    }
+                }
+            }
+        }
+
+        for (int i=0; i<request.observers.size(); i++) {
+            try {
+                request.observers.get(i).onGetStatsCompleted(
+                        new PackageStats(stats), succeded);
+            } catch (RemoteException e) {
+                Log.i(TAG, "Observer no longer exists.");
+            }
+        }
+    }
+
+    /**
+     * Does not need mInstallLock: installd runs one command at a time, and
+     * a package removed meanwhile only makes the query fail.
+     */
+    private boolean readPackageSize(String packageName, PackageStats pStats) {
+        if (packageName == null) {
+            Log.w(TAG, "Attempt to get size of null packageName.");
+            return false;
+        }
+        PackageParser.Package p;
+        synchronized (mPackages) {
+            p = mPackages.get(packageName);
+        }
+        if (p == null) {
+            Log.w(TAG, "Package named '" + packageName +"' doesn't exist.");
+            return false;
+        }
+        final ApplicationInfo applicationInfo = p.applicationInfo;
+        if (applicationInfo == null) {
+            Log.w(TAG, "Package " + packageName + " has no applicationInfo.");
+            return false;
+        }
+        if (mInstaller != null) {
+            int res = mInstaller.getSizeInfo(packageName, p.mPath,
+                    isForwardLocked(p) ? applicationInfo.publicSourceDir : null,
+                            pStats);
+            if (res < 0) {
+                return false;
+            } else {
+                return true;
+            }
+        }
+        return true;
+    }
+
+        
+    public void addPackageToPreferred(String packageName) {
+        mContext.enforceCallingOrSelfPermission(
                 android.Manifest.permission.SET_PREFERRED_APPLICATIONS, null);
 
         synchronized (mPackages) {
@@ -3756,7 +4365,8 @@ class PackageManagerService extends IPackageManager.Stub {
                 mSettings.mPreferredPackages.remove(ps);
                 mSettings.mPreferredPackages.add(0, ps);
                 updatePreferredIndicesLP();
-                mSettings.writeLP();
+                mSettings.preferredPackagesChangedLP();
+                scheduleWriteSettingsLP();
             }
         }
     }
@@ -3776,7 +4386,8 @@ class PackageManagerService extends IPackageManager.Stub {
                     mSettings.mPreferredPackages.remove(ps);
                     p.mPreferredOrder = 0;
                     updatePreferredIndicesLP();
-                    mSettings.writeLP();
+                    mSettings.preferredPackagesChangedLP();
+                    scheduleWriteSettingsLP();
                 }
             }
         }
@@ -3789,6 +4400,8 @@ class PackageManagerService extends IPackageManager.Stub {
         for (int i=0; i<N; i++) {
             pkgs.get(i).pkg.mPreferredOrder = N - i;
         }
+        // The resolved activities are sorted by preferred order.
+        clearResolveCacheLP();
     }
 
     public List<PackageInfo> getPreferredPackages(int flags) {
@@ -3813,7 +4426,8 @@ class PackageManagerService extends IPackageManager.Stub {
             filter.dump(new LogPrinter(Log.INFO, TAG), "  ");
             mSettings.mPreferredActivities.addFilter(
                     new PreferredActivity(filter, match, set, activity));
-            mSettings.writeLP();
+            mSettings.preferredActivitiesChangedLP();
+            scheduleWriteSettingsLP();
         }
     }
 
@@ -3823,7 +4437,8 @@ class PackageManagerService extends IPackageManager.Stub {
 
         synchronized (mPackages) {
             if (clearPackagePreferredActivitiesLP(packageName)) {
-                mSettings.writeLP();
+                mSettings.preferredActivitiesChangedLP();
+                scheduleWriteSettingsLP();
             }
         }
     }
@@ -3926,7 +4541,9 @@ class PackageManagerService extends IPackageManager.Stub {
                     Log.e(TAG, "Invalid new component state: " + newState);
                 }
             }
-            mSettings.writeLP();
+            clearResolveCacheLP();
+            mSettings.packageChangedLP(pkgSetting.name);
+            scheduleWriteSettingsLP();
         }
         
         long callingId = Binder.clearCallingIdentity();
@@ -3965,12 +4582,51 @@ class PackageManagerService extends IPackageManager.Stub {
 
     public void enterSafeMode() {
         if (!mSystemReady) {
-            mSafeMode = true;
+            synchronized (mPackages) {
+                mSafeMode = true;
+                clearResolveCacheLP();
+            }
         }
     }
 
     public void systemReady() {
         mSystemReady = true;
+
+        // The shutdown thread waits for this broadcast to be handled before
+        // powering off, so the pending settings changes make it to disk.
+        mContext.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                shutdown();
+            }
+        }, new IntentFilter(Intent.ACTION_SHUTDOWN));
+    }
+
+    /**
+     * Write the pending settings changes before the system goes down.
+     */
+    public void shutdown() {
+        synchronized (mPackages) {
+            if (mWriteSettingsPending) {
+                mHandler.removeCallbacks(mWriteSettings);
+                mWriteSettingsPending = false;
+                mSettings.writeLP();
+            }
+        }
+    }
+
+    /**
+     * Write the settings shortly, along with the other changes made
+     * meanwhile.  Only the settings noted as changed through mSettings get
+     * encoded again.  Callers that need the settings on disk before going
+     * on, like installs, still call mSettings.writeLP(), which writes all
+     * of them.
+     */
+    void scheduleWriteSettingsLP() {
+        if (!mWriteSettingsPending) {
+            mWriteSettingsPending = true;
+            mHandler.postDelayed(mWriteSettings, WRITE_SETTINGS_DELAY);
+        }
     }
 
     public boolean hasSystemUidErrors() {
@@ -4016,6 +4672,16 @@ class PackageManagerService extends IPackageManager.Stub {
             pw.println("Preferred Activities:");
             mSettings.mPreferredActivities.dump(printer, "  ");
             pw.println(" ");
+            pw.println("Activity Resolution Cache:");
+            synchronized (mResolveCache) {
+                pw.println("  entries=" + mResolveCache.size()
+                        + " hits=" + mResolveCacheHits
+                        + " misses=" + mResolveCacheMisses);
+            }
+            pw.println(" ");
+            pw.println("Signature Registry:");
+            sSignatureRegistry.dump(pw);
+            pw.println(" ");
             pw.println("Preferred Packages:");
             {
                 for (PackageSetting ps : mSettings.mPreferredPackages) {
@@ -4124,45 +4790,105 @@ class PackageManagerService extends IPackageManager.Stub {
         }
     }
 
-    static class PackageSignatures {
-        private Signature[] mSignatures;
+    /**
+     * Trie of permission tree names, to find the tree of a permission in
+     * time proportional to the length of its name.
+     */
+    static final class PermissionTreeIndex {
+        private static final char[] NO_CHARS = new char[0];
+        private static final Node[] NO_NODES = new Node[0];
+
+        private static final class Node {
+            // Sorted.
+            char[] chars = NO_CHARS;
+            Node[] children = NO_NODES;
+            // The tree named by the path to this node, if any.
+            BasePermission tree;
+
+            Node child(char c) {
+                int i = Arrays.binarySearch(chars, c);
+                return i >= 0 ? children[i] : null;
+            }
+
+            Node addChild(char c) {
+                int i = Arrays.binarySearch(chars, c);
+                if (i >= 0) {
+                    return children[i];
+                }
+                i = -(i + 1);
+                final int N = chars.length;
+                char[] newChars = new char[N+1];
+                Node[] newChildren = new Node[N+1];
+                System.arraycopy(chars, 0, newChars, 0, i);
+                System.arraycopy(children, 0, newChildren, 0, i);
+                System.arraycopy(chars, i, newChars, i+1, N-i);
+                System.arraycopy(children, i, newChildren, i+1, N-i);
+                Node child = new Node();
+                newChars[i] = c;
+                newChildren[i] = child;
+                chars = newChars;
+                children = newChildren;
+                return child;
+            }
+        }
+
+        private Node mRoot = new Node();
+
+        void add(BasePermission tree) {
+            Node node = mRoot;
+            final int N = tree.name.length();
+            for (int i=0; i<N; i++) {
+                node = node.addChild(tree.name.charAt(i));
+            }
+            node.tree = tree;
+        }
 
-        PackageSignatures(Signature[] sigs) {
-            assignSignatures(sigs);
+        void remove(String name) {
+            Node node = mRoot;
+            final int N = name.length();
+            for (int i=0; i<N && node != null; i++) {
+                node = node.child(name.charAt(i));
+            }
+            if (node != null) {
+                node.tree = null;
+            }
         }
 
-        PackageSignatures() {
+        void clear() {
+            mRoot = new Node();
         }
 
-        void writeXml(XmlSerializer serializer, String tagName,
-                ArrayList<Signature> pastSignatures) throws IOException {
-            if (mSignatures == null) {
-                return;
-            }
-            serializer.startTag(null, tagName);
-            serializer.attribute(null, "count",
-                    Integer.toString(mSignatures.length));
-            for (int i=0; i<mSignatures.length; i++) {
-                serializer.startTag(null, "cert");
-                final Signature sig = mSignatures[i];
-                final int sigHash = sig.hashCode();
-                final int numPast = pastSignatures.size();
-                int j;
-                for (j=0; j<numPast; j++) {
-                    Signature pastSig = pastSignatures.get(j);
-                    if (pastSig.hashCode() == sigHash && pastSig.equals(sig)) {
-                        serializer.attribute(null, "index", Integer.toString(j));
-                        break;
-                    }
+        /**
+         * Return the tree whose name, followed by a dot, starts the given
+         * permission name.  When trees are nested, the innermost one wins.
+         */
+        BasePermission find(String permName) {
+            BasePermission found = null;
+            Node node = mRoot;
+            final int N = permName.length();
+            for (int i=0; i<N; i++) {
+                final char c = permName.charAt(i);
+                if (c == '.' && node.tree != null) {
+                    found = node.tree;
                 }
-                if (j >= numPast) {
-                    pastSignatures.add(sig);
-                    serializer.attribute(null, "index", Integer.toString(numPast));
-                    serializer.attribute(null, "key", sig.toCharsString());
+                node = node.child(c);
+                if (node == null) {
+                    break;
                 }
-                serializer.endTag(null, "cert");
             }
-            serializer.endTag(null, tagName);
+            return found;
+        }
+    }
+
+    static class PackageSignatures {
+        // Always interned in sSignatureRegistry.
+        private Signature[] mSignatures;
+
+        PackageSignatures(Signature[] sigs) {
+            assignSignatures(sigs);
+        }
+
+        PackageSignatures() {
         }
 
         void readXml(XmlPullParser parser, ArrayList<Signature> pastSignatures)
@@ -4256,6 +4982,7 @@ class PackageManagerService extends IPackageManager.Stub {
                 System.arraycopy(mSignatures, 0, newSigs, 0, pos);
                 mSignatures = newSigs;
             }
+            mSignatures = sSignatureRegistry.intern(mSignatures);
         }
 
         /**
@@ -4274,11 +5001,15 @@ class PackageManagerService extends IPackageManager.Stub {
             if (sigs == null) {
                 return false;
             }
+            sigs = sSignatureRegistry.intern(sigs);
+            if (sigs == mSignatures) {
+                return true;
+            }
 
             for (int i=0; i<sigs.length; i++) {
                 Signature sig = sigs[i];
                 for (int j=0; j<mSignatures.length; j++) {
-                    if (mSignatures[j].equals(sig)) {
+                    if (mSignatures[j] == sig) {
                         if (update) {
                             assignSignatures(sigs);
                         }
@@ -4304,6 +5035,10 @@ class PackageManagerService extends IPackageManager.Stub {
             if (sigs == null) {
                 return false;
             }
+            sigs = sSignatureRegistry.intern(sigs);
+            if (sigs == mSignatures) {
+                return true;
+            }
 
             Signature[] added = null;
             int addedCount = 0;
@@ -4312,7 +5047,7 @@ class PackageManagerService extends IPackageManager.Stub {
                 Signature sig = sigs[i];
                 boolean found = false;
                 for (int j=0; j<mSignatures.length; j++) {
-                    if (mSignatures[j].equals(sig)) {
+                    if (mSignatures[j] == sig) {
                         found = true;
                         haveMatch = true;
                         break;
@@ -4348,20 +5083,14 @@ class PackageManagerService extends IPackageManager.Stub {
                         j++;
                     }
                 }
-                mSignatures = total;
+                mSignatures = sSignatureRegistry.intern(total);
             }
             return true;
         }
 
         private void assignSignatures(Signature[] sigs) {
-            if (sigs == null) {
-                mSignatures = null;
-                return;
-            }
-            mSignatures = new Signature[sigs.length];
-            for (int i=0; i<sigs.length; i++) {
-                mSignatures[i] = sigs[i];
-            }
+            // Interned arrays are never modified, so they need no copy.
+            mSignatures = sSignatureRegistry.intern(sigs);
         }
         
         @Override
@@ -4382,6 +5111,364 @@ class PackageManagerService extends IPackageManager.Stub {
         }
     }
 
+    /**
+     * Canonical instances of the certificates packages are signed with, and
+     * of the arrays of certificates of packages and shared users.  Arrays
+     * holding the same certificates in the same order are interned as one,
+     * so that packages signed alike compare by identity, and the certificates
+     * of interned arrays compare by identity too.  Entries are never dropped:
+     * there are only as many as distinct signers seen since boot.
+     */
+    static final class SignatureRegistry {
+        private final HashMap<Signature, Integer> mSignatureIds =
+                new HashMap<Signature, Integer>();
+        private final ArrayList<Signature> mSignatures = new ArrayList<Signature>();
+        private final HashMap<Key, Signature[]> mArrays = new HashMap<Key, Signature[]>();
+        private final IdentityHashMap<Signature[], Key> mInterned =
+                new IdentityHashMap<Signature[], Key>();
+
+        // The certificate ids of an array, with their hash computed once.
+        static final class Key {
+            final int[] ids;
+            final int hash;
+
+            Key(int[] ids) {
+                this.ids = ids;
+                this.hash = Arrays.hashCode(ids);
+            }
+
+            @Override
+            public int hashCode() {
+                return hash;
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (!(o instanceof Key)) {
+                    return false;
+                }
+                Key other = (Key) o;
+                return hash == other.hash && Arrays.equals(ids, other.ids);
+            }
+        }
+
+        /**
+         * Return the canonical array holding the same certificates as 'sigs',
+         * in the same order.  The returned array must not be modified.
+         */
+        synchronized Signature[] intern(Signature[] sigs) {
+            if (sigs == null || mInterned.containsKey(sigs)) {
+                return sigs;
+            }
+            final int N = sigs.length;
+            int[] ids = new int[N];
+            for (int i=0; i<N; i++) {
+                Integer id = mSignatureIds.get(sigs[i]);
+                if (id == null) {
+                    id = mSignatures.size();
+                    mSignatures.add(sigs[i]);
+                    mSignatureIds.put(sigs[i], id);
+                }
+                ids[i] = id;
+            }
+            Key key = new Key(ids);
+            Signature[] canonical = mArrays.get(key);
+            if (canonical == null) {
+                canonical = new Signature[N];
+                for (int i=0; i<N; i++) {
+                    canonical[i] = mSignatures.get(ids[i]);
+                }
+                mArrays.put(key, canonical);
+                mInterned.put(canonical, key);
+            }
+            return canonical;
+        }
+
+        synchronized boolean isInterned(Signature[] sigs) {
+            return mInterned.containsKey(sigs);
+        }
+
+        synchronized void dump(PrintWriter pw) {
+            pw.println("  certificates=" + mSignatures.size()
+                    + " arrays=" + mArrays.size());
+        }
+    }
+
+    /**
+     * Certificates collected from package files, kept across boots in
+     * /data/system/package-cache.bin.  An entry is only used for a file with
+     * the same path, size and modification time, on the same build, and
+     * whose entry list and signature files still have the same digest;
+     * entries of files that no longer match or that were removed are
+     * dropped when the cache is written.
+     *
+     * Only files on the read-only system partition are cached.  The digest
+     * does not cover the contents of every entry, so a file that can be
+     * rewritten, like one under /data/app, must always be verified by
+     * collectCertificates.
+     *
+     * The parsed packages themselves are not cached: their components can
+     * only be built by PackageParser, from the manifest.
+     */
+    static final class ScanCache {
+        private static final int VERSION = 2;
+
+        static final class Entry {
+            final long size;
+            final long lastModified;
+            final byte[] digest;
+            final Signature[] signatures;
+
+            Entry(long size, long lastModified, byte[] digest, Signature[] signatures) {
+                this.size = size;
+                this.lastModified = lastModified;
+                this.digest = digest;
+                this.signatures = signatures;
+            }
+
+            boolean matches(File file) {
+                return file.length() == size && file.lastModified() == lastModified;
+            }
+        }
+
+        private final File mCacheFilename;
+        private final File mTempCacheFilename;
+        private final String mReadOnlyRoot;
+        private String mFingerprint;
+        // Entries read from the cache file, keyed by code path.
+        private final HashMap<String, Entry> mOldEntries = new HashMap<String, Entry>();
+        // Entries looked up or added since.
+        private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+        private boolean mChanged;
+
+        ScanCache(File systemDir) {
+            mCacheFilename = new File(systemDir, "package-cache.bin");
+            mTempCacheFilename = new File(systemDir, "package-cache.tmp");
+            mReadOnlyRoot = Environment.getRootDirectory().getPath() + "/";
+        }
+
+        /**
+         * Whether the certificates of the given file may be cached: only
+         * if it lives on the read-only system partition.
+         */
+        boolean isCacheable(File file) {
+            return file.getPath().startsWith(mReadOnlyRoot);
+        }
+
+        Signature[] getSignatures(File file) {
+            if (!isCacheable(file)) {
+                return null;
+            }
+            String path = file.getPath();
+            Entry entry;
+            synchronized (this) {
+                entry = mEntries.get(path);
+                if (entry == null) {
+                    entry = mOldEntries.remove(path);
+                    if (entry == null) {
+                        return null;
+                    }
+                    mEntries.put(path, entry);
+                }
+            }
+            // The digest reads the file: don't hold up the other scans.
+            if (!entry.matches(file)
+                    || !Arrays.equals(entry.digest, computeDigest(file))) {
+                synchronized (this) {
+                    if (mEntries.get(path) == entry) {
+                        mEntries.remove(path);
+                        mChanged = true;
+                    }
+                }
+                return null;
+            }
+            return entry.signatures;
+        }
+
+        void putSignatures(File file, Signature[] signatures) {
+            if (signatures == null || !isCacheable(file)) {
+                return;
+            }
+            byte[] digest = computeDigest(file);
+            if (digest == null) {
+                return;
+            }
+            Entry entry = new Entry(file.length(), file.lastModified(), digest, signatures);
+            synchronized (this) {
+                mEntries.put(file.getPath(), entry);
+                mChanged = true;
+            }
+        }
+
+        /**
+         * Forget the certificates of a package file that went away.
+         */
+        synchronized void remove(String path) {
+            if (mEntries.remove(path) != null) {
+                mChanged = true;
+            }
+            if (mOldEntries.remove(path) != null) {
+                mChanged = true;
+            }
+        }
+
+        /**
+         * Return a digest of the names and CRCs of all the entries of the
+         * given package file, and of the contents of its META-INF entries,
+         * which hold the manifest digests and the signatures.  Null if the
+         * file can't be read.
+         */
+        static byte[] computeDigest(File file) {
+            ZipFile zip = null;
+            try {
+                MessageDigest md = MessageDigest.getInstance("SHA-1");
+                byte[] buffer = new byte[8192];
+                zip = new ZipFile(file);
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    String name = entry.getName();
+                    md.update(name.getBytes("UTF-8"));
+                    long crc = entry.getCrc();
+                    for (int i=0; i<64; i+=8) {
+                        md.update((byte)(crc >>> i));
+                    }
+                    if (name.startsWith("META-INF/")) {
+                        InputStream in = zip.getInputStream(entry);
+                        try {
+                            int read;
+                            while ((read = in.read(buffer)) != -1) {
+                                md.update(buffer, 0, read);
+                            }
+                        } finally {
+                            in.close();
+                        }
+                    }
+                }
+                return md.digest();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to digest " + file, e);
+                return null;
+            } catch (NoSuchAlgorithmException e) {
+                Log.w(TAG, "Unable to digest " + file, e);
+                return null;
+            } finally {
+                if (zip != null) {
+                    try {
+                        zip.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        }
+
+        void readLP(String fingerprint) {
+            mFingerprint = fingerprint;
+            if (!mCacheFilename.exists()) {
+                return;
+            }
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(mCacheFilename)));
+                if (in.readInt() != VERSION || !fingerprint.equals(in.readUTF())) {
+                    Log.i(TAG, "Package cache is out of date");
+                    mChanged = true;
+                    return;
+                }
+                int count = in.readInt();
+                for (int i=0; i<count; i++) {
+                    String path = in.readUTF();
+                    long size = in.readLong();
+                    long lastModified = in.readLong();
+                    byte[] digest = new byte[in.readInt()];
+                    in.readFully(digest);
+                    Signature[] signatures = new Signature[in.readInt()];
+                    for (int j=0; j<signatures.length; j++) {
+                        signatures[j] = new Signature(in.readUTF());
+                    }
+                    if (isCacheable(new File(path))) {
+                        mOldEntries.put(path, new Entry(size, lastModified, digest, signatures));
+                    } else {
+                        // Written by an older version that cached any file.
+                        mChanged = true;
+                    }
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to read package cache", e);
+                mOldEntries.clear();
+                mChanged = true;
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        }
+
+        void writeLP() {
+            synchronized (this) {
+                if (!mChanged) {
+                    return;
+                }
+                // Keep the entries of the files that were not changed, and
+                // thus did not need their certificates to be collected.
+                for (Map.Entry<String, Entry> e : mOldEntries.entrySet()) {
+                    if (e.getValue().matches(new File(e.getKey()))) {
+                        mEntries.put(e.getKey(), e.getValue());
+                    }
+                }
+                mOldEntries.clear();
+            }
+            DataOutputStream out = null;
+            try {
+                out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(mTempCacheFilename)));
+                out.writeInt(VERSION);
+                out.writeUTF(mFingerprint);
+                synchronized (this) {
+                    out.writeInt(mEntries.size());
+                    for (Map.Entry<String, Entry> e : mEntries.entrySet()) {
+                        Entry entry = e.getValue();
+                        out.writeUTF(e.getKey());
+                        out.writeLong(entry.size);
+                        out.writeLong(entry.lastModified);
+                        out.writeInt(entry.digest.length);
+                        out.write(entry.digest);
+                        out.writeInt(entry.signatures.length);
+                        for (int i=0; i<entry.signatures.length; i++) {
+                            out.writeUTF(entry.signatures[i].toCharsString());
+                        }
+                    }
+                    mChanged = false;
+                }
+                out.close();
+                out = null;
+                if (!mTempCacheFilename.renameTo(mCacheFilename)) {
+                    Log.w(TAG, "Unable to rename package cache");
+                    mTempCacheFilename.delete();
+                    return;
+                }
+                FileUtils.setPermissions(mCacheFilename.toString(),
+                        FileUtils.S_IRUSR|FileUtils.S_IWUSR
+                        |FileUtils.S_IRGRP|FileUtils.S_IWGRP,
+                        -1, -1);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to write package cache", e);
+                mTempCacheFilename.delete();
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        }
+    }
+
     static class PreferredActivity extends IntentFilter {
         final int mMatch;
         final String[] mSetPackages;
@@ -4551,6 +5638,9 @@ class PackageManagerService extends IPackageManager.Stub {
         final int pkgFlags;
         
         HashSet<String> grantedPermissions = new HashSet<String>();
+        // The ids of grantedPermissions, see getPermissionIdLP().  Replaced
+        // rather than modified, as read snapshots share it.
+        int[] grantedPermissionBits;
         int[] gids;
         
         HashSet<String> loadedPermissions = new HashSet<String>();
@@ -4615,6 +5705,7 @@ class PackageManagerService extends IPackageManager.Stub {
 
         public void copyFrom(PackageSettingBase base) {
             grantedPermissions = base.grantedPermissions;
+            grantedPermissionBits = base.grantedPermissionBits;
             gids = base.gids;
             loadedPermissions = base.loadedPermissions;
             
@@ -4701,8 +5792,39 @@ class PackageManagerService extends IPackageManager.Stub {
      * Holds information about dynamic settings.
      */
     private static final class Settings {
+        // The binary settings file starts with a header, followed by records
+        // that are appended as settings change.  Each record holds one
+        // permission, package, shared user or list of preferred packages or
+        // activities, keyed by the record type and name: the last record
+        // with a given key wins, and removed keys get a RECORD_REMOVED record.
+        // The file is compacted once the appended records outweigh the ones
+        // it was compacted with.  Packages and shared users refer to a
+        // certificate set record, which lists certificate records; version 1
+        // files listed the certificates in each package record.
+        private static final int BINARY_SETTINGS_MAGIC = 0x504b4753;
+        private static final int BINARY_SETTINGS_VERSION = 2;
+        private static final int RECORD_REMOVED = 0;
+        private static final int RECORD_CERT = 1;
+        private static final int RECORD_PERMISSION_TREE = 2;
+        private static final int RECORD_PERMISSION = 3;
+        private static final int RECORD_PACKAGE = 4;
+        private static final int RECORD_SHARED_USER = 5;
+        private static final int RECORD_PREFERRED_PACKAGES = 6;
+        private static final int RECORD_PREFERRED_ACTIVITIES = 7;
+        private static final int RECORD_CERT_SET = 8;
+        private static final int MAX_RECORD_LENGTH = 1024 * 1024;
+        private static final int MIN_COMPACTION_LENGTH = 64 * 1024;
+        // Outcome of readRecordsLP().
+        private static final int READ_FAILED = 0;
+        private static final int READ_COMPLETE = 1;
+        private static final int READ_TRUNCATED = 2;
+        private static final int READ_CORRUPT = 3;
+
         private final File mSettingsFilename;
         private final File mBackupSettingsFilename;
+        private final File mBinarySettingsFilename;
+        private final File mBackupBinarySettingsFilename;
+        private final File mCorruptBinarySettingsFilename;
         private final HashMap<String, PackageSetting> mPackages =
                 new HashMap<String, PackageSetting>();
         // The user's preferred packages/applications, in order of preference.
@@ -4746,11 +5868,55 @@ class PackageManagerService extends IPackageManager.Stub {
         final HashMap<String, BasePermission> mPermissionTrees =
                 new HashMap<String, BasePermission>();
 
+        // The trees of mPermissionTrees, by name prefix.
+        final PermissionTreeIndex mPermissionTreeIndex = new PermissionTreeIndex();
+
         private final ArrayList<String> mPendingPreferredPackages
                 = new ArrayList<String>();
 
         private final StringBuilder mReadMessages = new StringBuilder();
 
+        // Signatures of the certificate records, by index.  These and the
+        // snapshot state are guarded by the package lock.
+        private final ArrayList<Signature> mWrittenSignatures =
+                new ArrayList<Signature>();
+        private final HashMap<Signature, Integer> mWrittenSignatureIndices =
+                new HashMap<Signature, Integer>();
+        // Interned certificate arrays of the certificate set records, by
+        // index.
+        private final ArrayList<Signature[]> mWrittenSignatureSets =
+                new ArrayList<Signature[]>();
+        private final IdentityHashMap<Signature[], Integer> mWrittenSignatureSetIndices =
+                new IdentityHashMap<Signature[], Integer>();
+        // Version of the binary settings file that was read.
+        private int mReadVersion;
+        private int mSignaturesGeneration;
+        private int mSnapshotSeq;
+        private final ByteArrayOutputStream mRecordBuffer = new ByteArrayOutputStream();
+        private final DataOutputStream mRecordOut = new DataOutputStream(mRecordBuffer);
+        // Set by the writer when the next write is going to compact the file.
+        private volatile boolean mCompactionDue = true;
+        // Records encoded by the previous snapshot, by key, and the keys of
+        // the records changed since then.  Guarded by the package lock.
+        private final HashMap<String, byte[]> mEncodedRecords =
+                new HashMap<String, byte[]>();
+        private final HashSet<String> mChangedRecords = new HashSet<String>();
+        private boolean mAllRecordsChanged = true;
+
+        // Guards the state of the binary settings file, which is written
+        // without holding the package lock.
+        private final Object mWriteLock = new Object();
+        // Contents of the records in the binary settings file, by key.
+        private final HashMap<String, byte[]> mWrittenRecords =
+                new HashMap<String, byte[]>();
+        private int mWrittenSeq;
+        private int mWrittenGeneration = -1;
+        private int mWrittenSignatureCount;
+        private int mWrittenSignatureSetCount;
+        private long mCompactedLength;
+        private long mAppendedLength;
+        private boolean mNeedsCompaction = true;
+
         private static final class PendingPackage extends PackageSettingBase {
             final int sharedId;
 
@@ -4773,6 +5939,9 @@ class PackageManagerService extends IPackageManager.Stub {
                     -1, -1);
             mSettingsFilename = new File(systemDir, "packages.xml");
             mBackupSettingsFilename = new File(systemDir, "packages-backup.xml");
+            mBinarySettingsFilename = new File(systemDir, "packages.bin");
+            mBackupBinarySettingsFilename = new File(systemDir, "packages-backup.bin");
+            mCorruptBinarySettingsFilename = new File(systemDir, "packages-corrupt.bin");
         }
 
         PackageSetting getPackageLP(PackageParser.Package pkg,
@@ -5009,198 +6178,506 @@ class PackageManagerService extends IPackageManager.Stub {
             }
         }
         
-        void writeLP() {
-            //Debug.startMethodTracing("/data/system/packageprof", 8 * 1024 * 1024);
+        /**
+         * The settings as they were when a write was requested, encoded so
+         * that they can be written without holding the package lock.
+         */
+        static final class Snapshot {
+            final int seq;
+            final int generation;
+            final Signature[] signatures;
+            // Certificate indices of the certificate sets.
+            final int[][] signatureSets;
+            final HashMap<String, byte[]> records;
 
-            // Keep the old settings around until we know the new ones have
-            // been successfully written.
-            if (mSettingsFilename.exists()) {
-                if (mBackupSettingsFilename.exists()) {
-                    mBackupSettingsFilename.delete();
-                }
-                mSettingsFilename.renameTo(mBackupSettingsFilename);
+            Snapshot(int seq, int generation, Signature[] signatures,
+                    int[][] signatureSets, HashMap<String, byte[]> records) {
+                this.seq = seq;
+                this.generation = generation;
+                this.signatures = signatures;
+                this.signatureSets = signatureSets;
+                this.records = records;
             }
+        }
 
-            mPastSignatures.clear();
+        /**
+         * Write all the settings now.
+         */
+        void writeLP() {
+            mAllRecordsChanged = true;
+            Snapshot snapshot = snapshotLP();
+            if (snapshot != null) {
+                writeSnapshot(snapshot);
+            }
+        }
+
+        /**
+         * Note that the package with the given name changed, for the next
+         * snapshotLP().  Changes that are not noted only get written by
+         * writeLP().
+         */
+        void packageChangedLP(String name) {
+            mChangedRecords.add("package:" + name);
+        }
+
+        void permissionChangedLP(String name) {
+            mChangedRecords.add("permission:" + name);
+        }
+
+        void preferredPackagesChangedLP() {
+            mChangedRecords.add("preferred-packages");
+        }
 
+        void preferredActivitiesChangedLP() {
+            mChangedRecords.add("preferred-activities");
+        }
+
+        /**
+         * Encode the settings noted as changed since the previous snapshot,
+         * or all of them after writeLP() or when the certificates get
+         * renumbered, to be written by writeSnapshot().
+         */
+        Snapshot snapshotLP() {
+            if (mCompactionDue) {
+                // The next write rewrites the whole file: forget about the
+                // certificates of the packages that are gone.
+                mCompactionDue = false;
+                mWrittenSignatures.clear();
+                mWrittenSignatureIndices.clear();
+                mWrittenSignatureSets.clear();
+                mWrittenSignatureSetIndices.clear();
+                mSignaturesGeneration++;
+                // Records refer to certificates by index.
+                mAllRecordsChanged = true;
+            }
             try {
-                FileOutputStream str = new FileOutputStream(mSettingsFilename);
-
-                //XmlSerializer serializer = XmlUtils.serializerInstance();
-                XmlSerializer serializer = new FastXmlSerializer();
-                serializer.setOutput(str, "utf-8");
-                serializer.startDocument(null, true);
-                serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
-
-                serializer.startTag(null, "packages");
-
-                serializer.startTag(null, "permission-trees");
-                for (BasePermission bp : mPermissionTrees.values()) {
-                    writePermission(serializer, bp);
-                }
-                serializer.endTag(null, "permission-trees");
-
-                serializer.startTag(null, "permissions");
-                for (BasePermission bp : mPermissions.values()) {
-                    writePermission(serializer, bp);
-                }
-                serializer.endTag(null, "permissions");
-
-                for (PackageSetting pkg : mPackages.values()) {
-                    serializer.startTag(null, "package");
-                    serializer.attribute(null, "name", pkg.name);
-                    serializer.attribute(null, "codePath", pkg.codePathString);
-                    if (!pkg.resourcePathString.equals(pkg.codePathString)) {
-                        serializer.attribute(null, "resourcePath", pkg.resourcePathString);
-                    }
-                    serializer.attribute(null, "system",
-                            (pkg.pkgFlags&ApplicationInfo.FLAG_SYSTEM) != 0
-                            ? "true" : "false");
-                    serializer.attribute(null, "ts", pkg.timeStampString);
-                    if (pkg.sharedUser == null) {
-                        serializer.attribute(null, "userId",
-                                Integer.toString(pkg.userId));
-                    } else {
-                        serializer.attribute(null, "sharedUserId",
-                                Integer.toString(pkg.userId));
-                    }
-                    if (pkg.enabled != COMPONENT_ENABLED_STATE_DEFAULT) {
-                        serializer.attribute(null, "enabled",
-                                pkg.enabled == COMPONENT_ENABLED_STATE_ENABLED
-                                ? "true" : "false");
-                    }
-                    if(pkg.installStatus == PKG_INSTALL_INCOMPLETE) {
-                        serializer.attribute(null, "installStatus", "false");
-                    }
-                    pkg.signatures.writeXml(serializer, "sigs", mPastSignatures);
-                    if ((pkg.pkgFlags&ApplicationInfo.FLAG_SYSTEM) == 0) {
-                        serializer.startTag(null, "perms");
-                        if (pkg.sharedUser == null) {
-                            // If this is a shared user, the permissions will
-                            // be written there.  We still need to write an
-                            // empty permissions list so permissionsFixed will
-                            // be set.
-                            for (String name : pkg.grantedPermissions) {
-                                serializer.startTag(null, "item");
-                                serializer.attribute(null, "name", name);
-                                serializer.endTag(null, "item");
-                            }
-                        }
-                        serializer.endTag(null, "perms");
-                    }
-                    if (pkg.disabledComponents.size() > 0) {
-                        serializer.startTag(null, "disabled-components");
-                        for (String name : pkg.disabledComponents) {
-                            serializer.startTag(null, "item");
-                            serializer.attribute(null, "name", name);
-                            serializer.endTag(null, "item");
-                        }
-                        serializer.endTag(null, "disabled-components");
-                    }
-                    if (pkg.enabledComponents.size() > 0) {
-                        serializer.startTag(null, "enabled-components");
-                        for (String name : pkg.enabledComponents) {
-                            serializer.startTag(null, "item");
-                            serializer.attribute(null, "name", name);
-                            serializer.endTag(null, "item");
-                        }
-                        serializer.endTag(null, "enabled-components");
+                if (mAllRecordsChanged) {
+                    mEncodedRecords.clear();
+                    encodeRecordsLP(mEncodedRecords);
+                } else {
+                    for (String key : mChangedRecords) {
+                        encodeRecordLP(mEncodedRecords, key);
                     }
-                    serializer.endTag(null, "package");
                 }
-
-                serializer.startTag(null, "preferred-packages");
-                int N = mPreferredPackages.size();
+                mAllRecordsChanged = false;
+                mChangedRecords.clear();
+                HashMap<String, byte[]> records = new HashMap<String, byte[]>(mEncodedRecords);
+                final int N = mWrittenSignatureSets.size();
+                int[][] signatureSets = new int[N][];
                 for (int i=0; i<N; i++) {
-                    PackageSetting pkg = mPreferredPackages.get(i);
-                    serializer.startTag(null, "item");
-                    serializer.attribute(null, "name", pkg.name);
-                    serializer.endTag(null, "item");
+                    Signature[] sigs = mWrittenSignatureSets.get(i);
+                    if (sigs == null) {
+                        continue;
+                    }
+                    signatureSets[i] = new int[sigs.length];
+                    for (int j=0; j<sigs.length; j++) {
+                        signatureSets[i][j] = mWrittenSignatureIndices.get(sigs[j]);
+                    }
                 }
-                serializer.endTag(null, "preferred-packages");
+                return new Snapshot(++mSnapshotSeq, mSignaturesGeneration,
+                        mWrittenSignatures.toArray(new Signature[mWrittenSignatures.size()]),
+                        signatureSets, records);
+            } catch(java.io.IOException e) {
+                Log.w(TAG, "Unable to write package manager settings, current changes will be lost at reboot", e);
+                // The records may be half encoded.
+                mAllRecordsChanged = true;
+                return null;
+            }
+        }
 
-                serializer.startTag(null, "preferred-activities");
-                for (PreferredActivity pa : mPreferredActivities.filterSet()) {
-                    serializer.startTag(null, "item");
-                    pa.writeToXml(serializer);
-                    serializer.endTag(null, "item");
+        /**
+         * Write the given settings, unless more recent ones were written
+         * already.  Does not need the package lock.
+         */
+        void writeSnapshot(Snapshot snapshot) {
+            synchronized (mWriteLock) {
+                if (snapshot.seq <= mWrittenSeq) {
+                    return;
                 }
-                serializer.endTag(null, "preferred-activities");
+                //Debug.startMethodTracing("/data/system/packageprof", 8 * 1024 * 1024);
 
-                for (SharedUserSetting usr : mSharedUsers.values()) {
-                    serializer.startTag(null, "shared-user");
-                    serializer.attribute(null, "name", usr.name);
-                    serializer.attribute(null, "userId",
-                            Integer.toString(usr.userId));
-                    usr.signatures.writeXml(serializer, "sigs", mPastSignatures);
-                    serializer.startTag(null, "perms");
-                    for (String name : usr.grantedPermissions) {
-                        serializer.startTag(null, "item");
-                        serializer.attribute(null, "name", name);
-                        serializer.endTag(null, "item");
+                final boolean compact = mNeedsCompaction
+                        || snapshot.generation != mWrittenGeneration
+                        || !mBinarySettingsFilename.exists()
+                        || mAppendedLength > Math.max(mCompactedLength, MIN_COMPACTION_LENGTH);
+                try {
+                    if (compact) {
+                        compactLP(snapshot);
+                    } else {
+                        appendLP(snapshot);
                     }
-                    serializer.endTag(null, "perms");
-                    serializer.endTag(null, "shared-user");
+                    mWrittenSeq = snapshot.seq;
+                    mWrittenGeneration = snapshot.generation;
+                    mWrittenSignatureCount = snapshot.signatures.length;
+                    mWrittenSignatureSetCount = snapshot.signatureSets.length;
+                } catch(java.io.IOException e) {
+                    Log.w(TAG, "Unable to write package manager settings, current changes will be lost at reboot", e);
+                    // Start over from a complete file next time.
+                    mNeedsCompaction = true;
                 }
+                mCompactionDue = mNeedsCompaction
+                        || mAppendedLength > Math.max(mCompactedLength, MIN_COMPACTION_LENGTH);
 
-                serializer.endTag(null, "packages");
+                //Debug.stopMethodTracing();
+            }
+        }
 
-                serializer.endDocument();
+        /**
+         * Rewrite the binary settings file with the given records only.  The
+         * previous file is kept as a backup until the new one is on disk.
+         */
+        private void compactLP(Snapshot snapshot) throws java.io.IOException {
+            if (mBinarySettingsFilename.exists()) {
+                if (mBackupBinarySettingsFilename.exists()) {
+                    // The backup is the last complete file, the current one
+                    // was not finished.
+                    mBinarySettingsFilename.delete();
+                } else {
+                    mBinarySettingsFilename.renameTo(mBackupBinarySettingsFilename);
+                }
+            }
 
-                str.flush();
+            FileOutputStream str = new FileOutputStream(mBinarySettingsFilename);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(str));
+                out.writeInt(BINARY_SETTINGS_MAGIC);
+                out.writeInt(BINARY_SETTINGS_VERSION);
+                writeSignatures(out, snapshot.signatures, 0);
+                writeSignatureSets(out, snapshot.signatureSets, 0);
+                for (byte[] record : snapshot.records.values()) {
+                    writeRecord(out, record);
+                }
+                out.flush();
+                str.getFD().sync();
+            } finally {
                 str.close();
+            }
 
-                // New settings successfully written, old ones are no longer
-                // needed.
-                mBackupSettingsFilename.delete();
-                FileUtils.setPermissions(mSettingsFilename.toString(),
-                        FileUtils.S_IRUSR|FileUtils.S_IWUSR
-                        |FileUtils.S_IRGRP|FileUtils.S_IWGRP
-                        |FileUtils.S_IROTH,
-                        -1, -1);
+            // New settings successfully written, old ones are no longer
+            // needed.
+            mBackupBinarySettingsFilename.delete();
+            mSettingsFilename.delete();
+            mBackupSettingsFilename.delete();
+            FileUtils.setPermissions(mBinarySettingsFilename.toString(),
+                    FileUtils.S_IRUSR|FileUtils.S_IWUSR
+                    |FileUtils.S_IRGRP|FileUtils.S_IWGRP
+                    |FileUtils.S_IROTH,
+                    -1, -1);
 
-            } catch(XmlPullParserException e) {
-                Log.w(TAG, "Unable to write package manager settings, current changes will be lost at reboot", e);
+            mWrittenRecords.clear();
+            mWrittenRecords.putAll(snapshot.records);
+            mCompactedLength = mBinarySettingsFilename.length();
+            mAppendedLength = 0;
+            mNeedsCompaction = false;
+        }
 
-            } catch(java.io.IOException e) {
-                Log.w(TAG, "Unable to write package manager settings, current changes will be lost at reboot", e);
+        /**
+         * Append the records that changed since the last write to the binary
+         * settings file, along with removal records for the ones that are gone.
+         */
+        private void appendLP(Snapshot snapshot) throws java.io.IOException {
+            long length = 0;
+            FileOutputStream str = new FileOutputStream(mBinarySettingsFilename, true);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(str));
+                length += writeSignatures(out, snapshot.signatures, mWrittenSignatureCount);
+                length += writeSignatureSets(out, snapshot.signatureSets,
+                        mWrittenSignatureSetCount);
+                for (Map.Entry<String, byte[]> e : snapshot.records.entrySet()) {
+                    if (!Arrays.equals(e.getValue(), mWrittenRecords.get(e.getKey()))) {
+                        length += writeRecord(out, e.getValue());
+                    }
+                }
+                for (String key : mWrittenRecords.keySet()) {
+                    if (!snapshot.records.containsKey(key)) {
+                        length += writeRecord(out, removalRecord(key));
+                    }
+                }
+                if (length == 0) {
+                    return;
+                }
+                out.flush();
+                str.getFD().sync();
+            } finally {
+                str.close();
+            }
 
+            mWrittenRecords.clear();
+            mWrittenRecords.putAll(snapshot.records);
+            mAppendedLength += length;
+        }
+
+        private static long writeSignatures(DataOutputStream out, Signature[] signatures,
+                int first) throws java.io.IOException {
+            long length = 0;
+            for (int i=first; i<signatures.length; i++) {
+                if (signatures[i] != null) {
+                    length += writeRecord(out, encodeSignature(i, signatures[i]));
+                }
+            }
+            return length;
+        }
+
+        private static long writeSignatureSets(DataOutputStream out, int[][] signatureSets,
+                int first) throws java.io.IOException {
+            long length = 0;
+            for (int i=first; i<signatureSets.length; i++) {
+                if (signatureSets[i] != null) {
+                    length += writeRecord(out, encodeSignatureSet(i, signatureSets[i]));
+                }
             }
+            return length;
+        }
 
-            //Debug.stopMethodTracing();
+        private static int writeRecord(DataOutputStream out, byte[] record)
+                throws java.io.IOException {
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            out.writeInt(record.length);
+            out.write(record);
+            out.writeInt((int) crc.getValue());
+            return 4 + record.length + 4;
         }
 
-        void writePermission(XmlSerializer serializer, BasePermission bp)
-                throws XmlPullParserException, java.io.IOException {
-            if (bp.type != BasePermission.TYPE_BUILTIN
-                    && bp.sourcePackage != null) {
+        private void encodeRecordsLP(HashMap<String, byte[]> records)
+                throws java.io.IOException {
+            for (BasePermission bp : mPermissionTrees.values()) {
+                encodePermission(records, RECORD_PERMISSION_TREE, "permission-tree:", bp);
+            }
+            for (BasePermission bp : mPermissions.values()) {
+                encodePermission(records, RECORD_PERMISSION, "permission:", bp);
+            }
+            for (PackageSetting pkg : mPackages.values()) {
+                encodePackageLP(records, pkg);
+            }
+            for (SharedUserSetting usr : mSharedUsers.values()) {
+                encodeSharedUserLP(records, usr);
+            }
+            encodePreferredPackagesLP(records);
+            encodePreferredActivitiesLP(records);
+        }
+
+        /**
+         * Encode the record with the given key again, or drop it if its
+         * setting is gone.
+         */
+        private void encodeRecordLP(HashMap<String, byte[]> records, String key)
+                throws java.io.IOException {
+            records.remove(key);
+            final int colon = key.indexOf(':');
+            final String name = key.substring(colon + 1);
+            if (key.startsWith("permission-tree:")) {
+                BasePermission bp = mPermissionTrees.get(name);
+                if (bp != null) {
+                    encodePermission(records, RECORD_PERMISSION_TREE, "permission-tree:", bp);
+                }
+            } else if (key.startsWith("permission:")) {
+                BasePermission bp = mPermissions.get(name);
+                if (bp != null) {
+                    encodePermission(records, RECORD_PERMISSION, "permission:", bp);
+                }
+            } else if (key.startsWith("package:")) {
+                PackageSetting pkg = mPackages.get(name);
+                if (pkg != null) {
+                    encodePackageLP(records, pkg);
+                }
+            } else if (key.startsWith("shared-user:")) {
+                SharedUserSetting usr = mSharedUsers.get(name);
+                if (usr != null) {
+                    encodeSharedUserLP(records, usr);
+                }
+            } else if (key.equals("preferred-packages")) {
+                encodePreferredPackagesLP(records);
+            } else if (key.equals("preferred-activities")) {
+                encodePreferredActivitiesLP(records);
+            }
+        }
+
+        private void encodePackageLP(HashMap<String, byte[]> records, PackageSetting pkg)
+                throws java.io.IOException {
+            String key = "package:" + pkg.name;
+            DataOutputStream out = startRecordOutput(RECORD_PACKAGE, key);
+            out.writeUTF(pkg.name);
+            out.writeUTF(pkg.codePathString);
+            out.writeUTF(pkg.resourcePathString);
+            final boolean system = (pkg.pkgFlags&ApplicationInfo.FLAG_SYSTEM) != 0;
+            out.writeBoolean(system);
+            out.writeUTF(pkg.timeStampString);
+            out.writeBoolean(pkg.sharedUser != null);
+            out.writeInt(pkg.userId);
+            out.writeInt(pkg.enabled);
+            out.writeBoolean(pkg.installStatus == PKG_INSTALL_INCOMPLETE);
+            writeSignaturesLP(out, pkg.signatures);
+            out.writeBoolean(!system);
+            if (!system) {
+                // If this is a shared user, the permissions will be
+                // written there.  We still need to write an empty
+                // permissions list so permissionsFixed will be set.
+                writeStrings(out, pkg.sharedUser == null
+                        ? pkg.grantedPermissions : null);
+            }
+            writeStrings(out, pkg.disabledComponents);
+            writeStrings(out, pkg.enabledComponents);
+            records.put(key, finishRecord());
+        }
+
+        private void encodeSharedUserLP(HashMap<String, byte[]> records,
+                SharedUserSetting usr) throws java.io.IOException {
+            String key = "shared-user:" + usr.name;
+            DataOutputStream out = startRecordOutput(RECORD_SHARED_USER, key);
+            out.writeUTF(usr.name);
+            out.writeInt(usr.userId);
+            writeSignaturesLP(out, usr.signatures);
+            writeStrings(out, usr.grantedPermissions);
+            records.put(key, finishRecord());
+        }
+
+        private void encodePreferredPackagesLP(HashMap<String, byte[]> records)
+                throws java.io.IOException {
+            DataOutputStream out = startRecordOutput(RECORD_PREFERRED_PACKAGES,
+                    "preferred-packages");
+            final int N = mPreferredPackages.size();
+            out.writeInt(N);
+            for (int i=0; i<N; i++) {
+                out.writeUTF(mPreferredPackages.get(i).name);
+            }
+            records.put("preferred-packages", finishRecord());
+        }
+
+        private void encodePreferredActivitiesLP(HashMap<String, byte[]> records)
+                throws java.io.IOException {
+            // Intent filters only know how to write themselves as XML.
+            ByteArrayOutputStream xml = new ByteArrayOutputStream();
+            XmlSerializer serializer = new FastXmlSerializer();
+            serializer.setOutput(xml, "utf-8");
+            serializer.startDocument(null, true);
+            serializer.startTag(null, "preferred-activities");
+            for (PreferredActivity pa : mPreferredActivities.filterSet()) {
                 serializer.startTag(null, "item");
-                serializer.attribute(null, "name", bp.name);
-                serializer.attribute(null, "package", bp.sourcePackage);
-                if (DEBUG_SETTINGS) Log.v(TAG,
-                        "Writing perm: name=" + bp.name + " type=" + bp.type);
-                if (bp.type == BasePermission.TYPE_DYNAMIC) {
-                    PermissionInfo pi = bp.perm != null ? bp.perm.info
-                            : bp.pendingInfo;
-                    if (pi != null) {
-                        serializer.attribute(null, "type", "dynamic");
-                        if (pi.icon != 0) {
-                            serializer.attribute(null, "icon",
-                                    Integer.toString(pi.icon));
-                        }
-                        if (pi.nonLocalizedLabel != null) {
-                            serializer.attribute(null, "label",
-                                    pi.nonLocalizedLabel.toString());
-                        }
-                        if (pi.protectionLevel !=
-                                PermissionInfo.PROTECTION_NORMAL) {
-                            serializer.attribute(null, "protection",
-                                    Integer.toString(pi.protectionLevel));
-                        }
+                pa.writeToXml(serializer);
+                serializer.endTag(null, "item");
+            }
+            serializer.endTag(null, "preferred-activities");
+            serializer.endDocument();
+            DataOutputStream out = startRecordOutput(RECORD_PREFERRED_ACTIVITIES,
+                    "preferred-activities");
+            out.writeInt(xml.size());
+            xml.writeTo(out);
+            records.put("preferred-activities", finishRecord());
+        }
+
+        private void encodePermission(HashMap<String, byte[]> records, int type,
+                String prefix, BasePermission bp) throws java.io.IOException {
+            if (bp.type == BasePermission.TYPE_BUILTIN || bp.sourcePackage == null) {
+                return;
+            }
+            if (DEBUG_SETTINGS) Log.v(TAG,
+                    "Writing perm: name=" + bp.name + " type=" + bp.type);
+            String key = prefix + bp.name;
+            DataOutputStream out = startRecordOutput(type, key);
+            out.writeUTF(bp.name);
+            out.writeUTF(bp.sourcePackage);
+            PermissionInfo pi = null;
+            if (bp.type == BasePermission.TYPE_DYNAMIC) {
+                pi = bp.perm != null ? bp.perm.info : bp.pendingInfo;
+            }
+            out.writeBoolean(pi != null);
+            if (pi != null) {
+                out.writeInt(pi.icon);
+                out.writeBoolean(pi.nonLocalizedLabel != null);
+                if (pi.nonLocalizedLabel != null) {
+                    out.writeUTF(pi.nonLocalizedLabel.toString());
+                }
+                out.writeInt(pi.protectionLevel);
+            }
+            records.put(key, finishRecord());
+        }
+
+        // Certificate and removal records are encoded while writing, with
+        // their own buffer.
+        private static byte[] encodeSignature(int index, Signature sig)
+                throws java.io.IOException {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buffer);
+            out.writeByte(RECORD_CERT);
+            out.writeUTF("cert:" + index);
+            out.writeInt(index);
+            byte[] bytes = sig.toByteArray();
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.flush();
+            return buffer.toByteArray();
+        }
+
+        private static byte[] encodeSignatureSet(int index, int[] certs)
+                throws java.io.IOException {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buffer);
+            out.writeByte(RECORD_CERT_SET);
+            out.writeUTF("cert-set:" + index);
+            out.writeInt(index);
+            out.writeInt(certs.length);
+            for (int i=0; i<certs.length; i++) {
+                out.writeInt(certs[i]);
+            }
+            out.flush();
+            return buffer.toByteArray();
+        }
+
+        private static byte[] removalRecord(String key) throws java.io.IOException {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buffer);
+            out.writeByte(RECORD_REMOVED);
+            out.writeUTF(key);
+            out.flush();
+            return buffer.toByteArray();
+        }
+
+        private void writeSignaturesLP(DataOutputStream out, PackageSignatures sigs)
+                throws java.io.IOException {
+            if (sigs.mSignatures == null) {
+                out.writeInt(-1);
+                return;
+            }
+            Integer setIndex = mWrittenSignatureSetIndices.get(sigs.mSignatures);
+            if (setIndex == null) {
+                for (int i=0; i<sigs.mSignatures.length; i++) {
+                    final Signature sig = sigs.mSignatures[i];
+                    if (!mWrittenSignatureIndices.containsKey(sig)) {
+                        mWrittenSignatureIndices.put(sig, mWrittenSignatures.size());
+                        mWrittenSignatures.add(sig);
                     }
                 }
-                serializer.endTag(null, "item");
+                setIndex = mWrittenSignatureSets.size();
+                mWrittenSignatureSets.add(sigs.mSignatures);
+                mWrittenSignatureSetIndices.put(sigs.mSignatures, setIndex);
+            }
+            out.writeInt(setIndex);
+        }
+
+        private static void writeStrings(DataOutputStream out, Collection<String> strings)
+                throws java.io.IOException {
+            if (strings == null) {
+                out.writeInt(0);
+                return;
             }
+            out.writeInt(strings.size());
+            for (String s : strings) {
+                out.writeUTF(s);
+            }
+        }
+
+        private DataOutputStream startRecordOutput(int type, String key)
+                throws java.io.IOException {
+            mRecordBuffer.reset();
+            mRecordOut.writeByte(type);
+            mRecordOut.writeUTF(key);
+            return mRecordOut;
+        }
+
+        private byte[] finishRecord() throws java.io.IOException {
+            mRecordOut.flush();
+            return mRecordBuffer.toByteArray();
         }
 
         String getReadMessagesLP() {
@@ -5222,6 +6699,74 @@ class PackageManagerService extends IPackageManager.Stub {
         }
         
         boolean readLP() {
+            if (mBinarySettingsFilename.exists()
+                    || mBackupBinarySettingsFilename.exists()) {
+                if (!readBinaryLP()) {
+                    return false;
+                }
+            } else if (!readXmlLP()) {
+                return false;
+            }
+
+            int N = mPendingPackages.size();
+            for (int i=0; i<N; i++) {
+                final PendingPackage pp = mPendingPackages.get(i);
+                Object idObj = getUserIdLP(pp.sharedId);
+                if (idObj != null && idObj instanceof SharedUserSetting) {
+                    PackageSetting p = getPackageLP(pp.name,
+                            (SharedUserSetting)idObj, pp.codePath, pp.resourcePath,
+                            pp.pkgFlags, true);
+                    if (p == null) {
+                        Log.w(TAG, "Unable to create application package for "
+                                + pp.name);
+                        continue;
+                    }
+                    p.copyFrom(pp);
+                } else if (idObj != null) {
+                    String msg = "Bad package setting: package " + pp.name
+                            + " has shared uid " + pp.sharedId
+                            + " that is not a shared uid\n";
+                    mReadMessages.append(msg);
+                    Log.e(TAG, msg);
+                } else {
+                    String msg = "Bad package setting: package " + pp.name
+                            + " has shared uid " + pp.sharedId
+                            + " that is not defined\n";
+                    mReadMessages.append(msg);
+                    Log.e(TAG, msg);
+                }
+            }
+            mPendingPackages.clear();
+
+            N = mPendingPreferredPackages.size();
+            mPreferredPackages.clear();
+            for (int i=0; i<N; i++) {
+                final String name = mPendingPreferredPackages.get(i);
+                final PackageSetting p = mPackages.get(name);
+                if (p != null) {
+                    mPreferredPackages.add(p);
+                } else {
+                    Log.w(TAG, "Unknown preferred package: " + name);
+                }
+            }
+            mPendingPreferredPackages.clear();
+
+            mPermissionTreeIndex.clear();
+            for (BasePermission bp : mPermissionTrees.values()) {
+                mPermissionTreeIndex.add(bp);
+            }
+
+            mReadMessages.append("Read completed successfully: "
+                    + mPackages.size() + " packages, "
+                    + mSharedUsers.size() + " shared uids\n");
+
+            return true;
+        }
+
+        /**
+         * Read the settings from packages.xml, as written by earlier releases.
+         */
+        private boolean readXmlLP() {
             FileInputStream str = null;
             if (mBackupSettingsFilename.exists()) {
                 try {
@@ -5300,54 +6845,439 @@ class PackageManagerService extends IPackageManager.Stub {
 
             }
 
-            int N = mPendingPackages.size();
-            for (int i=0; i<N; i++) {
-                final PendingPackage pp = mPendingPackages.get(i);
-                Object idObj = getUserIdLP(pp.sharedId);
-                if (idObj != null && idObj instanceof SharedUserSetting) {
-                    PackageSetting p = getPackageLP(pp.name,
-                            (SharedUserSetting)idObj, pp.codePath, pp.resourcePath,
-                            pp.pkgFlags, true);
-                    if (p == null) {
-                        Log.w(TAG, "Unable to create application package for "
-                                + pp.name);
+            return true;
+        }
+
+        /**
+         * Read the settings from the binary settings file, or from its backup
+         * if it was being compacted.  A record that was not completely
+         * written ends the file.  A bad record with more records after it
+         * means the file got damaged: the other file is read instead if
+         * there is one.  Either way the damaged file is kept aside as
+         * packages-corrupt.bin, since compacting is going to replace it.
+         */
+        private boolean readBinaryLP() {
+            File file = mBinarySettingsFilename;
+            File otherFile = mBackupBinarySettingsFilename;
+            boolean fromBackup = false;
+            if (mBackupBinarySettingsFilename.exists()) {
+                file = mBackupBinarySettingsFilename;
+                otherFile = mBinarySettingsFilename;
+                fromBackup = true;
+                mReadMessages.append("Reading from backup settings file\n");
+                Log.i(TAG, "Reading from backup settings file!");
+            }
+
+            // The last record of each key, in file order.
+            HashMap<String, byte[]> records = new HashMap<String, byte[]>();
+            ArrayList<byte[]> certs = new ArrayList<byte[]>();
+            ArrayList<byte[]> certSets = new ArrayList<byte[]>();
+            int result = readRecordsLP(file, records, certs, certSets);
+            if (result == READ_CORRUPT) {
+                final File corruptFile = file;
+                final int readVersion = mReadVersion;
+                HashMap<String, byte[]> otherRecords = new HashMap<String, byte[]>();
+                ArrayList<byte[]> otherCerts = new ArrayList<byte[]>();
+                ArrayList<byte[]> otherCertSets = new ArrayList<byte[]>();
+                final int otherResult = otherFile.exists()
+                        ? readRecordsLP(otherFile, otherRecords, otherCerts, otherCertSets)
+                        : READ_FAILED;
+                if (otherResult == READ_COMPLETE || otherResult == READ_TRUNCATED) {
+                    reportSettingsProblem(Log.WARN,
+                            "Reading package manager settings from " + otherFile
+                            + " instead of " + corruptFile);
+                    file = otherFile;
+                    fromBackup = otherFile == mBackupBinarySettingsFilename;
+                    records = otherRecords;
+                    certs = otherCerts;
+                    certSets = otherCertSets;
+                    result = otherResult;
+                    corruptFile.renameTo(mCorruptBinarySettingsFilename);
+                } else {
+                    mReadVersion = readVersion;
+                    FileUtils.copyFile(corruptFile, mCorruptBinarySettingsFilename);
+                }
+            }
+            if (result == READ_FAILED) {
+                return false;
+            }
+
+            mWrittenSignatures.clear();
+            mWrittenSignatureIndices.clear();
+            for (byte[] record : certs) {
+                try {
+                    readSignatureLP(openRecord(record));
+                } catch (java.io.IOException e) {
+                    reportSettingsProblem(Log.WARN,
+                            "Error in package manager settings: bad certificate record");
+                }
+            }
+            mWrittenSignatureSets.clear();
+            mWrittenSignatureSetIndices.clear();
+            for (byte[] record : certSets) {
+                try {
+                    readSignatureSetLP(openRecord(record));
+                } catch (java.io.IOException e) {
+                    reportSettingsProblem(Log.WARN,
+                            "Error in package manager settings: bad certificate set record: "
+                            + e);
+                }
+            }
+            for (byte[] record : records.values()) {
+                DataInputStream rin = openRecord(record);
+                try {
+                    String key = rin.readUTF();
+                    switch (record[0]) {
+                        case RECORD_PERMISSION_TREE:
+                            readPermissionLP(mPermissionTrees, rin);
+                            break;
+                        case RECORD_PERMISSION:
+                            readPermissionLP(mPermissions, rin);
+                            break;
+                        case RECORD_PACKAGE:
+                            readPackageLP(rin);
+                            break;
+                        case RECORD_SHARED_USER:
+                            readSharedUserLP(rin);
+                            break;
+                        case RECORD_PREFERRED_PACKAGES:
+                            for (int i=rin.readInt(); i>0; i--) {
+                                mPendingPreferredPackages.add(rin.readUTF());
+                            }
+                            break;
+                        case RECORD_PREFERRED_ACTIVITIES:
+                            readPreferredActivitiesLP(rin);
+                            break;
+                        default:
+                            reportSettingsProblem(Log.WARN,
+                                    "Unknown record in package manager settings: " + key);
+                            break;
+                    }
+                } catch (java.io.IOException e) {
+                    reportSettingsProblem(Log.WARN,
+                            "Error in package manager settings: bad record: " + e);
+                } catch (XmlPullParserException e) {
+                    reportSettingsProblem(Log.WARN,
+                            "Error in package manager settings: bad record: " + e);
+                }
+            }
+
+            synchronized (mWriteLock) {
+                mWrittenRecords.clear();
+                mWrittenRecords.putAll(records);
+                mWrittenGeneration = mSignaturesGeneration;
+                mWrittenSignatureCount = mWrittenSignatures.size();
+                mWrittenSignatureSetCount = mWrittenSignatureSets.size();
+                mCompactedLength = file.length();
+                mAppendedLength = 0;
+                // Appending after a partial or bad record, or to the file
+                // that was being compacted, would lose what gets appended.
+                // Files of an older version are rewritten in the current one.
+                mNeedsCompaction = fromBackup || result != READ_COMPLETE
+                        || mReadVersion != BINARY_SETTINGS_VERSION;
+                mCompactionDue = mNeedsCompaction;
+            }
+            return true;
+        }
+
+        /**
+         * Read the records of the given binary settings file, up to its end
+         * or to the first bad record.  Returns READ_COMPLETE, READ_TRUNCATED
+         * if the last record was not completely written, READ_CORRUPT if a
+         * bad record is followed by more data, or READ_FAILED.
+         */
+        private int readRecordsLP(File file, HashMap<String, byte[]> records,
+                ArrayList<byte[]> certs, ArrayList<byte[]> certSets) {
+            final long fileLength = file.length();
+            long offset = 0;
+            int result;
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(file)));
+                if (in.readInt() != BINARY_SETTINGS_MAGIC
+                        || (mReadVersion = in.readInt()) < 1
+                        || mReadVersion > BINARY_SETTINGS_VERSION) {
+                    mReadMessages.append("Unknown settings file format\n");
+                    Log.e(TAG, "Unknown package manager settings format");
+                    return READ_FAILED;
+                }
+                offset = 8;
+                while (true) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException e) {
+                        result = READ_COMPLETE;
+                        break;
+                    }
+                    if (length == 0) {
+                        // Zeroes left by a write that did not complete.
+                        result = READ_TRUNCATED;
+                        break;
+                    }
+                    if (length < 0 || length > MAX_RECORD_LENGTH) {
+                        result = READ_CORRUPT;
+                        break;
+                    }
+                    byte[] record = new byte[length];
+                    in.readFully(record);
+                    CRC32 crc = new CRC32();
+                    crc.update(record);
+                    if (in.readInt() != (int) crc.getValue()) {
+                        result = offset + 4 + length + 4 < fileLength
+                                ? READ_CORRUPT : READ_TRUNCATED;
+                        break;
+                    }
+                    offset += 4 + length + 4;
+                    if (record[0] == RECORD_CERT) {
+                        certs.add(record);
                         continue;
                     }
-                    p.copyFrom(pp);
-                } else if (idObj != null) {
-                    String msg = "Bad package setting: package " + pp.name
-                            + " has shared uid " + pp.sharedId
-                            + " that is not a shared uid\n";
-                    mReadMessages.append(msg);
-                    Log.e(TAG, msg);
-                } else {
-                    String msg = "Bad package setting: package " + pp.name
-                            + " has shared uid " + pp.sharedId
-                            + " that is not defined\n";
-                    mReadMessages.append(msg);
-                    Log.e(TAG, msg);
+                    if (record[0] == RECORD_CERT_SET) {
+                        certSets.add(record);
+                        continue;
+                    }
+                    String key = openRecord(record).readUTF();
+                    if (record[0] == RECORD_REMOVED) {
+                        records.remove(key);
+                    } else {
+                        records.put(key, record);
+                    }
+                }
+            } catch (EOFException e) {
+                // Truncated record.
+                result = READ_TRUNCATED;
+            } catch (java.io.IOException e) {
+                mReadMessages.append("Error reading: " + e.toString());
+                Log.e(TAG, "Error reading package manager settings", e);
+                result = offset > 0 ? READ_TRUNCATED : READ_FAILED;
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (java.io.IOException e) {
+                    }
                 }
             }
-            mPendingPackages.clear();
+            if (result == READ_TRUNCATED) {
+                mReadMessages.append("Settings file ends with an incomplete record\n");
+                Log.w(TAG, "Package manager settings end with an incomplete record");
+            } else if (result == READ_CORRUPT) {
+                mReadMessages.append("Bad record at offset " + offset + " of " + file + "\n");
+                reportSettingsProblem(Log.ERROR,
+                        "Bad record at offset " + offset + " of " + file + ": ignoring the "
+                        + (fileLength - offset) + " bytes of package manager settings"
+                        + " from there on");
+            }
+            return result;
+        }
 
-            N = mPendingPreferredPackages.size();
-            mPreferredPackages.clear();
-            for (int i=0; i<N; i++) {
-                final String name = mPendingPreferredPackages.get(i);
-                final PackageSetting p = mPackages.get(name);
-                if (p != null) {
-                    mPreferredPackages.add(p);
+        private static DataInputStream openRecord(byte[] record) {
+            return new DataInputStream(new ByteArrayInputStream(record, 1,
+                    record.length - 1));
+        }
+
+        private void readSignatureLP(DataInputStream in) throws java.io.IOException {
+            in.readUTF();
+            final int index = in.readInt();
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            if (index < 0) {
+                throw new java.io.IOException("bad certificate index " + index);
+            }
+            Signature sig = new Signature(bytes);
+            while (mWrittenSignatures.size() <= index) {
+                mWrittenSignatures.add(null);
+            }
+            mWrittenSignatures.set(index, sig);
+            mWrittenSignatureIndices.put(sig, index);
+        }
+
+        private void readSignatureSetLP(DataInputStream in) throws java.io.IOException {
+            in.readUTF();
+            final int index = in.readInt();
+            final int count = in.readInt();
+            if (index < 0 || count < 0) {
+                throw new java.io.IOException("bad certificate set index " + index);
+            }
+            Signature[] signatures = new Signature[count];
+            for (int i=0; i<count; i++) {
+                final int cert = in.readInt();
+                Signature sig = cert >= 0 && cert < mWrittenSignatures.size()
+                        ? mWrittenSignatures.get(cert) : null;
+                if (sig == null) {
+                    throw new java.io.IOException("certificate " + cert + " is not defined");
+                }
+                signatures[i] = sig;
+            }
+            signatures = sSignatureRegistry.intern(signatures);
+            while (mWrittenSignatureSets.size() <= index) {
+                mWrittenSignatureSets.add(null);
+            }
+            mWrittenSignatureSets.set(index, signatures);
+            mWrittenSignatureSetIndices.put(signatures, index);
+        }
+
+        private void readSignaturesLP(DataInputStream in, PackageSignatures sigs)
+                throws java.io.IOException {
+            final int index = in.readInt();
+            if (index < 0) {
+                return;
+            }
+            if (mReadVersion < 2) {
+                readSignatureListLP(in, index, sigs);
+                return;
+            }
+            Signature[] signatures = index < mWrittenSignatureSets.size()
+                    ? mWrittenSignatureSets.get(index) : null;
+            if (signatures == null) {
+                reportSettingsProblem(Log.WARN,
+                        "Error in package manager settings: certificate set "
+                        + index + " is not defined");
+                return;
+            }
+            sigs.mSignatures = signatures;
+        }
+
+        // Version 1 files list the certificates of each package and shared
+        // user.
+        private void readSignatureListLP(DataInputStream in, int count,
+                PackageSignatures sigs) throws java.io.IOException {
+            Signature[] signatures = new Signature[count];
+            int pos = 0;
+            for (int i=0; i<count; i++) {
+                final int index = in.readInt();
+                Signature sig = index >= 0 && index < mWrittenSignatures.size()
+                        ? mWrittenSignatures.get(index) : null;
+                if (sig != null) {
+                    signatures[pos++] = sig;
                 } else {
-                    Log.w(TAG, "Unknown preferred package: " + name);
+                    reportSettingsProblem(Log.WARN,
+                            "Error in package manager settings: certificate "
+                            + index + " is not defined");
                 }
             }
-            mPendingPreferredPackages.clear();
+            if (pos < count) {
+                Signature[] newSigs = new Signature[pos];
+                System.arraycopy(signatures, 0, newSigs, 0, pos);
+                signatures = newSigs;
+            }
+            sigs.mSignatures = sSignatureRegistry.intern(signatures);
+        }
 
-            mReadMessages.append("Read completed successfully: "
-                    + mPackages.size() + " packages, "
-                    + mSharedUsers.size() + " shared uids\n");
+        private static void readStrings(DataInputStream in, HashSet<String> out)
+                throws java.io.IOException {
+            for (int i=in.readInt(); i>0; i--) {
+                out.add(in.readUTF().intern());
+            }
+        }
 
-            return true;
+        private void readPermissionLP(HashMap<String, BasePermission> out,
+                DataInputStream in) throws java.io.IOException {
+            String name = in.readUTF();
+            String sourcePackage = in.readUTF();
+            boolean dynamic = in.readBoolean();
+            BasePermission bp = new BasePermission(name, sourcePackage,
+                    dynamic
+                    ? BasePermission.TYPE_DYNAMIC
+                    : BasePermission.TYPE_NORMAL);
+            if (dynamic) {
+                PermissionInfo pi = new PermissionInfo();
+                pi.packageName = sourcePackage.intern();
+                pi.name = name.intern();
+                pi.icon = in.readInt();
+                if (in.readBoolean()) {
+                    pi.nonLocalizedLabel = in.readUTF();
+                }
+                pi.protectionLevel = in.readInt();
+                bp.pendingInfo = pi;
+            }
+            out.put(bp.name, bp);
+        }
+
+        private void readPackageLP(DataInputStream in) throws java.io.IOException {
+            String name = in.readUTF();
+            File codePath = new File(in.readUTF());
+            File resourcePath = new File(in.readUTF());
+            int pkgFlags = in.readBoolean() ? ApplicationInfo.FLAG_SYSTEM : 0;
+            String timeStampStr = in.readUTF();
+            long timeStamp = 0;
+            try {
+                timeStamp = Long.parseLong(timeStampStr);
+            } catch (NumberFormatException e) {
+            }
+            boolean shared = in.readBoolean();
+            int userId = in.readInt();
+            if (DEBUG_SETTINGS) Log.v(TAG, "Reading package: " + name
+                    + (shared ? " sharedUserId=" : " userId=") + userId);
+            PackageSettingBase packageSetting = null;
+            if (userId <= 0) {
+                reportSettingsProblem(Log.WARN,
+                        "Error in package manager settings: package "
+                        + name + " has bad " + (shared ? "sharedId " : "userId ")
+                        + userId);
+            } else if (!shared) {
+                packageSetting = addPackageLP(name.intern(), codePath, resourcePath,
+                        userId, pkgFlags);
+                if (packageSetting == null) {
+                    reportSettingsProblem(Log.ERROR,
+                            "Failure adding uid " + userId
+                            + " while reading settings of package " + name);
+                }
+            } else {
+                packageSetting = new PendingPackage(name.intern(), codePath,
+                        resourcePath, userId, pkgFlags);
+                mPendingPackages.add((PendingPackage) packageSetting);
+            }
+            if (packageSetting == null) {
+                return;
+            }
+            packageSetting.setTimeStamp(timeStamp, timeStampStr);
+            packageSetting.enabled = in.readInt();
+            packageSetting.installStatus = in.readBoolean()
+                    ? PKG_INSTALL_INCOMPLETE : PKG_INSTALL_COMPLETE;
+            readSignaturesLP(in, packageSetting.signatures);
+            if (in.readBoolean()) {
+                readStrings(in, packageSetting.loadedPermissions);
+                packageSetting.permissionsFixed = true;
+            }
+            readStrings(in, packageSetting.disabledComponents);
+            readStrings(in, packageSetting.enabledComponents);
+        }
+
+        private void readSharedUserLP(DataInputStream in) throws java.io.IOException {
+            String name = in.readUTF();
+            int userId = in.readInt();
+            SharedUserSetting su = null;
+            if (userId <= 0) {
+                reportSettingsProblem(Log.WARN,
+                        "Error in package manager settings: shared-user "
+                        + name + " has bad userId " + userId);
+            } else if ((su=addSharedUserLP(name.intern(), userId, 0)) == null) {
+                reportSettingsProblem(Log.ERROR,
+                        "Occurred while reading settings of shared user " + name);
+            }
+            if (su != null) {
+                readSignaturesLP(in, su.signatures);
+                readStrings(in, su.loadedPermissions);
+            }
+        }
+
+        private void readPreferredActivitiesLP(DataInputStream in)
+                throws java.io.IOException, XmlPullParserException {
+            byte[] xml = new byte[in.readInt()];
+            in.readFully(xml);
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(new ByteArrayInputStream(xml), null);
+            int type;
+            while ((type=parser.next()) != XmlPullParser.START_TAG
+                       && type != XmlPullParser.END_DOCUMENT) {
+                ;
+            }
+            if (type == XmlPullParser.START_TAG) {
+                readPreferredActivitiesLP(parser);
+            }
         }
 
         private int readInt(XmlPullParser parser, String ns, String name,
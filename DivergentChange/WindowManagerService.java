@@ -135,6 +135,7 @@ import java.net.Socket;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 
@@ -350,7 +351,7 @@ public class WindowManagerService extends IWindowManager.Stub
     /**
      * Z-ordered (bottom-most first) list of all Window objects.
      */
-    final ArrayList<WindowState> mWindows = new ArrayList<WindowState>();
+    final WindowList mWindows = new WindowList();
 
     /**
      * Windows that are being resized.  Used so we can tell the client about
@@ -432,6 +433,49 @@ public class WindowManagerService extends IWindowManager.Stub
     int mDeferredRotationAnimFlags;
 
     boolean mLayoutNeeded = true;
+    // Passes requested through relayoutAllWindowsLocked() and
+    // placeSurfacesOnlyLocked(), by whether windows were laid out.
+    int mFullLayoutPasses = 0;
+    int mPlacementOnlyPasses = 0;
+
+    // Surface placements that do not have to be on screen when the call
+    // asking for them returns, like wallpaper scrolling, are done at most
+    // once per frame: the changes made meanwhile go in the same transaction.
+    static final long SURFACE_PLACEMENT_INTERVAL = 16;
+    boolean mSurfacePlacementPending = false;
+    long mLastSurfacePlacementTime = 0;
+    int mCoalescedSurfacePlacements = 0;
+    final Runnable mPlaceSurfaces = new Runnable() {
+        public void run() {
+            synchronized (mWindowMap) {
+                if (mSurfacePlacementPending) {
+                    placeSurfacesOnlyLocked();
+                }
+            }
+        }
+    };
+
+    // Input windows changed by relayouts are sent to the input dispatcher
+    // once for all the relayouts made before mH gets to it.
+    // Relayouts changing any of these flags update the input windows at once.
+    static final int INPUT_WINDOW_FLAGS = WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE
+            | WindowManager.LayoutParams.FLAG_NOT_TOUCHABLE
+            | WindowManager.LayoutParams.FLAG_NOT_TOUCH_MODAL
+            | WindowManager.LayoutParams.FLAG_WATCH_OUTSIDE_TOUCH
+            | WindowManager.LayoutParams.FLAG_SPLIT_TOUCH;
+    boolean mInputWindowsUpdatePending = false;
+    int mCoalescedInputWindowsUpdates = 0;
+    final Runnable mUpdateInputWindows = new Runnable() {
+        public void run() {
+            synchronized (mWindowMap) {
+                mInputWindowsUpdatePending = false;
+                if (DEBUG_INPUT) Slog.v(TAG, "Updating input windows: "
+                        + mCoalescedInputWindowsUpdates + " updates coalesced so far");
+                // Does nothing if another update went out meanwhile.
+                mInputMonitor.updateInputWindowsLw(false /*force*/);
+            }
+        }
+    };
     boolean mAnimationPending = false;
     boolean mDisplayFrozen = false;
     boolean mWaitingForConfig = false;
@@ -543,6 +587,26 @@ public class WindowManagerService extends IWindowManager.Stub
     boolean mTurnOnScreen;
 
     DragState mDragState = null;
+
+    // Drag moves are applied at most once per frame, at the latest position
+    // received: the moves queued up meanwhile are dropped.  The pending
+    // move is guarded by mDragMoveLock, which may be taken with mWindowMap
+    // held but not the other way around.
+    static final long DRAG_MOVE_INTERVAL = 16;
+    final Object mDragMoveLock = new Object();
+    boolean mDragMovePending = false;
+    float mDragMoveX;
+    float mDragMoveY;
+    long mLastDragMoveTime = 0;
+    int mCoalescedDragMoves = 0;
+    final Runnable mApplyDragMove = new Runnable() {
+        public void run() {
+            synchronized (mWindowMap) {
+                applyPendingDragMoveLw();
+            }
+        }
+    };
+
     final InputHandler mDragInputHandler = new BaseInputHandler() {
         @Override
         public void handleMotion(MotionEvent event, InputQueue.FinishedCallback finishedCallback) {
@@ -562,9 +626,17 @@ public class WindowManagerService extends IWindowManager.Stub
                     } break;
 
                     case MotionEvent.ACTION_MOVE: {
-                        synchronized (mWindowMap) {
-                            // move the surface and tell the involved window(s) where we are
-                            mDragState.notifyMoveLw(newX, newY);
+                        synchronized (mDragMoveLock) {
+                            mDragMoveX = newX;
+                            mDragMoveY = newY;
+                            if (mDragMovePending) {
+                                mCoalescedDragMoves++;
+                            } else {
+                                mDragMovePending = true;
+                                final long delay = mLastDragMoveTime + DRAG_MOVE_INTERVAL
+                                        - SystemClock.uptimeMillis();
+                                mH.postDelayed(mApplyDragMove, delay > 0 ? delay : 0);
+                            }
                         }
                     } break;
 
@@ -572,6 +644,8 @@ public class WindowManagerService extends IWindowManager.Stub
                         if (DEBUG_DRAG) Slog.d(TAG, "Got UP on move channel; dropping at "
                                 + newX + "," + newY);
                         synchronized (mWindowMap) {
+                            // The windows see the last move before the drop.
+                            applyPendingDragMoveLw();
                             endDrag = mDragState.notifyDropLw(newX, newY);
                         }
                     } break;
@@ -583,7 +657,12 @@ public class WindowManagerService extends IWindowManager.Stub
                     }
 
                     if (endDrag) {
-                        if (DEBUG_DRAG) Slog.d(TAG, "Drag ended; tearing down state");
+                        if (DEBUG_DRAG) Slog.d(TAG, "Drag ended; tearing down state; "
+                                + mCoalescedDragMoves + " moves coalesced so far");
+                        synchronized (mDragMoveLock) {
+                            mDragMovePending = false;
+                            mH.removeCallbacks(mApplyDragMove);
+                        }
                         // tell all the windows that the drag has ended
                         synchronized (mWindowMap) {
                             mDragState.endDragLw();
@@ -600,6 +679,27 @@ public class WindowManagerService extends IWindowManager.Stub
         }
     };
 
+    /**
+     * Move the drag surface to the latest position received, and tell the
+     * involved window(s) where we are.
+     */
+    void applyPendingDragMoveLw() {
+        final float x, y;
+        synchronized (mDragMoveLock) {
+            if (!mDragMovePending) {
+                return;
+            }
+            mDragMovePending = false;
+            mH.removeCallbacks(mApplyDragMove);
+            mLastDragMoveTime = SystemClock.uptimeMillis();
+            x = mDragMoveX;
+            y = mDragMoveY;
+        }
+        if (mDragState != null) {
+            mDragState.notifyMoveLw(x, y);
+        }
+    }
+
     /**
      * Whether the UI is currently running in touch mode (not showing
      * navigational focus because the user is directly pressing the screen).
@@ -784,6 +884,128 @@ public class WindowManagerService extends IWindowManager.Stub
         }
     }
 
+    /**
+     * A window list that remembers where its windows are, so that finding
+     * the position of a window does not scan the list.  Positions are
+     * recorded lazily: a change to the list only forgets the positions at
+     * and above the changed index, which get recorded again by the next
+     * lookup.  Most changes happen towards the top of the stack, so windows
+     * below are found in constant time.  Structural changes made other than
+     * through the methods below, such as through an iterator, forget all
+     * positions.
+     */
+    static final class WindowList extends ArrayList<WindowState> {
+        private final IdentityHashMap<WindowState, Integer> mPositions =
+                new IdentityHashMap<WindowState, Integer>();
+        // The windows below this index are at their position in mPositions.
+        private int mValidCount;
+        private int mExpectedModCount;
+
+        @Override
+        public boolean add(WindowState w) {
+            checkModCount();
+            super.add(w);
+            mExpectedModCount = modCount;
+            return true;
+        }
+
+        @Override
+        public void add(int index, WindowState w) {
+            checkModCount();
+            super.add(index, w);
+            mExpectedModCount = modCount;
+            invalidateFrom(index);
+        }
+
+        @Override
+        public WindowState set(int index, WindowState w) {
+            checkModCount();
+            WindowState old = super.set(index, w);
+            forgetPosition(old, index);
+            invalidateFrom(index);
+            return old;
+        }
+
+        @Override
+        public WindowState remove(int index) {
+            checkModCount();
+            WindowState w = super.remove(index);
+            mExpectedModCount = modCount;
+            forgetPosition(w, index);
+            invalidateFrom(index);
+            return w;
+        }
+
+        // Forget the position of a window no longer at the given index,
+        // unless a window listed twice is recorded at its other position:
+        // one below the index is still right, one above gets recorded again
+        // by the next lookup.
+        private void forgetPosition(WindowState w, int index) {
+            Integer pos = mPositions.get(w);
+            if (pos != null && pos == index) {
+                mPositions.remove(w);
+            }
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            final int index = indexOf(o);
+            if (index < 0) {
+                return false;
+            }
+            remove(index);
+            return true;
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            mExpectedModCount = modCount;
+            mPositions.clear();
+            mValidCount = 0;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return indexOf(o) >= 0;
+        }
+
+        @Override
+        public int indexOf(Object o) {
+            checkModCount();
+            Integer pos = mPositions.get(o);
+            if (pos != null && pos < mValidCount) {
+                return pos;
+            }
+            final int N = size();
+            for (int i=mValidCount; i<N; i++) {
+                final WindowState w = get(i);
+                // Keep the lowest position of a window listed twice.
+                Integer prev = mPositions.get(w);
+                if (prev == null || prev >= i || get(prev) != w) {
+                    mPositions.put(w, i);
+                }
+            }
+            mValidCount = N;
+            pos = mPositions.get(o);
+            return pos != null ? pos : -1;
+        }
+
+        private void checkModCount() {
+            if (modCount != mExpectedModCount) {
+                mExpectedModCount = modCount;
+                mPositions.clear();
+                mValidCount = 0;
+            }
+        }
+
+        private void invalidateFrom(int index) {
+            if (index < mValidCount) {
+                mValidCount = index;
+            }
+        }
+    }
+
     private void placeWindowAfter(WindowState pos, WindowState window) {
         final int i = mWindows.indexOf(pos);
         if (DEBUG_FOCUS || DEBUG_WINDOW_MOVEMENT || DEBUG_ADD_REMOVE) Slog.v(
@@ -805,6 +1027,20 @@ public class WindowManagerService extends IWindowManager.Stub
     //This method finds out the index of a window that has the same app token as
     //win. used for z ordering the windows in mWindows
     private int findIdxBasedOnAppTokens(WindowState win) {
+        final AppWindowToken atoken = win.mAppToken;
+        if (atoken != null) {
+            // All the windows of an app token are in its allAppWindows, so
+            // only their positions need to be looked up.
+            final ArrayList<WindowState> windows = atoken.allAppWindows;
+            int idx = -1;
+            for (int j=windows.size()-1; j>=0; j--) {
+                final int pos = mWindows.indexOf(windows.get(j));
+                if (pos > idx) {
+                    idx = pos;
+                }
+            }
+            return idx;
+        }
         //use a local variable to cache mWindows
         ArrayList<WindowState> localmWindows = mWindows;
         int jmax = localmWindows.size();
@@ -2216,7 +2452,7 @@ public class WindowManagerService extends IWindowManager.Stub
                 mLayoutNeeded = true;
                 updateFocusedWindowLocked(UPDATE_FOCUS_WILL_PLACE_SURFACES,
                         false /*updateInputWindows*/);
-                performLayoutAndPlaceSurfacesLocked();
+                relayoutAllWindowsLocked();
                 mInputMonitor.updateInputWindowsLw(false /*force*/);
                 if (win.mAppToken != null) {
                     win.mAppToken.updateReportedVisibilityLocked();
@@ -2240,6 +2476,16 @@ public class WindowManagerService extends IWindowManager.Stub
     }
 
     private void removeWindowInnerLocked(Session session, WindowState win) {
+        removeWindowInnerLocked(session, win, true);
+    }
+
+    /**
+     * @param relayout Whether to lay out and update the input windows once
+     * the window is gone.  Children removed along with their parent leave
+     * that to it, so that it is done once.
+     */
+    private void removeWindowInnerLocked(Session session, WindowState win,
+            boolean relayout) {
         if (win.mRemoved) {
             // Nothing to do.
             return;
@@ -2249,7 +2495,7 @@ public class WindowManagerService extends IWindowManager.Stub
             WindowState cwin = win.mChildWindows.get(i);
             Slog.w(TAG, "Force-removing child win " + cwin + " from container "
                     + win);
-            removeWindowInnerLocked(cwin.mSession, cwin);
+            removeWindowInnerLocked(cwin.mSession, cwin, false);
         }
 
         win.mRemoved = true;
@@ -2324,10 +2570,13 @@ public class WindowManagerService extends IWindowManager.Stub
             adjustWallpaperWindowsLocked();
         }
 
+        if (!relayout) {
+            return;
+        }
+
         if (!mInLayout) {
             assignLayersLocked();
-            mLayoutNeeded = true;
-            performLayoutAndPlaceSurfacesLocked();
+            relayoutAllWindowsLocked();
             if (win.mAppToken != null) {
                 win.mAppToken.updateReportedVisibilityLocked();
             }
@@ -2336,6 +2585,80 @@ public class WindowManagerService extends IWindowManager.Stub
         mInputMonitor.updateInputWindowsLw(true /*force*/);
     }
 
+    /**
+     * Send the input windows to the input dispatcher shortly, along with
+     * the other relayouts made until then.  Only for relayouts that leave
+     * the input state of their window as it was: adds, removals, focus
+     * changes and changes of visibility, frame, touchable region or layer
+     * must not wait, and still update the input windows at once.
+     */
+    void scheduleUpdateInputWindowsLocked() {
+        mInputMonitor.setUpdateInputWindowsNeededLw();
+        if (mInputWindowsUpdatePending) {
+            mCoalescedInputWindowsUpdates++;
+            return;
+        }
+        mInputWindowsUpdatePending = true;
+        mH.post(mUpdateInputWindows);
+    }
+
+    /**
+     * Lay out all windows and place their surfaces, after a change that may
+     * move windows.
+     */
+    void relayoutAllWindowsLocked() {
+        mLayoutNeeded = true;
+        mFullLayoutPasses++;
+        if (DEBUG_LAYOUT) Slog.v(TAG, "Laying out all windows: full="
+                + mFullLayoutPasses + " placementOnly=" + mPlacementOnlyPasses);
+        surfacesPlacedLocked();
+        performLayoutAndPlaceSurfacesLocked();
+    }
+
+    /**
+     * Place the surfaces again after a change that does not move any
+     * window, such as a wallpaper offset.
+     * Windows are only laid out if a layout was requested meanwhile.
+     */
+    void placeSurfacesOnlyLocked() {
+        if (mLayoutNeeded) {
+            mFullLayoutPasses++;
+        } else {
+            mPlacementOnlyPasses++;
+        }
+        if (DEBUG_LAYOUT) Slog.v(TAG, "Placing surfaces: layout="
+                + mLayoutNeeded + " full=" + mFullLayoutPasses
+                + " placementOnly=" + mPlacementOnlyPasses
+                + " coalesced=" + mCoalescedSurfacePlacements);
+        surfacesPlacedLocked();
+        performLayoutAndPlaceSurfacesLocked();
+    }
+
+    /**
+     * Like placeSurfacesOnlyLocked(), but no sooner than a frame after the
+     * previous placement, along with the other changes requested meanwhile.
+     */
+    void schedulePlaceSurfacesLocked() {
+        if (mSurfacePlacementPending) {
+            mCoalescedSurfacePlacements++;
+            return;
+        }
+        mSurfacePlacementPending = true;
+        final long delay = mLastSurfacePlacementTime + SURFACE_PLACEMENT_INTERVAL
+                - SystemClock.uptimeMillis();
+        mH.postDelayed(mPlaceSurfaces, delay > 0 ? delay : 0);
+    }
+
+    // The pass about to run also applies the changes waiting for
+    // mPlaceSurfaces.
+    private void surfacesPlacedLocked() {
+        if (mSurfacePlacementPending) {
+            mSurfacePlacementPending = false;
+            mH.removeCallbacks(mPlaceSurfaces);
+        }
+        mLastSurfacePlacementTime = SystemClock.uptimeMillis();
+    }
+
     static void logSurface(WindowState w, String msg, RuntimeException where) {
         String str = "  SURFACE " + Integer.toHexString(w.hashCode())
                 + ": " + msg + " / " + w.mAttrs.getTitle();
@@ -2389,8 +2712,7 @@ public class WindowManagerService extends IWindowManager.Stub
                         w.mGivenVisibleInsets.scale(w.mGlobalScale);
                         w.mGivenTouchableRegion.scale(w.mGlobalScale);
                     }
-                    mLayoutNeeded = true;
-                    performLayoutAndPlaceSurfacesLocked();
+                    relayoutAllWindowsLocked();
                 }
             }
         } finally {
@@ -2418,7 +2740,8 @@ public class WindowManagerService extends IWindowManager.Stub
             window.mWallpaperXStep = xStep;
             window.mWallpaperYStep = yStep;
             if (updateWallpaperOffsetLocked(window, true)) {
-                performLayoutAndPlaceSurfacesLocked();
+                // Scrolling sends many of these a frame.
+                schedulePlaceSurfacesLocked();
             }
         }
     }
@@ -2534,6 +2857,8 @@ public class WindowManagerService extends IWindowManager.Stub
             boolean focusMayChange = win.mViewVisibility != viewVisibility
                     || ((flagChanges&WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE) != 0)
                     || (!win.mRelayoutCalled);
+            boolean focusChanged = false;
+            boolean inputChanged = false;
 
             boolean wallpaperMayMove = win.mViewVisibility != viewVisibility
                     && (win.mAttrs.flags & FLAG_SHOW_WALLPAPER) != 0;
@@ -2698,6 +3023,7 @@ public class WindowManagerService extends IWindowManager.Stub
                 if (updateFocusedWindowLocked(UPDATE_FOCUS_WILL_PLACE_SURFACES,
                         false /*updateInputWindows*/)) {
                     imMayMove = false;
+                    focusChanged = true;
                 }
                 //System.out.println("Relayout " + win + ": focus=" + mCurrentFocus);
             }
@@ -2722,13 +3048,22 @@ public class WindowManagerService extends IWindowManager.Stub
                 }
             }
 
+            // What the input dispatcher knows of the window: whether it is
+            // shown, its frame, its touchable region, its layer.
+            final boolean inputWindowChanged = oldVisibility != viewVisibility
+                    || displayed || assignLayers
+                    || win.mGivenInsetsPending != insetsPending
+                    || (flagChanges&INPUT_WINDOW_FLAGS) != 0;
+            final Rect oldFrame = new Rect(win.mFrame);
+
             mLayoutNeeded = true;
             win.mGivenInsetsPending = insetsPending;
             if (assignLayers) {
                 assignLayersLocked();
             }
             configChanged = updateOrientationFromAppTokensLocked(false);
-            performLayoutAndPlaceSurfacesLocked();
+            relayoutAllWindowsLocked();
+            inputChanged = inputWindowChanged || !oldFrame.equals(win.mFrame);
             if (displayed && win.mIsWallpaper) {
                 updateWallpaperOffsetLocked(win, mAppDisplayWidth, mAppDisplayHeight, false);
             }
@@ -2751,7 +3086,11 @@ public class WindowManagerService extends IWindowManager.Stub
 
             inTouchMode = mInTouchMode;
             
-            mInputMonitor.updateInputWindowsLw(true /*force*/);
+            if (focusChanged || inputChanged) {
+                mInputMonitor.updateInputWindowsLw(true /*force*/);
+            } else {
+                scheduleUpdateInputWindowsLocked();
+            }
         }
 
         if (configChanged) {
@@ -2788,8 +3127,7 @@ public class WindowManagerService extends IWindowManager.Stub
                 if ((win.mAttrs.flags&FLAG_SHOW_WALLPAPER) != 0) {
                     adjustWallpaperWindowsLocked();
                 }
-                mLayoutNeeded = true;
-                performLayoutAndPlaceSurfacesLocked();
+                relayoutAllWindowsLocked();
             }
         }
         Binder.restoreCallingIdentity(origId);
@@ -0,0 +1,355 @@
+/*******************************************************************************
+ * Copyright (c) 2009 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.jdt.core.tests.compiler.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jdt.internal.compiler.ClassFile;
+import org.eclipse.jdt.internal.compiler.CompilationResult;
+import org.eclipse.jdt.internal.compiler.batch.Main;
+import org.eclipse.jdt.internal.compiler.env.ICompilationUnit;
+import org.eclipse.jdt.internal.compiler.util.Util;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks of the batch compiler, end to end and per phase.
+ * <p>The corpus is generated under the temporary folder, with a configurable
+ * number of compilation units. {@link #main(String[])} runs all benchmarks
+ * with the GC profiler, so that allocation rates get reported along with the
+ * throughput; a subset can be selected by passing a regular expression.</p>
+ * <p>Kept apart from the compiler sources, so that these do not depend on
+ * JMH.</p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class MainBenchmark {
+
+	static final int UNITS_PER_PACKAGE = 50;
+
+	static class NullWriter extends Writer {
+		public void write(char[] buffer, int offset, int length) {
+			// discard
+		}
+		public void flush() {
+			// nothing to do
+		}
+		public void close() {
+			// nothing to do
+		}
+	}
+
+	/**
+	 * Class file made of the bytes of a compiled one.
+	 */
+	static class ClassFileSnapshot extends ClassFile {
+		char[] fileName;
+
+		ClassFileSnapshot(char[] fileName, byte[] bytes) {
+			this.fileName = fileName;
+			this.header = bytes;
+			this.headerOffset = bytes.length;
+			this.contents = new byte[0];
+			this.contentsOffset = 0;
+		}
+		public char[] fileName() {
+			return this.fileName;
+		}
+	}
+
+	/**
+	 * Compilation unit output, as handed to {@link Main#outputClassFiles(CompilationResult)}.
+	 */
+	static class UnitOutput {
+		ICompilationUnit compilationUnit;
+		char[][] fileNames;
+		byte[][] contents;
+
+		UnitOutput(CompilationResult result) {
+			this.compilationUnit = result.compilationUnit;
+			ClassFile[] classFiles = result.getClassFiles();
+			int length = classFiles.length;
+			this.fileNames = new char[length][];
+			this.contents = new byte[length][];
+			for (int i = 0; i < length; i++) {
+				this.fileNames[i] = (char[]) classFiles[i].fileName().clone();
+				this.contents[i] = classFiles[i].getBytes();
+			}
+		}
+		/*
+		 * Answer a new compilation result holding new class files with the recorded names and bytes.
+		 */
+		CompilationResult newResult() {
+			CompilationResult result = new CompilationResult(this.compilationUnit, 0, 1, Integer.MAX_VALUE);
+			for (int i = 0, max = this.fileNames.length; i < max; i++) {
+				result.compiledTypes.put(this.fileNames[i], new ClassFileSnapshot(this.fileNames[i], this.contents[i]));
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Batch compiler that records the output of the units it compiles.
+	 * <p>The class files themselves go back to the pool once written, so
+	 * their names and bytes are copied before that happens.</p>
+	 */
+	static class CapturingMain extends Main {
+		ArrayList outputs = new ArrayList();
+
+		CapturingMain() {
+			super(newWriter(), newWriter(), false /* systemExit */, null /* options */, null /* progress */);
+		}
+		public void outputClassFiles(CompilationResult unitResult) {
+			if (unitResult != null && !unitResult.hasErrors()) {
+				this.outputs.add(new UnitOutput(unitResult));
+			}
+			super.outputClassFiles(unitResult);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class CorpusState {
+		@Param({"100", "1000"})
+		public int units;
+		File root;
+		String[] arguments;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			this.root = createTempFolder("corpus"); //$NON-NLS-1$
+			File sources = new File(this.root, "src"); //$NON-NLS-1$
+			generateCorpus(sources, this.units);
+			this.arguments = new String[] {
+				"-1.5", //$NON-NLS-1$
+				"-nowarn", //$NON-NLS-1$
+				"-d", //$NON-NLS-1$
+				new File(this.root, "bin").getPath(), //$NON-NLS-1$
+				sources.getPath()
+			};
+		}
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			delete(this.root);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class OutputState extends CorpusState {
+		// keeps its compiler and lookup environment once done
+		CapturingMain main;
+		UnitOutput[] outputs;
+		CompilationResult[] results;
+
+		// runs after the corpus got generated
+		@Setup(Level.Trial)
+		public void compileCorpus() {
+			this.main = new CapturingMain();
+			this.main.compile(this.arguments);
+			this.outputs = new UnitOutput[this.main.outputs.size()];
+			this.main.outputs.toArray(this.outputs);
+		}
+		// Main releases the class files it outputs: every invocation needs its own
+		@Setup(Level.Invocation)
+		public void createResults() {
+			int length = this.outputs.length;
+			this.results = new CompilationResult[length];
+			for (int i = 0; i < length; i++) {
+				this.results[i] = this.outputs[i].newResult();
+			}
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class ClasspathState {
+		@Param({"100", "1000", "10000", "20000"})
+		public int entries;
+		File root;
+		String classpath;
+		// every entry appears twice
+		String duplicatedClasspath;
+		String commandLine;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			this.root = createTempFolder("classpath"); //$NON-NLS-1$
+			StringBuffer classpathBuffer = new StringBuffer();
+			for (int i = 0; i < this.entries; i++) {
+				File folder = new File(this.root, "lib" + i); //$NON-NLS-1$
+				folder.mkdirs();
+				if (i > 0) classpathBuffer.append(File.pathSeparatorChar);
+				classpathBuffer.append(folder.getPath());
+				// every other entry has access rules
+				if (i % 2 == 0) {
+					classpathBuffer.append("[+p").append(i).append("/*;~q/*;-**]"); //$NON-NLS-1$ //$NON-NLS-2$
+				}
+			}
+			this.classpath = classpathBuffer.toString();
+			this.duplicatedClasspath = this.classpath + File.pathSeparatorChar + this.classpath;
+			this.commandLine = "-1.5 -warn:+unused,-serial -classpath \"" + this.classpath + "\" -d \"" //$NON-NLS-1$ //$NON-NLS-2$
+				+ new File(this.root, "bin").getPath() + "\" X.java"; //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			delete(this.root);
+		}
+	}
+
+public static void main(String[] args) throws RunnerException {
+	OptionsBuilder options = new OptionsBuilder();
+	options.include(args.length == 0 ? MainBenchmark.class.getName() : args[0]);
+	options.addProfiler(GCProfiler.class);
+	new Runner(options.build()).run();
+}
+
+@Benchmark
+public boolean compile(CorpusState state) {
+	return new Main(newWriter(), newWriter(), false /* systemExit */, null /* options */, null /* progress */)
+		.compile(state.arguments);
+}
+
+@Benchmark
+public String[] configure(CorpusState state) {
+	Main main = new Main(newWriter(), newWriter(), false /* systemExit */, null /* options */, null /* progress */);
+	main.configure(state.arguments);
+	return main.filenames;
+}
+
+@Benchmark
+public String[] tokenize(ClasspathState state) {
+	return Main.tokenize(state.commandLine);
+}
+
+/*
+ * Reported as time per operation, which is expected to grow linearly with the
+ * number of entries.
+ */
+@Benchmark
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public ArrayList processPathEntries(ClasspathState state) {
+	return processPathEntries(state.classpath);
+}
+
+@Benchmark
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public ArrayList processDuplicatedPathEntries(ClasspathState state) {
+	return processPathEntries(state.duplicatedClasspath);
+}
+
+private static ArrayList processPathEntries(String classpath) {
+	Main main = new Main(newWriter(), newWriter(), false /* systemExit */, null /* options */, null /* progress */);
+	ArrayList paths = new ArrayList(Main.DEFAULT_SIZE_CLASSPATH);
+	main.processPathEntries(Main.DEFAULT_SIZE_CLASSPATH, paths, classpath, null /* customEncoding */, false /* isSourceOnly */, true /* rejectDestinationPathOnJars */);
+	return paths;
+}
+
+@Benchmark
+public int outputClassFiles(OutputState state) {
+	CompilationResult[] results = state.results;
+	for (int i = 0, max = results.length; i < max; i++) {
+		state.main.outputClassFiles(results[i]);
+	}
+	return state.main.exportedClassFilesCounter;
+}
+
+static PrintWriter newWriter() {
+	return new PrintWriter(new NullWriter());
+}
+
+static File createTempFolder(String prefix) throws IOException {
+	File folder = File.createTempFile("jdt-benchmark-" + prefix, Util.EMPTY_STRING); //$NON-NLS-1$
+	folder.delete();
+	folder.mkdirs();
+	return folder;
+}
+
+/*
+ * Generate the given number of compilation units, each of which refers to the
+ * one before it, so that lookups cross package boundaries.
+ */
+static void generateCorpus(File sources, int units) throws IOException {
+	for (int i = 0; i < units; i++) {
+		String packageName = "p" + (i / UNITS_PER_PACKAGE); //$NON-NLS-1$
+		File folder = new File(sources, packageName);
+		folder.mkdirs();
+		StringBuffer source = new StringBuffer();
+		source.append("package ").append(packageName).append(";\n") //$NON-NLS-1$ //$NON-NLS-2$
+			.append("import java.util.*;\n") //$NON-NLS-1$
+			.append("public class C").append(i).append(" {\n") //$NON-NLS-1$ //$NON-NLS-2$
+			.append("\tprivate List<String> values = new ArrayList<String>();\n") //$NON-NLS-1$
+			.append("\tprivate Map<String, Integer> counts = new HashMap<String, Integer>();\n"); //$NON-NLS-1$
+		if (i > 0) {
+			String previous = "p" + ((i - 1) / UNITS_PER_PACKAGE) + ".C" + (i - 1); //$NON-NLS-1$ //$NON-NLS-2$
+			source.append("\tpublic int previous(").append(previous).append(" other) {\n") //$NON-NLS-1$ //$NON-NLS-2$
+				.append("\t\treturn other.add(\"").append(i).append("\");\n") //$NON-NLS-1$ //$NON-NLS-2$
+				.append("\t}\n"); //$NON-NLS-1$
+		}
+		source.append("\tpublic int add(String value) {\n") //$NON-NLS-1$
+			.append("\t\tthis.values.add(value);\n") //$NON-NLS-1$
+			.append("\t\tInteger count = this.counts.get(value);\n") //$NON-NLS-1$
+			.append("\t\tthis.counts.put(value, count == null ? 1 : count + 1);\n") //$NON-NLS-1$
+			.append("\t\tfor (Iterator<String> iterator = this.values.iterator(); iterator.hasNext(); ) {\n") //$NON-NLS-1$
+			.append("\t\t\tif (iterator.next().length() == 0) iterator.remove();\n") //$NON-NLS-1$
+			.append("\t\t}\n") //$NON-NLS-1$
+			.append("\t\treturn this.values.size();\n") //$NON-NLS-1$
+			.append("\t}\n") //$NON-NLS-1$
+			.append("\tclass Entry implements Comparable<Entry> {\n") //$NON-NLS-1$
+			.append("\t\tString key;\n") //$NON-NLS-1$
+			.append("\t\tpublic int compareTo(Entry other) {\n") //$NON-NLS-1$
+			.append("\t\t\treturn this.key.compareTo(other.key);\n") //$NON-NLS-1$
+			.append("\t\t}\n") //$NON-NLS-1$
+			.append("\t}\n") //$NON-NLS-1$
+			.append("}\n"); //$NON-NLS-1$
+		Writer writer = new OutputStreamWriter(new FileOutputStream(new File(folder, "C" + i + ".java")), Util.UTF_8); //$NON-NLS-1$ //$NON-NLS-2$
+		try {
+			writer.write(source.toString());
+		} finally {
+			writer.close();
+		}
+	}
+}
+
+static void delete(File file) {
+	File[] children = file.listFiles();
+	if (children != null) {
+		for (int i = 0, max = children.length; i < max; i++) {
+			delete(children[i]);
+		}
+	}
+	file.delete();
+}
+}